@@ -0,0 +1,70 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.compiere.model.MStorageProvider;
+
+/**
+ * Storage provider of the benchmarks, not saved. The S3 columns added by the
+ * plugin and the tuning settings are served from a map, so the benchmarks do
+ * not depend on the provider records of the database.
+ */
+public class BenchmarkProvider extends MStorageProvider {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Map<String, String> values = new HashMap<>();
+
+	public BenchmarkProvider(Properties ctx, String endpoint, String bucket) {
+		super(ctx, 0, null);
+		setName("Benchmark");
+		setURL(endpoint);
+		setFolder("benchmark");
+		setUserName("benchmark");
+		setPassword("benchmark");
+		set("S3EndPoint", endpoint);
+		set("S3Region", "us-east-1");
+		set("S3Bucket", bucket);
+	}
+
+	/**
+	 * Set a column added by the plugin or a tuning setting, e.g.
+	 * S3MaxConcurrentFetches
+	 *
+	 * @return this provider
+	 */
+	public BenchmarkProvider set(String name, String value) {
+		values.put(name, value);
+		return this;
+	}
+
+	@Override
+	public int get_ColumnIndex(String columnName) {
+		if (values.containsKey(columnName))
+			return Integer.MAX_VALUE;
+		return super.get_ColumnIndex(columnName);
+	}
+
+	@Override
+	public String get_ValueAsString(String variableName) {
+		if (values.containsKey(variableName))
+			return values.get(variableName);
+		return super.get_ValueAsString(variableName);
+	}
+}
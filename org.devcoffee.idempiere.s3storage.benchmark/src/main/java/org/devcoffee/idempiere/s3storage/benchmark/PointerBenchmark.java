@@ -0,0 +1,128 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.devcoffee.idempiere.s3storage.util.S3Pointer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.NodeList;
+
+/**
+ * Reading and writing the XML pointer of an attachment with {@link S3Pointer},
+ * compared with the DOM parser and Transformer used before. Does not need an
+ * iDempiere database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PointerBenchmark {
+
+	@Param({ "1", "20", "200" })
+	public int entryCount;
+
+	private byte[] xml;
+
+	@Setup
+	public void setup() {
+		S3Pointer pointer = newPointer();
+		xml = pointer.toXML();
+	}
+
+	@Benchmark
+	public void parse(Blackhole blackhole) {
+		S3Pointer pointer = S3Pointer.parse(xml);
+		for (S3Pointer.Entry entry : pointer.getEntries()) {
+			blackhole.consume(entry.getFile());
+			blackhole.consume(entry.getName());
+			blackhole.consume(entry.getSize());
+		}
+	}
+
+	@Benchmark
+	public byte[] write() {
+		return newPointer().toXML();
+	}
+
+	@Benchmark
+	public void parseDOM(Blackhole blackhole) throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+		Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+		NodeList entries = document.getElementsByTagName("entry");
+		for (int i = 0; i < entries.getLength(); i++) {
+			NamedNodeMap attributes = entries.item(i).getAttributes();
+			blackhole.consume(attributes.getNamedItem("file").getNodeValue());
+			blackhole.consume(attributes.getNamedItem("name").getNodeValue());
+			blackhole.consume(Long.parseLong(attributes.getNamedItem("size").getNodeValue()));
+		}
+	}
+
+	@Benchmark
+	public byte[] writeDOM() throws Exception {
+		Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		Element root = document.createElement(S3Pointer.ROOT_ATTACHMENTS);
+		document.appendChild(root);
+		for (int i = 0; i < entryCount; i++) {
+			Element entry = document.createElement("entry");
+			entry.setAttribute("name", getName(i));
+			entry.setAttribute("size", String.valueOf(1000L * i));
+			entry.setAttribute("file", getFile(i));
+			root.appendChild(entry);
+		}
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		TransformerFactory.newInstance().newTransformer().transform(new DOMSource(document), new StreamResult(bos));
+		return bos.toByteArray();
+	}
+
+	private S3Pointer newPointer() {
+		S3Pointer pointer = new S3Pointer(S3Pointer.ROOT_ATTACHMENTS);
+		for (int i = 0; i < entryCount; i++)
+			pointer.addEntry().setName(getName(i)).setSize(1000L * i).setFile(getFile(i));
+		return pointer;
+	}
+
+	private static String getName(int index) {
+		return "Invoice " + index + ".pdf";
+	}
+
+	private static String getFile(int index) {
+		return "%ATTACHMENT_FOLDER%1000000/318/1000123/Invoice " + index + ".pdf";
+	}
+}
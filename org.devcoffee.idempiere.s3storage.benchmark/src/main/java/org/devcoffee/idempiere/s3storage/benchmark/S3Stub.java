@@ -0,0 +1,359 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process S3 compatible server for the benchmarks, so they run without
+ * network access and measure the plugin rather than a remote service.
+ * <p>
+ * Objects are kept in memory. Path style requests are supported for GET,
+ * HEAD (with If-None-Match and Range), PUT (plain or aws-chunked), DELETE,
+ * DeleteObjects, ListObjectsV2 (without paging), CopyObject and multipart
+ * uploads. Signatures are not checked.
+ */
+public class S3Stub implements Closeable {
+
+	private static final Pattern KEY_PATTERN = Pattern.compile("<Key>(.*?)</Key>");
+	private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+	private final Map<String, StoredObject> objects = new ConcurrentHashMap<>();
+	private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+	private final AtomicLong requests = new AtomicLong();
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	/** Latency added to each request, in milliseconds */
+	private volatile int latencyMillis;
+
+	public S3Stub() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/", this::handle);
+		executor = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "S3Stub");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * @return endpoint URL of the stub
+	 */
+	public String getEndpoint() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * @return number of requests received
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return number of objects stored
+	 */
+	public int getObjectCount() {
+		return objects.size();
+	}
+
+	/**
+	 * @param latencyMillis latency added to each request, to simulate a remote
+	 *                      service
+	 */
+	public void setLatency(int latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	/**
+	 * Read an object directly, without a request
+	 *
+	 * @return content, null when there is no such object
+	 */
+	public byte[] getObject(String bucket, String key) {
+		StoredObject object = objects.get(bucket + "/" + key);
+		return object != null ? object.data : null;
+	}
+
+	/**
+	 * Store an object directly, without a request
+	 */
+	public void putObject(String bucket, String key, byte[] data) {
+		objects.put(bucket + "/" + key, new StoredObject(data, md5(data)));
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		try {
+			if (latencyMillis > 0)
+				Thread.sleep(latencyMillis);
+			URI uri = exchange.getRequestURI();
+			String path = uri.getRawPath().substring(1);
+			int slash = path.indexOf('/');
+			String bucket = slash < 0 ? path : path.substring(0, slash);
+			String key = slash < 0 ? "" : decode(path.substring(slash + 1));
+			Map<String, String> query = parseQuery(uri);
+			String method = exchange.getRequestMethod();
+			String name = bucket + "/" + key;
+
+			if ("PUT".equals(method) && query.containsKey("partNumber")) {
+				byte[] data = readBody(exchange);
+				Map<Integer, byte[]> parts = uploads.get(query.get("uploadId"));
+				if (parts == null) {
+					sendError(exchange, 404, "NoSuchUpload");
+					return;
+				}
+				parts.put(Integer.parseInt(query.get("partNumber")), data);
+				exchange.getResponseHeaders().add("ETag", md5(data));
+				send(exchange, 200, null);
+			} else if ("PUT".equals(method) && exchange.getRequestHeaders().containsKey("x-amz-copy-source")) {
+				String source = decode(exchange.getRequestHeaders().getFirst("x-amz-copy-source"));
+				StoredObject object = objects.get(source.startsWith("/") ? source.substring(1) : source);
+				if (object == null) {
+					sendError(exchange, 404, "NoSuchKey");
+					return;
+				}
+				objects.put(name, object);
+				send(exchange, 200, ("<CopyObjectResult><ETag>" + object.eTag + "</ETag></CopyObjectResult>").getBytes(StandardCharsets.UTF_8));
+			} else if ("PUT".equals(method)) {
+				byte[] data = readBody(exchange);
+				StoredObject object = new StoredObject(data, md5(data));
+				for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+					String headerName = header.getKey().toLowerCase();
+					if (headerName.startsWith("x-amz-meta-") || headerName.equals("content-type") || headerName.equals("content-encoding"))
+						object.metadata.put(headerName, header.getValue().get(0));
+				}
+				objects.put(name, object);
+				exchange.getResponseHeaders().add("ETag", object.eTag);
+				send(exchange, 200, null);
+			} else if ("POST".equals(method) && query.containsKey("uploads")) {
+				String uploadId = UUID.randomUUID().toString();
+				uploads.put(uploadId, new ConcurrentSkipListMap<>());
+				send(exchange, 200, ("<InitiateMultipartUploadResult><Bucket>" + bucket + "</Bucket><Key>" + escape(key)
+						+ "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>").getBytes(StandardCharsets.UTF_8));
+			} else if ("POST".equals(method) && query.containsKey("uploadId")) {
+				readBody(exchange);
+				Map<Integer, byte[]> parts = uploads.remove(query.get("uploadId"));
+				if (parts == null) {
+					sendError(exchange, 404, "NoSuchUpload");
+					return;
+				}
+				ByteArrayOutputStream content = new ByteArrayOutputStream();
+				for (byte[] part : parts.values())
+					content.write(part);
+				StoredObject object = new StoredObject(content.toByteArray(), "\"" + UUID.randomUUID() + "-" + parts.size() + "\"");
+				objects.put(name, object);
+				send(exchange, 200, ("<CompleteMultipartUploadResult><Bucket>" + bucket + "</Bucket><Key>" + escape(key)
+						+ "</Key><ETag>" + object.eTag + "</ETag></CompleteMultipartUploadResult>").getBytes(StandardCharsets.UTF_8));
+			} else if ("DELETE".equals(method) && query.containsKey("uploadId")) {
+				uploads.remove(query.get("uploadId"));
+				send(exchange, 204, null);
+			} else if ("POST".equals(method) && query.containsKey("delete")) {
+				String xml = new String(readBody(exchange), StandardCharsets.UTF_8);
+				StringBuilder result = new StringBuilder("<DeleteResult>");
+				Matcher matcher = KEY_PATTERN.matcher(xml);
+				while (matcher.find()) {
+					objects.remove(bucket + "/" + unescape(matcher.group(1)));
+					if (!xml.contains("<Quiet>true</Quiet>"))
+						result.append("<Deleted><Key>").append(matcher.group(1)).append("</Key></Deleted>");
+				}
+				result.append("</DeleteResult>");
+				send(exchange, 200, result.toString().getBytes(StandardCharsets.UTF_8));
+			} else if ("GET".equals(method) && key.isEmpty()) {
+				String prefix = query.getOrDefault("prefix", "");
+				StringBuilder result = new StringBuilder("<ListBucketResult><Name>").append(bucket)
+						.append("</Name><Prefix>").append(escape(prefix)).append("</Prefix><IsTruncated>false</IsTruncated>");
+				int count = 0;
+				for (Map.Entry<String, StoredObject> entry : new TreeMap<>(objects).entrySet()) {
+					if (!entry.getKey().startsWith(bucket + "/" + prefix))
+						continue;
+					count++;
+					result.append("<Contents><Key>").append(escape(entry.getKey().substring(bucket.length() + 1)))
+							.append("</Key><Size>").append(entry.getValue().data.length)
+							.append("</Size><ETag>").append(entry.getValue().eTag)
+							.append("</ETag><LastModified>2024-01-01T00:00:00.000Z</LastModified></Contents>");
+				}
+				result.append("<KeyCount>").append(count).append("</KeyCount></ListBucketResult>");
+				send(exchange, 200, result.toString().getBytes(StandardCharsets.UTF_8));
+			} else if ("GET".equals(method) || "HEAD".equals(method)) {
+				StoredObject object = objects.get(name);
+				if (object == null) {
+					sendError(exchange, 404, "NoSuchKey");
+					return;
+				}
+				exchange.getResponseHeaders().add("ETag", object.eTag);
+				exchange.getResponseHeaders().add("Last-Modified", "Mon, 01 Jan 2024 00:00:00 GMT");
+				for (Map.Entry<String, String> metadata : object.metadata.entrySet())
+					exchange.getResponseHeaders().add(metadata.getKey(), metadata.getValue());
+				if (object.eTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					send(exchange, 304, null);
+					return;
+				}
+				if ("HEAD".equals(method)) {
+					exchange.getResponseHeaders().add("Content-Length", String.valueOf(object.data.length));
+					send(exchange, 200, null);
+					return;
+				}
+				String range = exchange.getRequestHeaders().getFirst("Range");
+				Matcher matcher = range != null ? RANGE_PATTERN.matcher(range) : null;
+				if (matcher != null && matcher.matches()) {
+					int start = Integer.parseInt(matcher.group(1));
+					int end = matcher.group(2).isEmpty() ? object.data.length - 1
+							: Math.min(object.data.length - 1, Integer.parseInt(matcher.group(2)));
+					exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + object.data.length);
+					send(exchange, 206, Arrays.copyOfRange(object.data, start, end + 1));
+					return;
+				}
+				send(exchange, 200, object.data);
+			} else if ("DELETE".equals(method)) {
+				objects.remove(name);
+				send(exchange, 204, null);
+			} else {
+				sendError(exchange, 400, "NotImplemented");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			sendError(exchange, 500, "InternalError");
+		} catch (RuntimeException e) {
+			sendError(exchange, 500, "InternalError");
+		}
+	}
+
+	/**
+	 * Read a request body, decoding the aws-chunked encoding used by signed
+	 * streaming uploads
+	 */
+	private static byte[] readBody(HttpExchange exchange) throws IOException {
+		byte[] raw = exchange.getRequestBody().readAllBytes();
+		String sha256 = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+		if (sha256 == null || !sha256.startsWith("STREAMING"))
+			return raw;
+		ByteArrayOutputStream content = new ByteArrayOutputStream(raw.length);
+		int position = 0;
+		while (position < raw.length) {
+			int lineEnd = position;
+			while (lineEnd < raw.length - 1 && !(raw[lineEnd] == '\r' && raw[lineEnd + 1] == '\n'))
+				lineEnd++;
+			String header = new String(raw, position, lineEnd - position, StandardCharsets.US_ASCII);
+			int size = Integer.parseInt(header.split(";")[0].trim(), 16);
+			position = lineEnd + 2;
+			if (size == 0)
+				break;
+			content.write(raw, position, size);
+			position += size + 2;
+		}
+		return content.toByteArray();
+	}
+
+	private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+		// the connection is only reused once the request is read to its end
+		exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+		if (body == null || body.length == 0 || "HEAD".equals(exchange.getRequestMethod())) {
+			exchange.sendResponseHeaders(status, -1);
+		} else {
+			exchange.sendResponseHeaders(status, body.length);
+			exchange.getResponseBody().write(body);
+		}
+		exchange.close();
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String code) throws IOException {
+		exchange.getResponseHeaders().add("Content-Type", "application/xml");
+		send(exchange, status, ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>" + code + "</Code><Message>" + code
+				+ "</Message></Error>").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static Map<String, String> parseQuery(URI uri) {
+		Map<String, String> query = new HashMap<>();
+		String rawQuery = uri.getRawQuery();
+		if (rawQuery == null)
+			return query;
+		for (String parameter : rawQuery.split("&")) {
+			int equals = parameter.indexOf('=');
+			query.put(decode(equals < 0 ? parameter : parameter.substring(0, equals)),
+					equals < 0 ? "" : decode(parameter.substring(equals + 1)));
+		}
+		return query;
+	}
+
+	private static String decode(String value) {
+		return URLDecoder.decode(value.replace("+", "%2B"), StandardCharsets.UTF_8);
+	}
+
+	private static String escape(String value) {
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+	private static String unescape(String value) {
+		return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'").replace("&amp;", "&");
+	}
+
+	private static String md5(byte[] data) {
+		try {
+			StringBuilder hex = new StringBuilder("\"");
+			for (byte b : MessageDigest.getInstance("MD5").digest(data))
+				hex.append(String.format("%02x", b));
+			return hex.append('"').toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class StoredObject {
+		private final byte[] data;
+		private final String eTag;
+		private final Map<String, String> metadata = new TreeMap<>();
+
+		private StoredObject(byte[] data, String eTag) {
+			this.data = data;
+			this.eTag = eTag;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.benchmark;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.devcoffee.idempiere.s3storage.util.S3ReadResult;
+import org.devcoffee.idempiere.s3storage.util.S3Util;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+/**
+ * Object transfers through {@link S3Util} against the in-process
+ * {@link S3Stub}, for each HTTP client, object size and number of concurrent
+ * callers. Does not need an iDempiere database.
+ * <p>
+ * Each operation transfers {@code concurrency} objects at the same time, so
+ * the score of the throughput mode is in batches; the sample mode reports the
+ * latency percentiles of a batch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class S3UtilBenchmark {
+
+	private static final String BUCKET = "benchmark";
+	private static final int KEYS = 64;
+
+	@Param({ "1024", "65536", "1048576" })
+	public int objectSize;
+
+	@Param({ "1", "8" })
+	public int concurrency;
+
+	@Param({ "URLConnection", "Apache" })
+	public String httpClient;
+
+	/** Latency added by the stub to each request, in milliseconds */
+	@Param({ "0" })
+	public int latency;
+
+	private S3Stub stub;
+	private S3Client s3Client;
+	private ExecutorService executor;
+	private byte[] data;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		stub = new S3Stub();
+		stub.setLatency(latency);
+		data = new byte[objectSize];
+		new Random(42).nextBytes(data);
+		for (int i = 0; i < KEYS; i++)
+			stub.putObject(BUCKET, getKey(i), data);
+
+		SdkHttpClient.Builder<?> builder;
+		if ("Apache".equals(httpClient))
+			builder = ApacheHttpClient.builder().maxConnections(Math.max(50, concurrency));
+		else
+			builder = UrlConnectionHttpClient.builder();
+		s3Client = S3Client.builder().region(Region.US_EAST_1)
+				.endpointOverride(URI.create(stub.getEndpoint()))
+				.credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("benchmark", "benchmark")))
+				.forcePathStyle(true)
+				.httpClientBuilder(builder).build();
+		executor = Executors.newFixedThreadPool(concurrency);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		executor.shutdownNow();
+		s3Client.close();
+		stub.close();
+	}
+
+	@Benchmark
+	public void read(Blackhole blackhole) throws Exception {
+		run(key -> {
+			S3ReadResult result = S3Util.readObject(s3Client, BUCKET, key);
+			if (!result.isFound())
+				throw new IllegalStateException("Not found: " + key);
+			blackhole.consume(result.getData());
+		});
+	}
+
+	@Benchmark
+	public void write() throws Exception {
+		run(key -> put(key));
+	}
+
+	@Benchmark
+	public void writeAndDelete() throws Exception {
+		run(key -> {
+			String temp = key + ".tmp";
+			put(temp);
+			s3Client.deleteObject(DeleteObjectRequest.builder().bucket(BUCKET).key(temp).build());
+		});
+	}
+
+	/**
+	 * Upload the data with the client, as the writes of {@link S3Util} need a
+	 * storage provider, see {@link StoreBenchmark}
+	 */
+	private void put(String key) {
+		s3Client.putObject(PutObjectRequest.builder().bucket(BUCKET).key(key).build(), RequestBody.fromBytes(data));
+	}
+
+	/**
+	 * Run the operation on {@code concurrency} keys at the same time
+	 */
+	private void run(Operation operation) throws Exception {
+		if (concurrency == 1) {
+			operation.run(nextKey());
+			return;
+		}
+		List<Future<?>> futures = new ArrayList<>(concurrency);
+		for (int i = 0; i < concurrency; i++) {
+			String key = nextKey();
+			futures.add(executor.submit(() -> {
+				operation.run(key);
+				return null;
+			}));
+		}
+		for (Future<?> future : futures)
+			future.get();
+	}
+
+	private String nextKey() {
+		next = (next + 1) % KEYS;
+		return getKey(next);
+	}
+
+	private static String getKey(int index) {
+		return "ATTACHMENT/1000000/object-" + index;
+	}
+
+	@FunctionalInterface
+	private interface Operation {
+		void run(String key) throws Exception;
+	}
+}
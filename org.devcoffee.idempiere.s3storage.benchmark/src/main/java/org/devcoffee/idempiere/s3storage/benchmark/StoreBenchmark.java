@@ -0,0 +1,209 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.compiere.Adempiere;
+import org.compiere.model.MArchive;
+import org.compiere.model.MAttachment;
+import org.compiere.model.MImage;
+import org.compiere.util.Env;
+import org.devcoffee.idempiere.s3storage.model.ArchiveS3Compatible;
+import org.devcoffee.idempiere.s3storage.model.AttachmentS3Compatible;
+import org.devcoffee.idempiere.s3storage.model.ImageS3Compatible;
+import org.devcoffee.idempiere.s3storage.util.S3ClientRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Load, save and delete through the attachment, image and archive stores
+ * against the in-process {@link S3Stub}.
+ * <p>
+ * The model classes read their metadata from the database, so these
+ * benchmarks start iDempiere with the properties file given with
+ * {@code -DPropertyFile=...}. Nothing is saved in the database. Concurrent
+ * callers are set with the JMH threads option ({@code -t}), each thread has
+ * its own stores and records.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreBenchmark {
+
+	private static final String BUCKET = "benchmark";
+
+	/**
+	 * Stub and storage provider shared by the threads
+	 */
+	@State(Scope.Benchmark)
+	public static class Storage {
+
+		@Param({ "1024", "65536", "1048576" })
+		public int objectSize;
+
+		@Param({ "1", "10" })
+		public int entryCount;
+
+		@Param({ "URLConnection" })
+		public String httpClient;
+
+		@Param({ "N" })
+		public String lazyLoad;
+
+		S3Stub stub;
+		BenchmarkProvider prov;
+		byte[] data;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			Adempiere.startup(false);
+			stub = new S3Stub();
+			prov = new BenchmarkProvider(Env.getCtx(), stub.getEndpoint(), BUCKET)
+					.set("S3HttpClient", httpClient)
+					.set("S3LazyLoad", lazyLoad)
+					// measure the transfers, not the local caches
+					.set("S3DiskCache", "N")
+					.set("S3ImageCacheSizeMB", "0")
+					.set("S3WriteBehind", "N");
+			data = new byte[objectSize];
+			new Random(42).nextBytes(data);
+			S3ClientRegistry.register();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			S3ClientRegistry.unregister();
+			stub.close();
+		}
+	}
+
+	/**
+	 * Stores and records of one thread, saved once so the load benchmarks
+	 * have something to read
+	 */
+	@State(Scope.Thread)
+	public static class Records {
+
+		private static int nextRecord = 1000000;
+
+		AttachmentS3Compatible attachmentStore = new AttachmentS3Compatible();
+		ImageS3Compatible imageStore = new ImageS3Compatible();
+		ArchiveS3Compatible archiveStore = new ArchiveS3Compatible();
+		MAttachment attachment;
+		MImage image;
+		MArchive archive;
+
+		@Setup(Level.Trial)
+		public void setup(Storage storage) {
+			attachment = newAttachment(storage);
+			if (!attachmentStore.save(attachment, storage.prov))
+				throw new IllegalStateException("Attachment not saved");
+			image = new MImage(Env.getCtx(), 0, null);
+			imageStore.save(image, storage.prov, storage.data);
+			imageStore.flush(image, storage.prov);
+			archive = new MArchive(Env.getCtx(), 0, null);
+			archiveStore.save(archive, storage.prov, storage.data);
+			archiveStore.flush(archive, storage.prov);
+		}
+
+		MAttachment newAttachment(Storage storage) {
+			MAttachment attachment = new MAttachment(Env.getCtx(), 0, null);
+			attachment.setAD_Table_ID(MImage.Table_ID);
+			attachment.setRecord_ID(nextRecord());
+			for (int i = 0; i < storage.entryCount; i++)
+				attachment.addEntry("entry-" + i + ".bin", storage.data);
+			return attachment;
+		}
+
+		private static synchronized int nextRecord() {
+			return nextRecord++;
+		}
+	}
+
+	@Benchmark
+	public boolean attachmentLoad(Storage storage, Records records) {
+		MAttachment attachment = new MAttachment(Env.getCtx(), 0, null);
+		attachment.setAD_Table_ID(records.attachment.getAD_Table_ID());
+		attachment.setRecord_ID(records.attachment.getRecord_ID());
+		attachment.setBinaryData(records.attachment.getBinaryData());
+		if (!records.attachmentStore.loadLOBData(attachment, storage.prov))
+			throw new IllegalStateException("Attachment not loaded");
+		// lazy entries are fetched on first access
+		return attachment.getEntry(attachment.getEntryCount() - 1).getData() != null;
+	}
+
+	@Benchmark
+	public boolean attachmentSave(Storage storage, Records records) {
+		records.attachment.setBinaryData(null);
+		if (!records.attachmentStore.save(records.attachment, storage.prov))
+			throw new IllegalStateException("Attachment not saved");
+		return true;
+	}
+
+	@Benchmark
+	public boolean attachmentSaveAndDelete(Storage storage, Records records) {
+		MAttachment attachment = records.newAttachment(storage);
+		if (!records.attachmentStore.save(attachment, storage.prov))
+			throw new IllegalStateException("Attachment not saved");
+		return records.attachmentStore.delete(attachment, storage.prov);
+	}
+
+	@Benchmark
+	public byte[] imageLoad(Storage storage, Records records) {
+		return records.imageStore.load(records.image, storage.prov);
+	}
+
+	@Benchmark
+	public byte[] imageSave(Storage storage, Records records) {
+		records.imageStore.save(records.image, storage.prov, storage.data);
+		records.imageStore.flush(records.image, storage.prov);
+		return records.image.getByteData();
+	}
+
+	@Benchmark
+	public byte[] archiveLoad(Storage storage, Records records) {
+		return records.archiveStore.loadLOBData(records.archive, storage.prov);
+	}
+
+	@Benchmark
+	public byte[] archiveSave(Storage storage, Records records) {
+		records.archiveStore.save(records.archive, storage.prov, storage.data);
+		records.archiveStore.flush(records.archive, storage.prov);
+		return records.archive.getByteData();
+	}
+
+	@Benchmark
+	public boolean archiveSaveAndDelete(Storage storage, Records records) {
+		MArchive archive = new MArchive(Env.getCtx(), 0, null);
+		records.archiveStore.save(archive, storage.prov, storage.data);
+		records.archiveStore.flush(archive, storage.prov);
+		return records.archiveStore.deleteArchive(archive, storage.prov);
+	}
+}
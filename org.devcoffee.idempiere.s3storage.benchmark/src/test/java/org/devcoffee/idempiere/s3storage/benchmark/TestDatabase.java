@@ -0,0 +1,45 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+
+package org.devcoffee.idempiere.s3storage.benchmark;
+
+import org.compiere.Adempiere;
+import org.junit.jupiter.api.Assumptions;
+
+/**
+ * Start of iDempiere for the tests using the model classes, which read their
+ * metadata from the database. Like {@link StoreBenchmark} nothing is saved in
+ * the database; the tests are skipped unless the properties file is given
+ * with {@code -DPropertyFile=...}.
+ */
+public class TestDatabase {
+
+	private static boolean started;
+
+	private TestDatabase() {
+	}
+
+	/**
+	 * Start iDempiere once, or skip the calling test when no database is set
+	 */
+	public static synchronized void startup() {
+		Assumptions.assumeTrue(System.getProperty("PropertyFile") != null,
+				"needs a database, set -DPropertyFile=<idempiere.properties>");
+		if (!started) {
+			Adempiere.startup(false);
+			started = true;
+		}
+	}
+}
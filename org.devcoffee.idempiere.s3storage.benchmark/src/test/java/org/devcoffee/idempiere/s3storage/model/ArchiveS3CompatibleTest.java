@@ -0,0 +1,151 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+
+package org.devcoffee.idempiere.s3storage.model;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.compiere.model.MArchive;
+import org.compiere.util.Env;
+import org.compiere.util.Trx;
+import org.devcoffee.idempiere.s3storage.benchmark.BenchmarkProvider;
+import org.devcoffee.idempiere.s3storage.benchmark.S3Stub;
+import org.devcoffee.idempiere.s3storage.benchmark.TestDatabase;
+import org.devcoffee.idempiere.s3storage.util.S3ClientRegistry;
+import org.devcoffee.idempiere.s3storage.util.S3Config;
+import org.devcoffee.idempiere.s3storage.util.S3Pointer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Saves of an archive in a transaction after the key layout changed: the
+ * object of the committed pointer is deleted once the transaction commits,
+ * the object written with the new layout when it rolls back. The archive
+ * record itself is not saved.
+ */
+public class ArchiveS3CompatibleTest {
+
+	private static final String BUCKET = "test";
+	private static final String FOLDER = "test";
+
+	private static S3Stub stub;
+	private static int nextArchiveID = 50000000;
+
+	private final ArchiveS3Compatible store = new ArchiveS3Compatible();
+
+	@BeforeAll
+	public static void setup() throws Exception {
+		TestDatabase.startup();
+		stub = new S3Stub();
+		S3ClientRegistry.register();
+	}
+
+	@AfterAll
+	public static void tearDown() {
+		if (stub != null) {
+			S3ClientRegistry.unregister();
+			stub.close();
+		}
+	}
+
+	@Test
+	public void changeLayoutInTrxThenCommit() {
+		BenchmarkProvider prov = newProvider();
+		MArchive archive = newArchive();
+		store.save(archive, prov, bytes("v1"));
+		String committedKey = getKey(archive);
+		Trx trx = Trx.get(Trx.createTrxName("S3Test"), true);
+		try {
+			trx.getConnection();
+			archive.set_TrxName(trx.getTrxName());
+			prov.set(S3Config.KEY_LAYOUT, S3Config.KEY_LAYOUT_HASHED);
+			store.save(archive, prov, bytes("v2"));
+			String newKey = getKey(archive);
+			assertNotEquals(committedKey, newKey);
+			assertArrayEquals(bytes("v1"), stub.getObject(BUCKET, committedKey), "committed object deleted before commit");
+
+			assertTrue(trx.commit());
+			assertNull(stub.getObject(BUCKET, committedKey), "replaced object kept after commit");
+			assertArrayEquals(bytes("v2"), stub.getObject(BUCKET, newKey));
+		} finally {
+			trx.close();
+		}
+	}
+
+	@Test
+	public void changeLayoutInTrxThenRollback() {
+		BenchmarkProvider prov = newProvider();
+		MArchive archive = newArchive();
+		store.save(archive, prov, bytes("v1"));
+		String committedKey = getKey(archive);
+		Trx trx = Trx.get(Trx.createTrxName("S3Test"), true);
+		try {
+			trx.getConnection();
+			archive.set_TrxName(trx.getTrxName());
+			prov.set(S3Config.KEY_LAYOUT, S3Config.KEY_LAYOUT_HASHED);
+			store.save(archive, prov, bytes("v2"));
+			String newKey = getKey(archive);
+
+			assertTrue(trx.rollback());
+			assertArrayEquals(bytes("v1"), stub.getObject(BUCKET, committedKey), "committed object lost on rollback");
+			assertNull(stub.getObject(BUCKET, newKey), "object of the new layout kept after rollback");
+		} finally {
+			trx.close();
+		}
+	}
+
+	private static BenchmarkProvider newProvider() {
+		BenchmarkProvider prov = new BenchmarkProvider(Env.getCtx(), stub.getEndpoint(), BUCKET)
+				.set("S3DiskCache", "N")
+				.set("S3WriteBehind", "N")
+				.set("S3Compression", "None")
+				.set(S3Config.KEY_LAYOUT, S3Config.KEY_LAYOUT_SEQUENTIAL);
+		prov.setFolder(FOLDER);
+		return prov;
+	}
+
+	/**
+	 * @return archive with an ID, as loaded from the database
+	 */
+	private static MArchive newArchive() {
+		final int id = nextArchiveID++;
+		return new MArchive(Env.getCtx(), 0, null) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public int get_ID() {
+				return id;
+			}
+		};
+	}
+
+	/**
+	 * @return key of the object the pointer of the archive refers to
+	 */
+	private static String getKey(MArchive archive) {
+		S3Pointer pointer = S3Pointer.parse(archive.getByteData());
+		return pointer.getEntries().get(0).getFile().replace("%ARCHIVE_FOLDER%", FOLDER + "/");
+	}
+
+	private static byte[] bytes(String content) {
+		return content.getBytes(StandardCharsets.UTF_8);
+	}
+}
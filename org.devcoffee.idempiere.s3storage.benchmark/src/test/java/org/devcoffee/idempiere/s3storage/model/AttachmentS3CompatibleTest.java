@@ -0,0 +1,158 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+
+package org.devcoffee.idempiere.s3storage.model;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import org.compiere.model.MAttachment;
+import org.compiere.model.MAttachmentEntry;
+import org.compiere.util.Env;
+import org.compiere.util.Trx;
+import org.devcoffee.idempiere.s3storage.benchmark.BenchmarkProvider;
+import org.devcoffee.idempiere.s3storage.benchmark.S3Stub;
+import org.devcoffee.idempiere.s3storage.benchmark.TestDatabase;
+import org.devcoffee.idempiere.s3storage.util.S3ClientRegistry;
+import org.devcoffee.idempiere.s3storage.util.S3Pointer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Saves of an attachment in a transaction: the objects of the committed
+ * pointer are never overwritten, they are deleted once the transaction
+ * commits, and the objects of the transaction are deleted when it rolls
+ * back. The attachment record itself is not saved.
+ */
+public class AttachmentS3CompatibleTest {
+
+	private static final String BUCKET = "test";
+	private static final String FOLDER = "test";
+	private static final int AD_TABLE_ID = 100;
+	private static final String ENTRY = "entry.txt";
+
+	private static S3Stub stub;
+	private static BenchmarkProvider prov;
+	private static int nextRecordID = 50000000;
+
+	private final AttachmentS3Compatible store = new AttachmentS3Compatible();
+
+	@BeforeAll
+	public static void setup() throws Exception {
+		TestDatabase.startup();
+		stub = new S3Stub();
+		prov = new BenchmarkProvider(Env.getCtx(), stub.getEndpoint(), BUCKET)
+				.set("S3DiskCache", "N")
+				.set("S3WriteBehind", "N")
+				.set("S3LazyLoad", "N")
+				.set("S3ContentAddressed", "N")
+				.set("S3Compression", "None");
+		prov.setFolder(FOLDER);
+		S3ClientRegistry.register();
+	}
+
+	@AfterAll
+	public static void tearDown() {
+		if (stub != null) {
+			S3ClientRegistry.unregister();
+			stub.close();
+		}
+	}
+
+	@Test
+	public void saveTwiceInTrxThenCommit() {
+		MAttachment attach = newCommittedAttachment("v1");
+		String committedKey = getKey(attach);
+		Trx trx = Trx.get(Trx.createTrxName("S3Test"), true);
+		try {
+			trx.getConnection();
+			attach.set_TrxName(trx.getTrxName());
+			save(attach, "v2");
+			String firstKey = getKey(attach);
+			save(attach, "v3");
+			String secondKey = getKey(attach);
+			assertNotEquals(committedKey, firstKey);
+			assertNotEquals(committedKey, secondKey);
+			assertNotEquals(firstKey, secondKey);
+			assertArrayEquals(bytes("v1"), stub.getObject(BUCKET, committedKey), "committed object overwritten");
+
+			assertTrue(trx.commit());
+			assertNull(stub.getObject(BUCKET, committedKey), "replaced object kept after commit");
+			assertNull(stub.getObject(BUCKET, firstKey), "object of the first save kept after commit");
+			assertArrayEquals(bytes("v3"), stub.getObject(BUCKET, secondKey));
+		} finally {
+			trx.close();
+		}
+	}
+
+	@Test
+	public void saveTwiceInTrxThenRollback() {
+		MAttachment attach = newCommittedAttachment("v1");
+		String committedKey = getKey(attach);
+		Trx trx = Trx.get(Trx.createTrxName("S3Test"), true);
+		try {
+			trx.getConnection();
+			attach.set_TrxName(trx.getTrxName());
+			save(attach, "v2");
+			String firstKey = getKey(attach);
+			save(attach, "v3");
+			String secondKey = getKey(attach);
+
+			assertTrue(trx.rollback());
+			assertArrayEquals(bytes("v1"), stub.getObject(BUCKET, committedKey), "committed object lost on rollback");
+			assertNull(stub.getObject(BUCKET, firstKey), "object of the first save kept after rollback");
+			assertNull(stub.getObject(BUCKET, secondKey), "object of the second save kept after rollback");
+		} finally {
+			trx.close();
+		}
+	}
+
+	/**
+	 * @return attachment saved without a transaction, as committed before
+	 */
+	private MAttachment newCommittedAttachment(String content) {
+		MAttachment attach = new MAttachment(Env.getCtx(), AD_TABLE_ID, nextRecordID++, null);
+		attach.m_items = new ArrayList<MAttachmentEntry>();
+		save(attach, content);
+		return attach;
+	}
+
+	/**
+	 * Replace the content of the entry and save the attachment
+	 */
+	private void save(MAttachment attach, String content) {
+		attach.m_items.clear();
+		attach.m_items.add(new MAttachmentEntry(ENTRY, bytes(content), 1));
+		assertTrue(store.save(attach, prov));
+	}
+
+	/**
+	 * @return key of the object the pointer of the attachment refers to
+	 */
+	private static String getKey(MAttachment attach) {
+		S3Pointer pointer = S3Pointer.parse(attach.getBinaryData());
+		return pointer.getEntries().get(0).getFile().replace(MAttachment.ATTACHMENT_FOLDER_PLACEHOLDER, FOLDER + "/");
+	}
+
+	private static byte[] bytes(String content) {
+		return content.getBytes(StandardCharsets.UTF_8);
+	}
+}
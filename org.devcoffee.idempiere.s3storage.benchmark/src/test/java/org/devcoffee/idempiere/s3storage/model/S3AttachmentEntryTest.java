@@ -0,0 +1,117 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+
+package org.devcoffee.idempiere.s3storage.model;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import org.compiere.util.Env;
+import org.devcoffee.idempiere.s3storage.benchmark.BenchmarkProvider;
+import org.devcoffee.idempiere.s3storage.benchmark.S3Stub;
+import org.devcoffee.idempiere.s3storage.benchmark.TestDatabase;
+import org.devcoffee.idempiere.s3storage.util.S3ClientRegistry;
+import org.devcoffee.idempiere.s3storage.util.S3Config;
+import org.devcoffee.idempiere.s3storage.util.S3StorageException;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Entries of an attachment loaded on first access: a missing object becomes
+ * the ~name~ placeholder with one request, a failed read throws and is tried
+ * again, and the content is read through the disk cache.
+ */
+public class S3AttachmentEntryTest {
+
+	private static final String BUCKET = "test";
+
+	private static S3Stub stub;
+
+	@TempDir
+	Path directory;
+
+	@BeforeAll
+	public static void setup() throws Exception {
+		TestDatabase.startup();
+		stub = new S3Stub();
+		S3ClientRegistry.register();
+	}
+
+	@AfterAll
+	public static void tearDown() {
+		if (stub != null) {
+			S3ClientRegistry.unregister();
+			stub.close();
+		}
+	}
+
+	@Test
+	public void missingObjectPlaceholder() throws Exception {
+		S3AttachmentEntry entry = new S3AttachmentEntry("missing.txt", 0, newProvider(), "test/missing.txt", 10);
+		long requests = stub.getRequests();
+		try (InputStream in = entry.getInputStream()) {
+			assertEquals(0, in.readAllBytes().length);
+		}
+		assertEquals("~missing.txt~", entry.getName());
+		assertEquals(1, stub.getRequests() - requests, "requests to read a missing object");
+	}
+
+	@Test
+	public void failedReadThrows() throws Exception {
+		String endpoint;
+		try (S3Stub stopped = new S3Stub()) {
+			endpoint = stopped.getEndpoint();
+		}
+		BenchmarkProvider prov = new BenchmarkProvider(Env.getCtx(), endpoint, BUCKET).set(S3Config.MAX_RETRIES, "0");
+		S3AttachmentEntry entry = new S3AttachmentEntry("a.txt", 0, prov, "test/a.txt", 1);
+		// the settings of a provider are read again once it is saved
+		S3ClientRegistry.invalidate(prov.getAD_StorageProvider_ID());
+		try {
+			assertThrows(S3StorageException.class, entry::getInputStream);
+			assertFalse(entry.isLoaded(), "loaded after a failed read");
+			assertEquals("a.txt", entry.getName());
+		} finally {
+			S3ClientRegistry.invalidate(prov.getAD_StorageProvider_ID());
+		}
+	}
+
+	@Test
+	public void readThroughDiskCache() throws Exception {
+		byte[] data = "cached".getBytes(StandardCharsets.UTF_8);
+		stub.putObject(BUCKET, "test/cached.txt", data);
+		BenchmarkProvider prov = newProvider().set(S3Config.DISK_CACHE, "Y")
+				.set(S3Config.DISK_CACHE_DIRECTORY, directory.toString())
+				.set(S3Config.DISK_CACHE_REVALIDATE, "600");
+		try (InputStream in = new S3AttachmentEntry("cached.txt", 0, prov, "test/cached.txt", data.length).getInputStream()) {
+			assertArrayEquals(data, in.readAllBytes());
+		}
+		long requests = stub.getRequests();
+		S3AttachmentEntry entry = new S3AttachmentEntry("cached.txt", 0, prov, "test/cached.txt", data.length);
+		assertArrayEquals(data, entry.getDataAsync().get());
+		assertEquals(0, stub.getRequests() - requests, "requests to read a cached object");
+	}
+
+	private static BenchmarkProvider newProvider() {
+		return new BenchmarkProvider(Env.getCtx(), stub.getEndpoint(), BUCKET);
+	}
+}
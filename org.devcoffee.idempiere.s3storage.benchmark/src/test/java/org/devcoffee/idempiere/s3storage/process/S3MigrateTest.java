@@ -0,0 +1,84 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+
+package org.devcoffee.idempiere.s3storage.process;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checkpoints of the migration: a run that stopped or had failed records
+ * resumes after the last record migrated before the first failure, so every
+ * record is migrated once all the runs succeed. Runs without a database.
+ */
+public class S3MigrateTest {
+
+	private static final int[] IDS = { 1000001, 1000002, 1000005, 1000007, 1000008, 1000010 };
+
+	@Test
+	public void allMigrated() {
+		assertEquals(1000010, run(0, Set.of()));
+	}
+
+	@Test
+	public void stopsBeforeTheFirstFailure() {
+		assertEquals(1000002, run(0, Set.of(1000005, 1000008)));
+	}
+
+	@Test
+	public void firstRecordFailed() {
+		assertEquals(1000000, run(1000000, Set.of(1000001)));
+	}
+
+	@Test
+	public void resumesAfterTheCheckpoint() {
+		int checkpoint = run(0, Set.of(1000007));
+		assertEquals(1000005, checkpoint);
+		// the failed record is tried again, the ones after it were migrated
+		// and are skipped, still moving the checkpoint
+		assertEquals(1000007, after(checkpoint)[0]);
+		checkpoint = run(checkpoint, Set.of());
+		assertEquals(1000010, checkpoint);
+		assertEquals(0, after(checkpoint).length);
+	}
+
+	/**
+	 * Migrate the records after the checkpoint, as a run does
+	 *
+	 * @param failures records failing in this run
+	 * @return checkpoint after the run
+	 */
+	private static int run(int checkpoint, Set<Integer> failures) {
+		S3Migrate.Checkpoint lastDone = new S3Migrate.Checkpoint(checkpoint);
+		for (int id : after(checkpoint)) {
+			if (failures.contains(id))
+				lastDone.failed();
+			else
+				lastDone.done(id);
+		}
+		return lastDone.get();
+	}
+
+	/**
+	 * @return records selected by a run starting from the checkpoint
+	 */
+	private static int[] after(int checkpoint) {
+		return Arrays.stream(IDS).filter(id -> id > checkpoint).toArray();
+	}
+}
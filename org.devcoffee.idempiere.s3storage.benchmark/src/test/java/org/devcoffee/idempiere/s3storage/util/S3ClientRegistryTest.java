@@ -0,0 +1,114 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.compiere.util.Env;
+import org.devcoffee.idempiere.s3storage.benchmark.BenchmarkProvider;
+import org.devcoffee.idempiere.s3storage.benchmark.S3Stub;
+import org.devcoffee.idempiere.s3storage.benchmark.TestDatabase;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.services.s3.S3Client;
+
+/**
+ * Clients of the registry: kept while the connection settings of the
+ * provider are the same, replaced once by the threads asking for them when
+ * the settings change.
+ */
+public class S3ClientRegistryTest {
+
+	private static final String BUCKET = "test";
+	private static final int THREADS = 16;
+
+	private static S3Stub stub;
+
+	@BeforeAll
+	public static void setup() throws Exception {
+		TestDatabase.startup();
+		stub = new S3Stub();
+		S3ClientRegistry.register();
+	}
+
+	@AfterAll
+	public static void tearDown() {
+		if (stub != null) {
+			S3ClientRegistry.unregister();
+			stub.close();
+		}
+	}
+
+	@Test
+	public void sameSettingsSameClient() {
+		S3Client client = S3ClientRegistry.getClient(newProvider());
+		BenchmarkProvider updated = newProvider();
+		updated.setName("Renamed");
+		updated.set_ValueNoCheck("Updated", new Timestamp(System.currentTimeMillis() + 1000));
+		assertSame(client, S3ClientRegistry.getClient(updated));
+		S3ClientRegistry.invalidate(updated.getAD_StorageProvider_ID());
+	}
+
+	@Test
+	public void changedSettingsReplaceTheClientOnce() throws Exception {
+		BenchmarkProvider prov = newProvider();
+		S3Client client = S3ClientRegistry.getClient(prov);
+		// a saved change is read again at once
+		prov.set("S3Region", "eu-west-1");
+		prov.set_ValueNoCheck("Updated", new Timestamp(System.currentTimeMillis() + 1000));
+
+		Set<S3Client> clients = Collections.newSetFromMap(new IdentityHashMap<>());
+		CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<S3Client>> results = new ArrayList<>();
+			for (int i = 0; i < THREADS; i++) {
+				results.add(executor.submit(() -> {
+					start.await();
+					return S3ClientRegistry.getClient(prov);
+				}));
+			}
+			start.countDown();
+			for (Future<S3Client> result : results)
+				clients.add(result.get(30, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+			S3ClientRegistry.invalidate(prov.getAD_StorageProvider_ID());
+		}
+		assertEquals(1, clients.size(), "clients built for the same settings");
+		assertFalse(clients.contains(client), "client of the old settings kept");
+	}
+
+	private static BenchmarkProvider newProvider() {
+		return new BenchmarkProvider(Env.getCtx(), stub.getEndpoint(), BUCKET);
+	}
+}
@@ -0,0 +1,205 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.devcoffee.idempiere.s3storage.benchmark.S3Stub;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+/**
+ * Content of new records kept by one store shared by many threads, as the
+ * OSGi components are shared: each thread only sees the content of its own
+ * records, every record is written to the S3 stub with its own content, and
+ * the temporary files are deleted once written, replaced, discarded or
+ * dropped with their record. Runs without a database.
+ */
+public class S3PendingFlushTest {
+
+	private static final String BUCKET = "test";
+	private static final int THREADS = 16;
+	private static final int RECORDS = 50;
+	private static final long GC_TIMEOUT = 10000;
+
+	private static S3Stub stub;
+	private static S3Client s3Client;
+
+	private final S3PendingFlush<Object> pending = new S3PendingFlush<>();
+
+	@BeforeAll
+	public static void setup() throws Exception {
+		stub = new S3Stub();
+		s3Client = S3Client.builder()
+				.endpointOverride(URI.create(stub.getEndpoint()))
+				.region(Region.US_EAST_1)
+				.credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("test", "test")))
+				.forcePathStyle(true)
+				.httpClient(UrlConnectionHttpClient.create())
+				.build();
+	}
+
+	@AfterAll
+	public static void tearDown() {
+		if (s3Client != null)
+			s3Client.close();
+		if (stub != null)
+			stub.close();
+	}
+
+	@Test
+	public void threadsSeeOnlyTheirRecords() throws Exception {
+		// records of all the threads, kept while the others check them
+		Map<String, Object> records = new ConcurrentHashMap<>();
+		List<Path> files = new ArrayList<>();
+		CyclicBarrier kept = new CyclicBarrier(THREADS);
+		CyclicBarrier checked = new CyclicBarrier(THREADS);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<List<Path>>> results = new ArrayList<>();
+			for (int t = 0; t < THREADS; t++) {
+				final int thread = t;
+				results.add(executor.submit(() -> {
+					List<Path> threadFiles = new ArrayList<>();
+					for (int i = 0; i < RECORDS; i++) {
+						Object record = new Object();
+						byte[] data = content(thread, i);
+						// half of the records are kept in a file
+						if (i % 2 == 0) {
+							pending.put(record, data);
+						} else {
+							Path file = Files.createTempFile("s3test", ".data");
+							Files.write(file, data);
+							threadFiles.add(file);
+							pending.put(record, file);
+						}
+						records.put(thread + "/" + i, record);
+						kept.await(10, TimeUnit.SECONDS);
+
+						assertTrue(pending.isPending(), "content of the thread lost");
+						assertArrayEquals(data, pending.get(record), "content of another record");
+						for (int other = 0; other < THREADS; other++) {
+							if (other != thread)
+								assertNull(pending.get(records.get(other + "/" + i)), "content of another thread");
+						}
+						checked.await(10, TimeUnit.SECONDS);
+
+						// written once the record has an ID, as in flush
+						S3PendingFlush.Content content = pending.remove(record);
+						put(thread + "/" + i, content);
+						content.discard();
+						assertFalse(pending.isPending(), "content written still pending");
+						assertNull(pending.get(record));
+					}
+					return threadFiles;
+				}));
+			}
+			for (Future<List<Path>> result : results)
+				files.addAll(result.get(60, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+
+		for (int t = 0; t < THREADS; t++) {
+			for (int i = 0; i < RECORDS; i++)
+				assertArrayEquals(content(t, i), stub.getObject(BUCKET, t + "/" + i), "wrong content for " + t + "/" + i);
+		}
+		for (Path file : files)
+			assertFalse(Files.exists(file), "temporary file left: " + file);
+	}
+
+	@Test
+	public void replacedAndDiscardedFilesDeleted() throws Exception {
+		Object record = new Object();
+		Path first = tempFile(1);
+		Path second = tempFile(2);
+		pending.put(record, first);
+		pending.put(record, second);
+		assertFalse(Files.exists(first), "replaced file left");
+		assertArrayEquals(content(0, 2), pending.get(record));
+
+		pending.discard(record);
+		assertFalse(Files.exists(second), "discarded file left");
+		assertFalse(pending.isPending());
+	}
+
+	@Test
+	public void fileDeletedWithTheRecord() throws Exception {
+		Path file = tempFile(1);
+		keep(file);
+		// dropped once the record is collected and the thread uses the store again
+		long end = System.currentTimeMillis() + GC_TIMEOUT;
+		while (pending.isPending() && System.currentTimeMillis() < end) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		assertFalse(pending.isPending(), "content of a collected record still pending");
+		assertFalse(Files.exists(file), "file of a collected record left");
+	}
+
+	/**
+	 * Keep the content of a record no longer referenced once returning
+	 */
+	private void keep(Path file) {
+		pending.put(new Object(), file);
+		assertTrue(pending.isPending());
+	}
+
+	private void put(String key, S3PendingFlush.Content content) {
+		PutObjectRequest request = PutObjectRequest.builder().bucket(BUCKET).key(key).build();
+		s3Client.putObject(request, content.getFile() != null ? RequestBody.fromFile(content.getFile())
+				: RequestBody.fromBytes(content.getData()));
+	}
+
+	private static Path tempFile(int record) throws Exception {
+		Path file = Files.createTempFile("s3test", ".data");
+		Files.write(file, content(0, record));
+		return file;
+	}
+
+	/**
+	 * @return content of a record, different for every thread and record
+	 */
+	private static byte[] content(int thread, int record) {
+		return ByteBuffer.allocate(64).putInt(thread).putInt(record).array();
+	}
+}
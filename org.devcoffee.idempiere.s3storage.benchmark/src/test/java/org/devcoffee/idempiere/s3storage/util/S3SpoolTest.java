@@ -0,0 +1,158 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.compiere.util.Env;
+import org.compiere.util.Trx;
+import org.devcoffee.idempiere.s3storage.benchmark.BenchmarkProvider;
+import org.devcoffee.idempiere.s3storage.benchmark.S3Stub;
+import org.devcoffee.idempiere.s3storage.benchmark.TestDatabase;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Objects spooled in a transaction are uploaded once it commits and dropped
+ * when it rolls back; a spool left when write-behind is disabled is still read
+ * and uploaded.
+ */
+public class S3SpoolTest {
+
+	private static final String BUCKET = "test";
+	private static final long UPLOAD_TIMEOUT = 10000;
+
+	private static S3Stub stub;
+
+	@TempDir
+	Path directory;
+	private BenchmarkProvider prov;
+
+	@BeforeAll
+	public static void setup() throws Exception {
+		TestDatabase.startup();
+		stub = new S3Stub();
+		S3ClientRegistry.register();
+	}
+
+	@AfterAll
+	public static void tearDown() {
+		if (stub != null) {
+			S3ClientRegistry.unregister();
+			stub.close();
+		}
+	}
+
+	@BeforeEach
+	public void createProvider() {
+		prov = new BenchmarkProvider(Env.getCtx(), stub.getEndpoint(), BUCKET)
+				.set(S3Config.WRITE_BEHIND, "Y")
+				.set(S3Config.WRITE_BEHIND_DIRECTORY, directory.toString());
+	}
+
+	@AfterEach
+	public void closeSpools() {
+		S3Spool.shutdown();
+	}
+
+	@Test
+	public void spoolInTrxThenCommit() throws Exception {
+		Trx trx = Trx.get(Trx.createTrxName("S3Test"), true);
+		try {
+			trx.getConnection();
+			S3Spool spool = S3Spool.get(prov);
+			assertTrue(spool.spool(prov, BUCKET, "commit.pdf", bytes("v1"), null, trx.getTrxName()));
+			assertArrayEquals(bytes("v1"), spool.read(prov, BUCKET, "commit.pdf", trx.getTrxName()));
+			assertNull(spool.read(prov, BUCKET, "commit.pdf"), "object of the transaction read by another one");
+			Thread.sleep(500);
+			assertNull(stub.getObject(BUCKET, "commit.pdf"), "object uploaded before the commit");
+
+			assertTrue(trx.commit());
+			assertArrayEquals(bytes("v1"), awaitUpload("commit.pdf"));
+		} finally {
+			trx.close();
+		}
+	}
+
+	@Test
+	public void spoolInTrxThenRollback() throws Exception {
+		Trx trx = Trx.get(Trx.createTrxName("S3Test"), true);
+		try {
+			trx.getConnection();
+			S3Spool spool = S3Spool.get(prov);
+			assertTrue(spool.spool(prov, BUCKET, "rollback.pdf", bytes("v1"), null, trx.getTrxName()));
+
+			assertTrue(trx.rollback());
+			assertNull(spool.read(prov, BUCKET, "rollback.pdf", trx.getTrxName()));
+			Thread.sleep(500);
+			assertNull(stub.getObject(BUCKET, "rollback.pdf"), "object of a rolled back transaction uploaded");
+			assertEquals(0, getSpoolFiles(), "files of a rolled back transaction left in the spool");
+		} finally {
+			trx.close();
+		}
+	}
+
+	@Test
+	public void spoolLeftWhenDisabled() throws Exception {
+		// left by a previous run, not uploaded yet
+		S3Spool.get(prov).spool(prov, BUCKET, "left.pdf", bytes("v1"));
+		S3Spool.shutdown();
+
+		prov.set(S3Config.WRITE_BEHIND, "N");
+		assertNull(S3Spool.get(prov));
+		S3Spool spool = S3Spool.getExisting(prov);
+		assertNotNull(spool, "spool left when write-behind was disabled");
+		assertArrayEquals(bytes("v1"), awaitUpload("left.pdf"));
+	}
+
+	private byte[] awaitUpload(String key) throws InterruptedException {
+		long end = System.currentTimeMillis() + UPLOAD_TIMEOUT;
+		while (System.currentTimeMillis() < end) {
+			byte[] data = stub.getObject(BUCKET, key);
+			if (data != null)
+				return data;
+			Thread.sleep(50);
+		}
+		return null;
+	}
+
+	/**
+	 * @return number of files in the spool directory, besides the lock files
+	 */
+	private long getSpoolFiles() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(file -> !file.getFileName().toString().startsWith(".lock")).count();
+		}
+	}
+
+	private static byte[] bytes(String content) {
+		return content.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -13,33 +13,35 @@ c * This program is free software; you can redistribute it and/or modify it    *
 
 package org.devcoffee.idempiere.s3storage.model;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Result;
-import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.adempiere.exceptions.AdempiereException;
 import org.compiere.model.IArchiveStore;
 import org.compiere.model.MArchive;
 import org.compiere.model.MStorageProvider;
 import org.compiere.util.CLogger;
+import org.devcoffee.idempiere.s3storage.util.S3AsyncUtil;
+import org.devcoffee.idempiere.s3storage.util.S3ClientRegistry;
+import org.devcoffee.idempiere.s3storage.util.S3Compression;
+import org.devcoffee.idempiere.s3storage.util.S3Config;
+import org.devcoffee.idempiere.s3storage.util.S3PendingFlush;
+import org.devcoffee.idempiere.s3storage.util.S3KeyLayout;
+import org.devcoffee.idempiere.s3storage.util.S3Pointer;
+import org.devcoffee.idempiere.s3storage.util.S3ReadResult;
+import org.devcoffee.idempiere.s3storage.util.S3Spool;
+import org.devcoffee.idempiere.s3storage.util.S3StorageException;
+import org.devcoffee.idempiere.s3storage.util.S3TrxCleanup;
 import org.devcoffee.idempiere.s3storage.util.S3Util;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 import software.amazon.awssdk.services.s3.S3Client;
 
@@ -49,69 +51,211 @@ public class ArchiveS3Compatible implements IArchiveStore {
 	
 	private  String ARCHIVE_FOLDER_PLACEHOLDER = "%ARCHIVE_FOLDER%";
 
-	private byte[] buffer;
+	/** Content of new archives, written once the archive has an ID */
+	private final S3PendingFlush<MArchive> pending = new S3PendingFlush<>();
 
 	@Override
 	public byte[] loadLOBData(MArchive archive, MStorageProvider prov) {
 		String bucketStr = prov.get_ValueAsString("S3Bucket");
-		String archivePathRoot = getArchivePathRoot(prov);
-		
-		if ("".equals(archivePathRoot)) {
-			throw new IllegalArgumentException("no attachmentPath defined");
+		byte[] pendingData = pending.get(archive);
+		if (pendingData != null)
+			return pendingData;
+		S3Pointer.Entry entry = getEntry(archive);
+		String filePath = getObjectKey(entry, prov);
+		if (filePath != null) {
+			byte[] spooled = readSpooled(archive, prov, filePath);
+			if (spooled != null)
+				return S3Compression.decompress(spooled, entry.getCodec());
+			S3Client s3Client = S3ClientRegistry.getClient(prov);
+			S3ReadResult result = S3Util.readObject(s3Client, bucketStr, filePath, prov);
+			if (result.isFound())
+				return S3Compression.decompress(result.getData(), entry.getCodec());
+		}
+		return null;
+	}
+
+	/**
+	 * Load the archive content without blocking, so several archives can be
+	 * loaded at the same time
+	 * 
+	 * @return future of the content, null when not found
+	 */
+	public CompletableFuture<byte[]> loadLOBDataAsync(MArchive archive, MStorageProvider prov) {
+		S3Pointer.Entry entry = getEntry(archive);
+		String filePath = getObjectKey(entry, prov);
+		if (filePath == null)
+			return CompletableFuture.completedFuture(null);
+		byte[] spooled = readSpooled(archive, prov, filePath);
+		if (spooled != null)
+			return CompletableFuture.completedFuture(S3Compression.decompress(spooled, entry.getCodec()));
+		return S3AsyncUtil.readObject(S3ClientRegistry.getAsyncClient(prov), prov.get_ValueAsString("S3Bucket"), filePath)
+				.thenApply(result -> result.isFound() ? S3Compression.decompress(result.getData(), entry.getCodec()) : null);
+	}
+
+	/**
+	 * Open a stream on the archive content, so callers able to consume a stream
+	 * do not need to hold the whole archive in memory
+	 * 
+	 * @return stream to be closed by the caller, null when not found
+	 */
+	public InputStream getInputStream(MArchive archive, MStorageProvider prov) {
+		S3Pointer.Entry entry = getEntry(archive);
+		String filePath = getObjectKey(entry, prov);
+		if (filePath == null)
+			return null;
+		InputStream in = openSpooled(archive, prov, filePath);
+		if (in == null)
+			in = S3Util.getObjectAsStream(S3ClientRegistry.getClient(prov), prov.get_ValueAsString("S3Bucket"), filePath);
+		try {
+			return S3Compression.decompress(in, entry.getCodec());
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Error reading " + filePath, e);
+			return null;
 		}
-		buffer = null;
+	}
+
+	/**
+	 * Download the archive content straight to a file
+	 * 
+	 * @param target file to write, replaced if it exists
+	 * @return true when downloaded
+	 */
+	public boolean download(MArchive archive, MStorageProvider prov, Path target) {
+		S3Pointer.Entry entry = getEntry(archive);
+		String filePath = getObjectKey(entry, prov);
+		if (filePath == null)
+			return false;
+		if (!isSpooled(archive, prov, filePath) && entry.getCodec() == null)
+			return S3Util.getObject(S3ClientRegistry.getClient(prov), prov.get_ValueAsString("S3Bucket"), filePath, target);
+		// compressed content is decompressed on the way to the file
+		try (InputStream in = getInputStream(archive, prov)) {
+			if (in == null)
+				return false;
+			Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Error writing " + target, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Create a presigned URL to download the archive straight from the bucket,
+	 * valid for the time set for the storage provider
+	 * 
+	 * @return URL, null when the archive is not stored in the bucket yet
+	 */
+	public URL getPresignedUrl(MArchive archive, MStorageProvider prov) {
+		return getPresignedUrl(archive, prov, S3Config.getPresignedUrlExpiry(prov), null);
+	}
+
+	/**
+	 * Create a presigned URL to download the archive straight from the bucket
+	 * 
+	 * @param expiry             validity of the URL
+	 * @param contentDisposition Content-Disposition of the download, null to
+	 *                           save it as a PDF file with the archive name
+	 * @return URL, null when the archive is not stored in the bucket yet
+	 */
+	public URL getPresignedUrl(MArchive archive, MStorageProvider prov, Duration expiry, String contentDisposition) {
+		S3Pointer.Entry entry = getEntry(archive);
+		String filePath = getObjectKey(entry, prov);
+		// still in the write-behind spool
+		if (filePath == null || isSpooled(archive, prov, filePath))
+			return null;
+		if (contentDisposition == null) {
+			String fileName = archive.getName() != null ? archive.getName() : String.valueOf(archive.get_ID());
+			if (!fileName.toLowerCase().endsWith(".pdf"))
+				fileName = fileName + ".pdf";
+			contentDisposition = S3Util.getContentDisposition(false, fileName);
+		}
+		return S3Util.presignGetObject(S3ClientRegistry.getPresigner(prov), prov.get_ValueAsString("S3Bucket"), filePath,
+				expiry, contentDisposition, "application/pdf", entry.getCodec());
+	}
+
+	/**
+	 * Drop the content of a key left in the spool when write-behind was
+	 * disabled, so its upload does not replace the content written now
+	 */
+	private void dropSpooled(MStorageProvider prov, String bucketStr, String key) {
+		S3Spool spool = S3Spool.getExisting(prov);
+		if (spool != null)
+			spool.remove(prov, bucketStr, key);
+	}
+
+	/**
+	 * Returns the content of an archive still waiting in the write-behind
+	 * spool, or spooled by the transaction of the archive
+	 * 
+	 * @return content, null when not spooled
+	 */
+	private byte[] readSpooled(MArchive archive, MStorageProvider prov, String filePath) {
+		S3Spool spool = S3Spool.getExisting(prov);
+		return spool != null ? spool.read(prov, prov.get_ValueAsString("S3Bucket"), filePath, archive.get_TrxName()) : null;
+	}
+
+	/**
+	 * Open a stream on the spooled file of an archive, so a large archive is
+	 * not held in memory
+	 * 
+	 * @return stream to be closed by the caller, null when not spooled
+	 */
+	private InputStream openSpooled(MArchive archive, MStorageProvider prov, String filePath) {
+		S3Spool spool = S3Spool.getExisting(prov);
+		return spool != null ? spool.open(prov, prov.get_ValueAsString("S3Bucket"), filePath, archive.get_TrxName()) : null;
+	}
+
+	/**
+	 * @return true when the archive is still waiting in the write-behind spool
+	 */
+	private boolean isSpooled(MArchive archive, MStorageProvider prov, String filePath) {
+		S3Spool spool = S3Spool.getExisting(prov);
+		return spool != null && spool.contains(prov, prov.get_ValueAsString("S3Bucket"), filePath, archive.get_TrxName());
+	}
+
+	/**
+	 * Returns the entry of the XML pointer of the archive
+	 * 
+	 * @return entry, null when there is no pointer
+	 */
+	private S3Pointer.Entry getEntry(MArchive archive) {
 		byte[] data = archive.getByteData();
 		if (data == null) {
 			return null;
 		}
 
-		final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-
-		try {
-			final DocumentBuilder builder = factory.newDocumentBuilder();
-			final Document document = builder.parse(new ByteArrayInputStream(data));
-			final NodeList entries = document.getElementsByTagName("entry");
-			if(entries.getLength()!=1){
-				log.severe("no archive entry found");
-			}
-				final Node entryNode = entries.item(0);
-				final NamedNodeMap attributes = entryNode.getAttributes();
-				final Node	 fileNode = attributes.getNamedItem("file");
-				if(fileNode==null ){
-					log.severe("no filename for entry");
-					return null;
-				}
-				String filePath = fileNode.getNodeValue();
-				if (log.isLoggable(Level.FINE)) log.fine("filePath: " + filePath);
-				if(filePath!=null){
-					filePath = filePath.replaceFirst(ARCHIVE_FOLDER_PLACEHOLDER, archivePathRoot.replaceAll("\\\\","\\\\\\\\"));
-					S3Client s3Client = S3Util.createS3Client(prov);
-					if (S3Util.exists(s3Client, bucketStr, filePath)) {
-						byte[] dataEntry = S3Util.getObject(s3Client, bucketStr, filePath);
-						return dataEntry;
-					}
-				}
-		} catch (SAXException sxe) {
-			// Error generated during parsing)
-			Exception x = sxe;
-			if (sxe.getException() != null)
-				x = sxe.getException();
-			x.printStackTrace();
-			log.severe(x.getMessage());
-
-		} catch (ParserConfigurationException pce) {
-			// Parser with specified options can't be built
-			log.severe(pce.getMessage());
-
-		} catch (IOException ioe) {
-			// I/O error
-			log.severe(ioe.getMessage());
-		} catch (Exception e) {
-			// General error
-			log.severe(e.getMessage());
+		S3Pointer pointer = S3Pointer.parse(data);
+		S3Pointer.Entry entry = pointer != null ? pointer.getEntry() : null;
+		if (entry == null) {
+			log.severe("no archive entry found");
+			return null;
 		}
+		if (pointer.getEntries().size() != 1)
+			log.severe("no archive entry found");
+		return entry;
+	}
+
+	/**
+	 * Returns the object key of a pointer entry
+	 * 
+	 * @return String, null when there is no entry
+	 */
+	private String getObjectKey(S3Pointer.Entry entry, MStorageProvider prov) {
+		String archivePathRoot = S3Config.getPathRoot(prov);
 		
-		return null;
+		if ("".equals(archivePathRoot)) {
+			throw new IllegalArgumentException("no attachmentPath defined");
+		}
+		if (entry == null) {
+			return null;
+		}
+		String filePath = entry.getFile();
+		if (filePath == null) {
+			log.severe("no filename for entry");
+			return null;
+		}
+		if (log.isLoggable(Level.FINE)) log.fine("filePath: " + filePath);
+		return filePath.replaceFirst(ARCHIVE_FOLDER_PLACEHOLDER, archivePathRoot.replaceAll("\\\\","\\\\\\\\"));
 	}
 
 	@Override
@@ -123,84 +267,213 @@ public class ArchiveS3Compatible implements IArchiveStore {
 		if(archive.get_ID()==0){
 			//set binary data otherwise save will fail
 			archive.setByteData(new byte[]{'0'});
-			buffer = inflatedData;
+			pending.put(archive, inflatedData);
 		} else {		
+			pending.discard(archive);
 			write(archive, prov, inflatedData);			
 		}
 	}
 
-	private void write(MArchive archive, MStorageProvider prov, byte[] inflatedData) {		
+	/**
+	 * Save the archive content from a file, streamed to the bucket without
+	 * holding it in memory
+	 */
+	public void save(MArchive archive, MStorageProvider prov, Path file) {
+		if (file.toFile().length() == 0) {
+			throw new IllegalArgumentException("InflatedData is NULL");
+		}
+		if (archive.get_ID() == 0) {
+			try (InputStream in = Files.newInputStream(file)) {
+				save(archive, prov, in, Files.size(file));
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Error reading " + file, e);
+				throw new UncheckedIOException(e);
+			}
+		} else {
+			pending.discard(archive);
+			write(archive, prov, file, null, -1);
+		}
+	}
+
+	/**
+	 * Save the archive content from a stream, without holding it in memory. A
+	 * stream of unknown length, a new archive or compressed content is written
+	 * to a temporary file first. The stream is not closed.
+	 * 
+	 * @param length content length, -1 when unknown
+	 */
+	public void save(MArchive archive, MStorageProvider prov, InputStream in, long length) {
+		if (length == 0) {
+			throw new IllegalArgumentException("InflatedData is NULL");
+		}
+		if (archive.get_ID() == 0) {
+			// kept in a file until the archive has an ID
+			Path file = null;
+			try {
+				file = Files.createTempFile("idempiere-s3", ".pdf");
+				if (Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING) == 0)
+					throw new IllegalArgumentException("InflatedData is NULL");
+			} catch (IOException e) {
+				S3Util.deleteTempFile(file);
+				log.log(Level.SEVERE, "Error", e);
+				throw new UncheckedIOException(e);
+			} catch (RuntimeException e) {
+				S3Util.deleteTempFile(file);
+				throw e;
+			}
+			//set binary data otherwise save will fail
+			archive.setByteData(new byte[]{'0'});
+			pending.put(archive, file);
+		} else {
+			pending.discard(archive);
+			write(archive, prov, null, in, length);
+		}
+	}
+
+	private void write(MArchive archive, MStorageProvider prov, byte[] inflatedData) {
+		write(archive, prov, (bucketStr, key) -> {
+			byte[] data = inflatedData;
+			String codec = null;
+			byte[] compressed = S3Compression.compress(prov, key, inflatedData);
+			if (compressed != null) {
+				data = compressed;
+				codec = S3Compression.CODEC_GZIP;
+			}
+			Map<String, String> metadata = S3Compression.getMetadata(codec);
+			// in write-behind mode the upload is left to the spool
+			S3Spool spool = S3Spool.get(prov);
+			if (spool != null && spool.spool(prov, bucketStr, key, data, metadata, archive.get_TrxName())) {
+				if (log.isLoggable(Level.FINE)) log.fine("Spooled " + key);
+				return codec;
+			}
+			if (spool == null)
+				dropSpooled(prov, bucketStr, key);
+			if (!S3Util.putObjectFomBytes(S3ClientRegistry.getClient(prov), bucketStr, key, data, metadata, prov)) {
+				log.log(Level.SEVERE, "Error on save object | " + key);
+				throw S3StorageException.of("Error saving S3 object: " + archive.getName(), S3Util.getLastError());
+			}
+			return codec;
+		});
+	}
+
+	/**
+	 * Write the archive content from a file or a stream, compressed to a
+	 * temporary file when compression is enabled
+	 * 
+	 * @param file   content, or null to read the stream
+	 * @param length content length of the stream, -1 when unknown
+	 */
+	private void write(MArchive archive, MStorageProvider prov, Path file, InputStream in, long length) {
+		write(archive, prov, (bucketStr, key) -> {
+			Path compressed = file != null ? S3Compression.compress(prov, key, file)
+					: S3Compression.compress(prov, key, in, length);
+			try {
+				String codec = compressed != null ? S3Compression.CODEC_GZIP : null;
+				Path source = compressed != null ? compressed : file;
+				Map<String, String> metadata = S3Compression.getMetadata(codec);
+				// in write-behind mode the upload is left to the spool
+				S3Spool spool = S3Spool.get(prov);
+				if (spool != null) {
+					boolean spooled;
+					try (InputStream content = source != null ? Files.newInputStream(source) : null) {
+						spooled = spool.spool(prov, bucketStr, key, content != null ? content : in, metadata,
+								archive.get_TrxName());
+					}
+					if (spooled) {
+						if (log.isLoggable(Level.FINE)) log.fine("Spooled " + key);
+						return codec;
+					}
+					// a stream read by the spool cannot be uploaded
+					if (source == null)
+						throw new S3StorageException("Error saving S3 object: " + archive.getName(),
+								S3StorageException.Kind.PERMANENT, null);
+				} else {
+					dropSpooled(prov, bucketStr, key);
+				}
+				S3Client s3Client = S3ClientRegistry.getClient(prov);
+				boolean ok = source != null ? S3Util.putObject(s3Client, bucketStr, key, source.toFile(), metadata, prov)
+						: S3Util.putObject(s3Client, bucketStr, key, in, length, metadata, prov);
+				if (!ok) {
+					log.log(Level.SEVERE, "Error on save object | " + key);
+					throw S3StorageException.of("Error saving S3 object: " + archive.getName(), S3Util.getLastError());
+				}
+				return codec;
+			} finally {
+				S3Util.deleteTempFile(compressed);
+			}
+		});
+	}
+
+	/**
+	 * Write the archive object with the given writer and its pointer; the
+	 * object written before with another key is removed once the pointer is
+	 * committed
+	 */
+	private void write(MArchive archive, MStorageProvider prov, ObjectWriter writer) {
 		String bucketStr = prov.get_ValueAsString("S3Bucket");
-		String archivePathRoot = getArchivePathRoot(prov);
+		String archivePathRoot = S3Config.getPathRoot(prov);
 
 		try {
-			final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-			
 			if ("".equals(archivePathRoot)) {
 				throw new IllegalArgumentException("no attachmentPath defined");
 			}
 
-			StringBuilder msgfile = new StringBuilder().append(archivePathRoot).append(archive.getArchivePathSnippet()).append(archive.get_ID()).append(".pdf");
-			S3Client s3Client = S3Util.createS3Client(prov);
-			if (!S3Util.putObjectFomBytes(s3Client, bucketStr, msgfile.toString(), inflatedData)) {
-				log.log(Level.SEVERE, "Error on save object | " + msgfile.toString());
-				throw new AdempiereException("Error saving S3 object: " + archive.getName());
-			}
+			String previousKey = getStoredKey(archive, prov);
+			String layout = S3KeyLayout.getVersion(prov);
+			String path = S3KeyLayout.getKey(layout, archive.getArchivePathSnippet() + archive.get_ID() + ".pdf");
+			StringBuilder msgfile = new StringBuilder().append(archivePathRoot).append(path);
+			String codec = writer.write(bucketStr, msgfile.toString());
 			
 			//create xml entry
-			final DocumentBuilder builder = factory.newDocumentBuilder();
-			final Document document = builder.newDocument();
-			final Element root = document.createElement("archive");
-			document.appendChild(root);
-			document.setXmlStandalone(true);
-			final Element entry = document.createElement("entry");
-			StringBuilder msgsat = new StringBuilder(ARCHIVE_FOLDER_PLACEHOLDER).append(archive.getArchivePathSnippet()).append(archive.get_ID()).append(".pdf");
-			entry.setAttribute("file", msgsat.toString());
-			root.appendChild(entry);
-			final Source source = new DOMSource(document);
-			final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			final Result result = new StreamResult(bos);
-			final Transformer xformer = TransformerFactory.newInstance().newTransformer();
-			xformer.transform(source, result);
-			final byte[] xmlData = bos.toByteArray();
-			if (log.isLoggable(Level.FINE)) log.fine(bos.toString());
+			S3Pointer pointer = new S3Pointer(S3Pointer.ROOT_ARCHIVE);
+			StringBuilder msgsat = new StringBuilder(ARCHIVE_FOLDER_PLACEHOLDER).append(path);
+			pointer.addEntry().setFile(msgsat.toString()).setCodec(codec).setLayout(S3KeyLayout.toAttribute(layout));
+			final byte[] xmlData = pointer.toXML();
+			if (log.isLoggable(Level.FINE)) log.fine(pointer.toString());
 			//store xml in db
 			archive.setByteData(xmlData);
 
+			// the object written with another layout is replaced once the pointer is committed
+			if (!msgfile.toString().equals(previousKey))
+				S3TrxCleanup.register(archive.get_TrxName(), prov, bucketStr,
+						previousKey != null ? List.of(previousKey) : List.of(), List.of(msgfile.toString()));
+
 		} catch (Exception e) {
 			log.log(Level.SEVERE, "Error", e);
 			throw new RuntimeException(e);
 		}
 	}
 
-	private String getArchivePathRoot(MStorageProvider prov) {
-		String archivePathRoot = prov.getFolder();
-		if (archivePathRoot == null)
-			archivePathRoot = "";
-		if (archivePathRoot.startsWith("/"))
-			archivePathRoot = archivePathRoot.replaceFirst("/", "");
-		if (!archivePathRoot.endsWith("/"))
-			archivePathRoot = archivePathRoot + "/";
-		return archivePathRoot;
+	/**
+	 * Stores the content of an archive at a key
+	 */
+	@FunctionalInterface
+	private interface ObjectWriter {
+		/**
+		 * @return codec the object is compressed with, null when stored as it is
+		 */
+		String write(String bucketStr, String key) throws IOException;
 	}
 
 	@Override
 	public boolean deleteArchive(MArchive archive, MStorageProvider prov) {
-		String archivePathRoot = getArchivePathRoot(prov);
+		String archivePathRoot = S3Config.getPathRoot(prov);
 		String bucketStr = prov.get_ValueAsString("S3Bucket");
 
 		if ("".equals(archivePathRoot)) {
 			throw new IllegalArgumentException("no attachmentPath defined");
 		}
-		StringBuilder msgfile = new StringBuilder().append(archivePathRoot)
-				.append(archive.getArchivePathSnippet()).append(archive.getAD_Archive_ID()).append(".pdf");
+		// the key of the pointer, whatever the layout it was written with
+		String key = getStoredKey(archive, prov);
+		if (key == null)
+			key = new StringBuilder().append(archivePathRoot)
+					.append(archive.getArchivePathSnippet()).append(archive.getAD_Archive_ID()).append(".pdf").toString();
 		
 		try {
-			S3Client s3Client = S3Util.createS3Client(prov);
-			if (S3Util.deleteObject(s3Client, bucketStr, msgfile.toString()))
+			if (deleteObject(prov, bucketStr, key))
 				return true;
 			else {
-				throw new AdempiereException("Error deleting S3 object: " + archive.getName());
+				throw S3StorageException.of("Error deleting S3 object: " + archive.getName(), S3Util.getLastError());
 			}
 			
 		} catch (Exception e) {
@@ -209,17 +482,62 @@ public class ArchiveS3Compatible implements IArchiveStore {
 		return false;
 	}
 
+	/**
+	 * Delete an object, also from the write-behind spool
+	 * 
+	 * @return true when deleted
+	 */
+	private boolean deleteObject(MStorageProvider prov, String bucketStr, String key) {
+		S3Spool spool = S3Spool.getExisting(prov);
+		if (spool != null)
+			spool.remove(prov, bucketStr, key);
+		return S3Util.deleteObject(S3ClientRegistry.getClient(prov), bucketStr, key, prov);
+	}
+
+	/**
+	 * Returns the object key of the pointer stored in the archive
+	 * 
+	 * @return String, null when the archive has no pointer yet
+	 */
+	private String getStoredKey(MArchive archive, MStorageProvider prov) {
+		byte[] data = archive.getByteData();
+		if (data == null || data.length == 0 || data[0] != '<')
+			return null;
+		return getObjectKey(getEntry(archive), prov);
+	}
+
 	@Override
 	public boolean isPendingFlush() {
-		return buffer != null && buffer.length > 0;
+		return pending.isPending();
 	}
 
 	@Override
 	public void flush(MArchive archive, MStorageProvider prov) {
-		if (buffer != null && buffer.length > 0) {
-			write(archive, prov, buffer);
-			buffer = null;
+		S3PendingFlush.Content content = pending.remove(archive);
+		if (content == null)
+			return;
+		try {
+			if (content.getFile() != null)
+				write(archive, prov, content.getFile(), null, -1);
+			else if (content.getData().length > 0)
+				write(archive, prov, content.getData());
+		} finally {
+			content.discard();
 		}
 	}
 
+	/**
+	 * Component activation, start sharing the S3 clients
+	 */
+	protected void activate() {
+		S3ClientRegistry.register();
+	}
+
+	/**
+	 * Component deactivation, the S3 clients are closed when no store uses them
+	 */
+	protected void deactivate() {
+		S3ClientRegistry.unregister();
+	}
+
 }
@@ -14,23 +14,22 @@
 
 package org.devcoffee.idempiere.s3storage.model;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.net.URL;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Result;
-import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
 import org.adempiere.exceptions.AdempiereException;
 import org.compiere.model.IAttachmentStore;
 import org.compiere.model.MAttachment;
@@ -38,15 +37,20 @@ import org.compiere.model.MAttachmentEntry;
 import org.compiere.model.MStorageProvider;
 import org.compiere.util.CLogger;
 import org.compiere.util.Util;
+import org.devcoffee.idempiere.s3storage.util.S3ClientRegistry;
+import org.devcoffee.idempiere.s3storage.util.S3Compression;
+import org.devcoffee.idempiere.s3storage.util.S3Config;
+import org.devcoffee.idempiere.s3storage.util.S3ContentStore;
+import org.devcoffee.idempiere.s3storage.util.S3Executor;
+import org.devcoffee.idempiere.s3storage.util.S3KeyLayout;
+import org.devcoffee.idempiere.s3storage.util.S3Pointer;
+import org.devcoffee.idempiere.s3storage.util.S3ReadResult;
+import org.devcoffee.idempiere.s3storage.util.S3StorageException;
+import org.devcoffee.idempiere.s3storage.util.S3TrxCleanup;
 import org.devcoffee.idempiere.s3storage.util.S3Util;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 
 public class AttachmentS3Compatible implements IAttachmentStore {
 
@@ -54,7 +58,7 @@ public class AttachmentS3Compatible implements IAttachmentStore {
 
 	@Override
 	public boolean loadLOBData(MAttachment attach, MStorageProvider prov) {
-		String attachmentPathRoot = getAttachmentPathRoot(prov);
+		String attachmentPathRoot = S3Config.getPathRoot(prov);
 		String bucketStr = prov.get_ValueAsString("S3Bucket");
 
 		if (Util.isEmpty(attachmentPathRoot)) {
@@ -74,32 +78,73 @@ public class AttachmentS3Compatible implements IAttachmentStore {
 			return true;
 
 		// Get the files record
-		NodeList entries = getEntriesFromXML(data);
-		if (entries == null)
+		S3Pointer pointer = S3Pointer.parse(data);
+		if (pointer == null)
 			return true;
 		
-		for (int i = 0; i < entries.getLength(); i++) {
-			final Node entryNode = entries.item(i);
-			final NamedNodeMap attributes = entryNode.getAttributes();
-			final Node fileNode = attributes.getNamedItem("file");
-			final Node nameNode = attributes.getNamedItem("name");
-			if (fileNode == null || nameNode == null) {
+		// Collect the entries before fetching them
+		final List<String> names = new ArrayList<String>();
+		final List<String> filePaths = new ArrayList<String>();
+		final List<Long> sizes = new ArrayList<Long>();
+		final List<String> codecs = new ArrayList<String>();
+		for (int i = 0; i < pointer.getEntries().size(); i++) {
+			final S3Pointer.Entry pointerEntry = pointer.getEntries().get(i);
+			if (pointerEntry.getFile() == null || pointerEntry.getName() == null) {
 				log.severe("no filename for entry " + i);
 				attach.m_items = null;
 				return false;
 			}
 
 			//Fix the placeholder of path
-			String filePath = fileNode.getNodeValue();
-			filePath = filePath.replaceFirst(attach.ATTACHMENT_FOLDER_PLACEHOLDER, attachmentPathRoot.replaceAll("\\\\","\\\\\\\\"));
-			
-			S3Client s3Client = S3Util.createS3Client(prov);
-			if (S3Util.exists(s3Client, bucketStr, filePath)) {
-				byte[] dataEntry = S3Util.getObject(s3Client, bucketStr, filePath);
-				MAttachmentEntry entry = new MAttachmentEntry(nameNode.getNodeValue(), dataEntry, attach.m_items.size() + 1);
+			String filePath = getObjectKey(attach, attachmentPathRoot, pointerEntry.getFile());
+			names.add(pointerEntry.getName());
+			filePaths.add(filePath);
+			sizes.add(pointerEntry.getSize());
+			codecs.add(pointerEntry.getCodec());
+		}
+
+		// Lazy mode, the content is fetched on first access
+		if (S3Config.isLazyLoad(prov)) {
+			for (int i = 0; i < names.size(); i++) {
+				MAttachmentEntry entry = new S3AttachmentEntry(names.get(i), attach.m_items.size() + 1, prov,
+						filePaths.get(i), sizes.get(i), codecs.get(i));
+				attach.m_items.add(entry);
+			}
+			return true;
+		}
+
+		// Fetch the entries, up to S3MaxConcurrentFetches at the same time
+		final S3Client s3Client = S3ClientRegistry.getClient(prov);
+		final List<Callable<S3ReadResult>> fetches = new ArrayList<Callable<S3ReadResult>>();
+		for (final String filePath : filePaths) {
+			fetches.add(() -> S3Util.readObject(s3Client, bucketStr, filePath, prov));
+		}
+		final List<S3ReadResult> contents;
+		try {
+			contents = S3Executor.invokeAll(fetches, S3Config.getMaxConcurrentFetches(prov));
+		} catch (ExecutionException e) {
+			log.log(Level.SEVERE, "Error loading attachment entries", e.getCause());
+			attach.m_items = null;
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			attach.m_items = null;
+			return false;
+		}
+
+		for (int i = 0; i < names.size(); i++) {
+			final S3ReadResult result = contents.get(i);
+			if (result.getStatus() == S3ReadResult.Status.ERROR) {
+				// only a missing object gets the placeholder, a failed read is not saved back as empty
+				log.log(Level.SEVERE, "Error loading attachment entry " + filePaths.get(i), result.getError());
+				attach.m_items = null;
+				return false;
+			} else if (result.getStatus() != S3ReadResult.Status.NOT_FOUND) {
+				MAttachmentEntry entry = new MAttachmentEntry(names.get(i),
+						S3Compression.decompress(result.getData(), codecs.get(i)), attach.m_items.size() + 1);
 				attach.m_items.add(entry);
 			} else {
-				MAttachmentEntry entry = new MAttachmentEntry("~" + nameNode.getNodeValue()  + "~", "".getBytes(), attach.m_items.size() + 1);
+				MAttachmentEntry entry = new MAttachmentEntry("~" + names.get(i)  + "~", "".getBytes(), attach.m_items.size() + 1);
 				attach.m_items.add(entry);
 			}
 		}
@@ -108,7 +153,7 @@ public class AttachmentS3Compatible implements IAttachmentStore {
 
 	@Override
 	public boolean save(MAttachment attach, MStorageProvider prov) {
-		String attachmentPathRoot = getAttachmentPathRoot(prov);
+		String attachmentPathRoot = S3Config.getPathRoot(prov);
 		String bucketStr = prov.get_ValueAsString("S3Bucket");
 
 		if (Util.isEmpty(attachmentPathRoot)) {
@@ -121,39 +166,56 @@ public class AttachmentS3Compatible implements IAttachmentStore {
 			return true;
 		}
 
-		NodeList xmlEntries = null;
+		// entries of the pointer saved before
+		List<S3Pointer.Entry> xmlEntries = getStoredEntries(attach);
 
-		final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
 		try {
-			final DocumentBuilder builder = factory.newDocumentBuilder();
-			final Document document = builder.newDocument();
-			final Element root = document.createElement("attachments");
-			document.appendChild(root);
-			document.setXmlStandalone(true);
+			final S3Pointer pointer = new S3Pointer(S3Pointer.ROOT_ATTACHMENTS);
+			final S3Client s3Client = S3ClientRegistry.getClient(prov);
+			final List<S3Pointer.Entry> uploadEntries = new ArrayList<S3Pointer.Entry>();
+			final List<Callable<String>> uploads = new ArrayList<Callable<String>>();
+			final Queue<String> uploaded = new ConcurrentLinkedQueue<String>();
+			final boolean contentAddressed = S3Config.isContentAddressed(prov);
+			final String layout = S3KeyLayout.getVersion(prov);
+			final String snippet = getAttachmentPathSnippet(attach);
+			// objects of the previous pointer
+			final Set<String> previousKeys = new HashSet<String>();
+			for (S3Pointer.Entry xmlEntry : xmlEntries) {
+				if (xmlEntry.getFile() != null && !S3ContentStore.isContentAddressed(xmlEntry.getFile()))
+					previousKeys.add(getObjectKey(attach, attachmentPathRoot, xmlEntry.getFile()));
+			}
+			// never overwritten: the objects of the previous pointer and the ones written or
+			// replaced by the earlier saves of the transaction, the committed pointer may refer to them
+			final Set<String> reservedKeys = new HashSet<String>(previousKeys);
+			reservedKeys.addAll(S3TrxCleanup.getPendingKeys(attach.get_TrxName(), prov, bucketStr));
 			// create xml entries
 			for (int i = 0; i < attach.m_items.size(); i++) {
+				final MAttachmentEntry item = attach.m_items.get(i);
+				if (item instanceof S3AttachmentEntry && !((S3AttachmentEntry) item).isLoaded()) {
+					// lazy entry never accessed, the object is unchanged
+					final S3AttachmentEntry s3Entry = (S3AttachmentEntry) item;
+					final S3Pointer.Entry xmlEntry = findEntry(xmlEntries, attach.getEntryName(i));
+					pointer.addEntry()
+							.setName(attach.getEntryName(i))
+							.setFile(getPointerPath(attach, attachmentPathRoot, s3Entry.getKey()))
+							.setSize(s3Entry.getSize())
+							.setCodec(s3Entry.getCodec())
+							.setLayout(xmlEntry != null ? xmlEntry.getLayout() : null)
+							.setSha256(xmlEntry != null ? xmlEntry.getSha256() : null);
+					continue;
+				}
 				if (log.isLoggable(Level.FINE))
 					log.fine(attach.m_items.get(i).toString());
-				File entryFile = attach.m_items.get(i).getFile();
+				final File entryFile = attach.m_items.get(i).getFile();
 				if (entryFile == null) {
 					String itemName = attach.m_items.get(i).getName();
 					if (itemName.startsWith("~") && itemName.endsWith("~")) {
 						itemName = itemName.substring(1, itemName.length() - 1);
-						if (xmlEntries != null) {
-							for (int x = 0; x < xmlEntries.getLength(); x++) {
-								final Node entryNode = xmlEntries.item(x);
-								final NamedNodeMap attributes = entryNode.getAttributes();
-								final Node fileNode = attributes.getNamedItem("file");
-								final Node nameNode = attributes.getNamedItem("name");
-								if (itemName.equals(nameNode.getNodeValue())) {
-									// file was not found but we preserve the old location just in case is temporary
-									final Element entry = document.createElement("entry");
-									entry.setAttribute("name", itemName);
-									entry.setAttribute("file", fileNode.getNodeValue());
-									root.appendChild(entry);
-									break;
-								}
-							}
+						final S3Pointer.Entry xmlEntry = findEntry(xmlEntries, itemName);
+						if (xmlEntry != null) {
+							// file was not found but we preserve the old location just in case is temporary
+							pointer.addEntry().setName(itemName).setFile(xmlEntry.getFile()).setCodec(xmlEntry.getCodec())
+									.setLayout(xmlEntry.getLayout()).setSha256(xmlEntry.getSha256());
 						}
 						continue;
 					} else
@@ -170,32 +232,89 @@ public class AttachmentS3Compatible implements IAttachmentStore {
 
 					// Define the full path of file
 					StringBuilder msgfile = new StringBuilder().append(attachmentPathRoot)
-							.append(getAttachmentPathSnippet(attach)).append(entryFile.getName());
-						S3Client s3Client = S3Util.createS3Client(prov);
-						if (S3Util.putObject(s3Client, bucketStr, msgfile.toString(), entryFile)) {
-							final Element entry = document.createElement("entry");
-							entry.setAttribute("name", attach.getEntryName(i));
-							String filePathToStore = msgfile.toString();
-							filePathToStore = filePathToStore.replaceFirst(
-									attachmentPathRoot.replaceAll("\\\\", "\\\\\\\\"),
-									attach.ATTACHMENT_FOLDER_PLACEHOLDER);
-							log.fine(filePathToStore);
-							entry.setAttribute("file", filePathToStore);
-							root.appendChild(entry);
+							.append(S3KeyLayout.getKey(layout, snippet + entryFile.getName()));
+					final String key = msgfile.toString();
+					// the entry keeps its position, the file is set once the upload is done
+					// and the codec when the content was compressed
+					final S3Pointer.Entry entry = pointer.addEntry()
+							.setName(attach.getEntryName(i))
+							.setSize(entryFile.length())
+							.setLayout(S3KeyLayout.toAttribute(layout));
+					uploadEntries.add(entry);
+					final S3Pointer.Entry xmlEntry = findEntry(xmlEntries, attach.getEntryName(i));
+					uploads.add(() -> {
+						final String sha256 = S3ContentStore.sha256(entryFile);
+						entry.setSha256(sha256);
+						if (isUnchanged(s3Client, bucketStr, attach, attachmentPathRoot, xmlEntry, entryFile, sha256)) {
+							// the stored object has this content already, it is kept as it is
+							entry.setCodec(xmlEntry.getCodec()).setLayout(xmlEntry.getLayout());
+							return getObjectKey(attach, attachmentPathRoot, xmlEntry.getFile());
+						}
+						String objectKey = key;
+						if (contentAddressed) {
+							objectKey = S3ContentStore.getKey(attachmentPathRoot, sha256);
+							entry.setLayout(null);
+							HeadObjectResponse head = S3Util.headObject(s3Client, bucketStr, objectKey);
+							// an object too large to be copied onto itself is refreshed by uploading it again
+							if (head != null && (head.contentLength() == null || head.contentLength() <= S3Util.MAX_COPY_SIZE)) {
+								// stored already, refreshed so the content GC keeps it until the pointer is saved
+								if (!S3Util.touchObject(s3Client, bucketStr, objectKey, head.metadata()))
+									throw S3StorageException.of("Error saving S3 object: " + entryFile.getName(), S3Util.getLastError());
+								entry.setCodec(head.metadata().get(S3Compression.METADATA_CODEC));
+								return objectKey;
+							}
 						} else {
-							throw new AdempiereException("Error saving S3 object: " + entryFile.getName());
+							// changed content goes to a new key, the old object is deleted once the pointer is committed
+							while (reservedKeys.contains(objectKey))
+								objectKey = attachmentPathRoot + S3KeyLayout.getKey(layout,
+										snippet + UUID.randomUUID().toString().substring(0, 8) + "/" + entryFile.getName());
 						}
+						byte[] compressed = S3Compression.compress(prov, entryFile.getName(), item.getData());
+						boolean ok;
+						if (compressed != null) {
+							entry.setCodec(S3Compression.CODEC_GZIP);
+							ok = S3Util.putObjectFomBytes(s3Client, bucketStr, objectKey, compressed,
+									S3Compression.getMetadata(S3Compression.CODEC_GZIP), prov);
+						} else {
+							ok = S3Util.putObject(s3Client, bucketStr, objectKey, entryFile, prov);
+						}
+						if (!ok)
+							throw S3StorageException.of("Error saving S3 object: " + entryFile.getName(), S3Util.getLastError());
+						// shared objects are not removed when the save fails, the content GC does
+						if (!contentAddressed)
+							uploaded.add(objectKey);
+						return objectKey;
+					});
 				}
 			}
 
-			final Source source = new DOMSource(document);
-			final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			final Result result = new StreamResult(bos);
-			final Transformer xformer = TransformerFactory.newInstance().newTransformer();
-			xformer.transform(source, result);
-			final byte[] xmlData = bos.toByteArray();
+			// Upload the entries, up to S3MaxConcurrentUploads at the same time
+			final List<String> keys = uploadAll(s3Client, bucketStr, uploads, uploaded, prov);
+			for (int i = 0; i < keys.size(); i++) {
+				String filePathToStore = getPointerPath(attach, attachmentPathRoot, keys.get(i));
+				log.fine(filePathToStore);
+				uploadEntries.get(i).setFile(filePathToStore);
+			}
+
+			// objects of the entries removed, renamed or uploaded again with another key
+			Set<String> keep = new HashSet<String>();
+			for (S3Pointer.Entry entry : pointer.getEntries()) {
+				if (entry.getFile() != null)
+					keep.add(getObjectKey(attach, attachmentPathRoot, entry.getFile()));
+			}
+			List<String> replaced = new ArrayList<String>();
+			for (String previousKey : previousKeys) {
+				if (!keep.contains(previousKey))
+					replaced.add(previousKey);
+			}
+			// deleted once the pointer is committed, the uploaded objects when it is rolled back
+			S3TrxCleanup.register(attach.get_TrxName(), prov, bucketStr, replaced, uploaded);
+			if (log.isLoggable(Level.FINE))
+				log.fine("Uploaded=" + uploaded.size() + " - Removed=" + replaced.size());
+
+			final byte[] xmlData = pointer.toXML();
 			if (log.isLoggable(Level.FINE))
-				log.fine(bos.toString());
+				log.fine(pointer.toString());
 			attach.setBinaryData(xmlData);
 			attach.setTitle(MAttachment.XML);
 			return true;
@@ -207,35 +326,110 @@ public class AttachmentS3Compatible implements IAttachmentStore {
 
 	}
 
+	/**
+	 * An entry is not uploaded again when the previous pointer has an entry of
+	 * the same name and size whose SHA-256 is the one of the file. Pointers
+	 * written before the hash was kept are compared by the ETag of the object,
+	 * the MD5 of the content when it was put uncompressed in one request.
+	 * 
+	 * @param xmlEntry entry of the same name in the previous pointer, or null
+	 * @param sha256   SHA-256 of the file
+	 * @return true when the stored object has the content of the file
+	 */
+	private boolean isUnchanged(S3Client s3Client, String bucketStr, MAttachment attach, String attachmentPathRoot,
+			S3Pointer.Entry xmlEntry, File entryFile, String sha256) throws IOException {
+		if (xmlEntry == null || xmlEntry.getFile() == null)
+			return false;
+		if (xmlEntry.getSize() >= 0 && xmlEntry.getSize() != entryFile.length())
+			return false;
+		if (xmlEntry.getSha256() != null)
+			return xmlEntry.getSha256().equals(sha256);
+		String hash = S3ContentStore.getHash(xmlEntry.getFile());
+		if (hash != null)
+			return hash.equals(sha256);
+		if (xmlEntry.getCodec() != null)
+			return false;
+		HeadObjectResponse head = S3Util.headObject(s3Client, bucketStr,
+				getObjectKey(attach, attachmentPathRoot, xmlEntry.getFile()));
+		if (head == null || head.eTag() == null || head.contentLength() != entryFile.length())
+			return false;
+		return head.eTag().replace("\"", "").equals(S3ContentStore.md5(entryFile));
+	}
+
+	/**
+	 * Run the uploads of a save. When one of them fails, the objects already
+	 * uploaded are removed and the whole save fails; they are all new keys, the
+	 * objects of the committed pointer are never overwritten.
+	 * 
+	 * @param uploaded keys uploaded so far, filled by the uploads
+	 * @return the uploaded keys, in the same order as the uploads
+	 */
+	private List<String> uploadAll(S3Client s3Client, String bucketStr, List<Callable<String>> uploads,
+			Queue<String> uploaded, MStorageProvider prov) throws InterruptedException {
+		try {
+			return S3Executor.invokeAll(uploads, S3Config.getMaxConcurrentUploads(prov));
+		} catch (ExecutionException e) {
+			for (String key : uploaded) {
+				if (!S3Util.deleteObject(s3Client, bucketStr, key, prov))
+					log.warning("Could not remove S3 object after failed save: " + key);
+			}
+			if (e.getCause() instanceof AdempiereException)
+				throw (AdempiereException) e.getCause();
+			throw new AdempiereException(e.getCause());
+		}
+	}
+
 	@Override
 	public boolean delete(MAttachment attach, MStorageProvider provider) {
-		while (attach.m_items.size() > 0) {
-			deleteEntry(attach, provider, attach.m_items.size()-1);
+		if (attach.m_items.isEmpty())
+			return true;
+		String attachmentPathRoot = S3Config.getPathRoot(provider);
+		String bucketStr = provider.get_ValueAsString("S3Bucket");
+
+		// shared content-addressed objects are left to the content GC
+		List<S3Pointer.Entry> xmlEntries = getStoredEntries(attach);
+		List<String> keys = new ArrayList<>(attach.m_items.size());
+		List<String> deleteKeys = new ArrayList<>(attach.m_items.size());
+		for (MAttachmentEntry entry : attach.m_items) {
+			String key = getStoredKey(attach, attachmentPathRoot, xmlEntries, entry.getName());
+			if (key != null)
+				deleteKeys.add(key);
+			keys.add(key);
 		}
-		return true;
+
+		// entries whose object was deleted are removed, the record is saved once
+		S3Client s3Client = S3ClientRegistry.getClient(provider);
+		Set<String> failed = S3Util.deleteObjects(s3Client, bucketStr, deleteKeys, provider);
+		for (int i = attach.m_items.size() - 1; i >= 0; i--) {
+			if (keys.get(i) == null || !failed.contains(keys.get(i)))
+				attach.m_items.remove(i);
+		}
+		if (attach.get_ID() > 0 && attach.m_items.size() < keys.size())
+			attach.saveEx(); // must save here as the operation cannot be rolled back on filesystem
+		if (log.isLoggable(Level.CONFIG)) log.config("Deleted=" + (keys.size() - attach.m_items.size()) + " - Failed=" + failed.size());
+		return failed.isEmpty();
 	}
 
 	@Override
 	public boolean deleteEntry(MAttachment attach, MStorageProvider prov, int index) {
 		
-		String attachmentPathRoot = getAttachmentPathRoot(prov);
+		String attachmentPathRoot = S3Config.getPathRoot(prov);
 		String bucketStr = prov.get_ValueAsString("S3Bucket");
 		
 		final MAttachmentEntry entry = attach.m_items.get(index);
 		
-		StringBuilder msgfile = new StringBuilder(attachmentPathRoot)
-				.append(getAttachmentPathSnippet(attach))
-				.append(entry.getName());
+		String key = getStoredKey(attach, attachmentPathRoot, getStoredEntries(attach), entry.getName());
 		try {
-			S3Client s3Client = S3Util.createS3Client(prov);
-			if (S3Util.deleteObject(s3Client, bucketStr, msgfile.toString())) {
+			// a shared content-addressed object is left to the content GC
+			S3Client s3Client = S3ClientRegistry.getClient(prov);
+			if (key == null || S3Util.deleteObject(s3Client, bucketStr, key, prov)) {
 				attach.m_items.remove(index);
 				if (attach.get_ID() > 0) // the attachment has not been deleted
 					attach.saveEx(); // must save here as the operation cannot be rolled back on filesystem
 				if (log.isLoggable(Level.CONFIG)) log.config("Index=" + index + " - NewSize=" + attach.m_items.size());
 				return true;
 			} else {
-				throw new AdempiereException("Error deleting S3 object: " + entry.getName());
+				throw S3StorageException.of("Error deleting S3 object: " + entry.getName(), S3Util.getLastError());
 			}
 
 		} catch (Exception e) {
@@ -245,38 +439,120 @@ public class AttachmentS3Compatible implements IAttachmentStore {
 	}
 
 	/**
-	 * Get the entries from the XML
+	 * Create a presigned URL to download an entry straight from the bucket,
+	 * valid for the time set for the storage provider
 	 * 
-	 * @param data
-	 * @return
+	 * @param index entry index
+	 * @return URL, null when the entry is not stored in the bucket
 	 */
-	private NodeList getEntriesFromXML(byte[] data) {
-		NodeList entries = null;
-		try {
-			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
-			final DocumentBuilder builder = factory.newDocumentBuilder();
-			final Document document = builder.parse(new ByteArrayInputStream(data));
-			entries = document.getElementsByTagName("entry");
-		} catch (SAXException sxe) {
-			// Error generated during parsing)
-			Exception x = sxe;
-			if (sxe.getException() != null)
-				x = sxe.getException();
-			x.printStackTrace();
-			log.severe(x.getMessage());
-
-		} catch (ParserConfigurationException pce) {
-			// Parser with specified options can't be built
-			pce.printStackTrace();
-			log.severe(pce.getMessage());
-
-		} catch (IOException ioe) {
-			// I/O error
-			ioe.printStackTrace();
-			log.severe(ioe.getMessage());
+	public URL getPresignedUrl(MAttachment attach, MStorageProvider prov, int index) {
+		return getPresignedUrl(attach, prov, index, S3Config.getPresignedUrlExpiry(prov), null);
+	}
+
+	/**
+	 * Create a presigned URL to download an entry straight from the bucket.
+	 * Compressed entries are served with their Content-Encoding, so browsers
+	 * decompress them.
+	 * 
+	 * @param index              entry index
+	 * @param expiry             validity of the URL
+	 * @param contentDisposition Content-Disposition of the download, null to
+	 *                           save it as a file with the entry name
+	 * @return URL, null when the entry is not stored in the bucket
+	 */
+	public URL getPresignedUrl(MAttachment attach, MStorageProvider prov, int index, Duration expiry,
+			String contentDisposition) {
+		MAttachmentEntry item = attach.getEntry(index);
+		if (item == null)
+			return null;
+		String key = null;
+		String codec = null;
+		if (item instanceof S3AttachmentEntry) {
+			key = ((S3AttachmentEntry) item).getKey();
+			codec = ((S3AttachmentEntry) item).getCodec();
+		} else {
+			byte[] data = attach.getBinaryData();
+			S3Pointer pointer = data != null && data.length > 0 ? S3Pointer.parse(data) : null;
+			if (pointer != null) {
+				for (S3Pointer.Entry entry : pointer.getEntries()) {
+					if (item.getName().equals(entry.getName()) && entry.getFile() != null) {
+						key = getObjectKey(attach, S3Config.getPathRoot(prov), entry.getFile());
+						codec = entry.getCodec();
+						break;
+					}
+				}
+			}
+		}
+		if (key == null) {
+			log.warning("Entry not stored in the bucket: " + item.getName());
+			return null;
+		}
+		if (contentDisposition == null)
+			contentDisposition = S3Util.getContentDisposition(false, item.getName());
+		return S3Util.presignGetObject(S3ClientRegistry.getPresigner(prov), prov.get_ValueAsString("S3Bucket"), key,
+				expiry, contentDisposition, item.getContentType(), codec);
+	}
+
+	/**
+	 * Returns the entries of the pointer saved in the attachment
+	 * 
+	 * @return entries, empty when the attachment has no pointer yet
+	 */
+	private List<S3Pointer.Entry> getStoredEntries(MAttachment attach) {
+		byte[] data = attach.getBinaryData();
+		S3Pointer pointer = data != null && data.length > 0 && data[0] == '<' ? S3Pointer.parse(data) : null;
+		return pointer != null ? pointer.getEntries() : Collections.<S3Pointer.Entry>emptyList();
+	}
+
+	/**
+	 * Returns the pointer entry of an attachment entry
+	 * 
+	 * @return entry, null when not found
+	 */
+	private static S3Pointer.Entry findEntry(List<S3Pointer.Entry> xmlEntries, String name) {
+		for (S3Pointer.Entry xmlEntry : xmlEntries) {
+			if (xmlEntry.getName() != null && xmlEntry.getName().equals(name))
+				return xmlEntry;
 		}
-		return entries;
+		return null;
+	}
+
+	/**
+	 * Returns the object key of an entry to delete, from the saved pointer so
+	 * the layout it was written with is used
+	 * 
+	 * @return key, null for a shared content-addressed object which is left to
+	 *         the content GC
+	 */
+	private String getStoredKey(MAttachment attach, String attachmentPathRoot, List<S3Pointer.Entry> xmlEntries,
+			String name) {
+		S3Pointer.Entry xmlEntry = findEntry(xmlEntries, name);
+		if (xmlEntry == null || xmlEntry.getFile() == null)
+			return new StringBuilder(attachmentPathRoot).append(getAttachmentPathSnippet(attach)).append(name).toString();
+		if (S3ContentStore.isContentAddressed(xmlEntry.getFile()))
+			return null;
+		return getObjectKey(attach, attachmentPathRoot, xmlEntry.getFile());
+	}
+
+	/**
+	 * Returns the object key of a path stored in the XML pointer, the reverse
+	 * of {@link #getPointerPath(MAttachment, String, String)}
+	 * 
+	 * @return String
+	 */
+	private String getObjectKey(MAttachment attach, String attachmentPathRoot, String filePath) {
+		return filePath.replaceFirst(attach.ATTACHMENT_FOLDER_PLACEHOLDER, attachmentPathRoot.replaceAll("\\\\", "\\\\\\\\"));
+	}
+
+	/**
+	 * Returns the path stored in the XML pointer for an object key, with the
+	 * attachment folder placeholder in place of the path root
+	 * 
+	 * @return String
+	 */
+	private String getPointerPath(MAttachment attach, String attachmentPathRoot, String key) {
+		return key.replaceFirst(attachmentPathRoot.replaceAll("\\\\", "\\\\\\\\"),
+				attach.ATTACHMENT_FOLDER_PLACEHOLDER);
 	}
 
 	/**
@@ -292,19 +568,17 @@ public class AttachmentS3Compatible implements IAttachmentStore {
 	}
 
 	/**
-	 * Returns the path root
-	 * 
-	 * @return String
+	 * Component activation, start sharing the S3 clients
+	 */
+	protected void activate() {
+		S3ClientRegistry.register();
+	}
+
+	/**
+	 * Component deactivation, the S3 clients are closed when no store uses them
 	 */
-	private String getAttachmentPathRoot(MStorageProvider prov) {
-		String attachmentPathRoot = prov.getFolder();
-		if (attachmentPathRoot == null)
-			attachmentPathRoot = "";
-		if (attachmentPathRoot.startsWith("/"))
-			attachmentPathRoot = attachmentPathRoot.replaceFirst("/", "");
-		if (!attachmentPathRoot.endsWith("/"))
-			attachmentPathRoot = attachmentPathRoot + "/";
-		return attachmentPathRoot;
+	protected void deactivate() {
+		S3ClientRegistry.unregister();
 	}
-	
+
 }
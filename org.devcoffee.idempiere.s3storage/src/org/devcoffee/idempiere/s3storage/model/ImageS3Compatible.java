@@ -14,33 +14,36 @@
 
 package org.devcoffee.idempiere.s3storage.model;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Result;
-import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.adempiere.exceptions.AdempiereException;
 import org.compiere.model.IImageStore;
 import org.compiere.model.MImage;
 import org.compiere.model.MStorageProvider;
 import org.compiere.util.CLogger;
+import org.compiere.util.CacheMgt;
+import org.devcoffee.idempiere.s3storage.util.S3AsyncUtil;
+import org.devcoffee.idempiere.s3storage.util.S3ClientRegistry;
+import org.devcoffee.idempiere.s3storage.util.S3Config;
+import org.devcoffee.idempiere.s3storage.util.S3ImageCache;
+import org.devcoffee.idempiere.s3storage.util.S3PendingFlush;
+import org.devcoffee.idempiere.s3storage.util.S3KeyLayout;
+import org.devcoffee.idempiere.s3storage.util.S3Pointer;
+import org.devcoffee.idempiere.s3storage.util.S3ReadResult;
+import org.devcoffee.idempiere.s3storage.util.S3StorageException;
+import org.devcoffee.idempiere.s3storage.util.S3TrxCleanup;
 import org.devcoffee.idempiere.s3storage.util.S3Util;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 import software.amazon.awssdk.services.s3.S3Client;
 
@@ -50,128 +53,292 @@ public class ImageS3Compatible implements IImageStore {
 	
 	private  String IMAGE_FOLDER_PLACEHOLDER = "%IMAGE_FOLDER%";
 	
-	//temporary buffer when AD_Image_ID=0
-	private byte[] buffer = null;
+	/** Content of new images, written once the image has an ID */
+	private final S3PendingFlush<MImage> pending = new S3PendingFlush<>();
 
 	@Override
 	public byte[] load(MImage image, MStorageProvider prov) {
 		String bucketStr = prov.get_ValueAsString("S3Bucket");
-		String imagePathRoot = getImagePathRoot(prov);
+		byte[] pendingData = pending.get(image);
+		if (pendingData != null)
+			return pendingData;
+		long cacheSize = S3Config.getImageCacheSize(prov);
+		String version = null;
+		if (cacheSize > 0 && image.get_ID() > 0 && image.getByteData() != null) {
+			version = getVersion(image, prov);
+			byte[] data = S3ImageCache.get().get(image.get_ID(), version);
+			if (data != null)
+				return data;
+		}
+		String filePath = getObjectKey(image, prov);
+		if (filePath != null) {
+			S3Client s3Client = S3ClientRegistry.getClient(prov);
+			S3ReadResult result = S3Util.readObject(s3Client, bucketStr, filePath, prov);
+			if (result.isFound()) {
+				if (version != null)
+					S3ImageCache.get().put(image.get_ID(), version, result.getData(), cacheSize);
+				return result.getData();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Load the image content without blocking, so several images can be loaded
+	 * at the same time
+	 * 
+	 * @return future of the content, null when not found
+	 */
+	public CompletableFuture<byte[]> loadAsync(MImage image, MStorageProvider prov) {
+		long cacheSize = S3Config.getImageCacheSize(prov);
+		String version = null;
+		if (cacheSize > 0 && image.get_ID() > 0 && image.getByteData() != null) {
+			version = getVersion(image, prov);
+			byte[] data = S3ImageCache.get().get(image.get_ID(), version);
+			if (data != null)
+				return CompletableFuture.completedFuture(data);
+		}
+		String filePath = getObjectKey(image, prov);
+		if (filePath == null)
+			return CompletableFuture.completedFuture(null);
+		final int AD_Image_ID = image.get_ID();
+		final String cacheVersion = version;
+		return S3AsyncUtil.readObject(S3ClientRegistry.getAsyncClient(prov), prov.get_ValueAsString("S3Bucket"), filePath)
+				.thenApply(result -> {
+					if (!result.isFound())
+						return null;
+					if (cacheVersion != null)
+						S3ImageCache.get().put(AD_Image_ID, cacheVersion, result.getData(), cacheSize);
+					return result.getData();
+				});
+	}
+
+	/**
+	 * Returns the version of the image content, from the record update time,
+	 * the storage provider and the XML pointer
+	 * 
+	 * @return String
+	 */
+	private String getVersion(MImage image, MStorageProvider prov) {
+		Timestamp updated = image.getUpdated();
+		return prov.get_ID() + "/" + (updated != null ? updated.getTime() : 0) + "/" + Arrays.hashCode(image.getByteData());
+	}
+
+	/**
+	 * Drop the cached content of the image, on this server and on the other
+	 * nodes of the cluster
+	 */
+	private void resetCache(MImage image) {
+		if (image.get_ID() <= 0)
+			return;
+		S3ImageCache.get().remove(image.get_ID());
+		CacheMgt.get().reset(MImage.Table_Name, image.get_ID());
+	}
+
+	/**
+	 * Open a stream on the image content, so callers able to consume a stream
+	 * do not need to hold the whole image in memory
+	 * 
+	 * @return stream to be closed by the caller, null when not found
+	 */
+	public InputStream getInputStream(MImage image, MStorageProvider prov) {
+		String filePath = getObjectKey(image, prov);
+		if (filePath == null)
+			return null;
+		return S3Util.getObjectAsStream(S3ClientRegistry.getClient(prov), prov.get_ValueAsString("S3Bucket"), filePath);
+	}
+
+	/**
+	 * Download the image content straight to a file
+	 * 
+	 * @param target file to write, replaced if it exists
+	 * @return true when downloaded
+	 */
+	public boolean download(MImage image, MStorageProvider prov, Path target) {
+		String filePath = getObjectKey(image, prov);
+		if (filePath == null)
+			return false;
+		return S3Util.getObject(S3ClientRegistry.getClient(prov), prov.get_ValueAsString("S3Bucket"), filePath, target);
+	}
+
+	/**
+	 * Create a presigned URL to show the image straight from the bucket, valid
+	 * for the time set for the storage provider
+	 * 
+	 * @return URL, null when there is no pointer
+	 */
+	public URL getPresignedUrl(MImage image, MStorageProvider prov) {
+		return getPresignedUrl(image, prov, S3Config.getPresignedUrlExpiry(prov), null);
+	}
+
+	/**
+	 * Create a presigned URL to get the image straight from the bucket
+	 * 
+	 * @param expiry             validity of the URL
+	 * @param contentDisposition Content-Disposition of the response, null to
+	 *                           show it inline with the image name
+	 * @return URL, null when there is no pointer
+	 */
+	public URL getPresignedUrl(MImage image, MStorageProvider prov, Duration expiry, String contentDisposition) {
+		String filePath = getObjectKey(image, prov);
+		if (filePath == null)
+			return null;
+		if (contentDisposition == null)
+			contentDisposition = S3Util.getContentDisposition(true, image.getName());
+		return S3Util.presignGetObject(S3ClientRegistry.getPresigner(prov), prov.get_ValueAsString("S3Bucket"), filePath,
+				expiry, contentDisposition, null, null);
+	}
+
+	/**
+	 * Returns the object key from the XML pointer of the image
+	 * 
+	 * @return String, null when there is no pointer
+	 */
+	private String getObjectKey(MImage image, MStorageProvider prov) {
+		String imagePathRoot = S3Config.getPathRoot(prov);
 		
 		if ("".equals(imagePathRoot)) {
 			throw new IllegalArgumentException("no path defined");
 		}
-		buffer = null;
 		byte[] data = image.getByteData();
 		if (data == null) {
 			return null;
 		}
 
-		final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-
-		try {
-			final DocumentBuilder builder = factory.newDocumentBuilder();
-			final Document document = builder.parse(new ByteArrayInputStream(data));
-			final NodeList entries = document.getElementsByTagName("entry");
-			if(entries.getLength()!=1){
-				log.severe("no image entry found");
-			}
-			final Node entryNode = entries.item(0);
-			final NamedNodeMap attributes = entryNode.getAttributes();
-			final Node	 fileNode = attributes.getNamedItem("file");
-			if(fileNode==null ){
-				log.severe("no filename for entry");
-				return null;
-			}
-			String filePath = fileNode.getNodeValue();
-			if (log.isLoggable(Level.FINE)) log.fine("filePath: " + filePath);
-			if(filePath!=null){
-				filePath = filePath.replaceFirst(IMAGE_FOLDER_PLACEHOLDER, imagePathRoot.replaceAll("\\\\","\\\\\\\\"));
-				S3Client s3Client = S3Util.createS3Client(prov);
-				if (S3Util.exists(s3Client, bucketStr, filePath)) {
-					byte[] dataEntry = S3Util.getObject(s3Client, bucketStr, filePath);
-					// Return the object if Found
-					return dataEntry;
-				}
-			}
-		} catch (SAXException sxe) {
-			// Error generated during parsing)
-			Exception x = sxe;
-			if (sxe.getException() != null)
-				x = sxe.getException();
-			log.severe(x.getMessage());
-
-		} catch (ParserConfigurationException pce) {
-			// Parser with specified options can't be built
-			log.severe(pce.getMessage());
-
-		} catch (IOException ioe) {
-			// I/O error
-			log.severe(ioe.getMessage());
-		} catch (Exception e) {
-			// General error
-			log.severe(e.getMessage());
+		S3Pointer pointer = S3Pointer.parse(data);
+		S3Pointer.Entry entry = pointer != null ? pointer.getEntry() : null;
+		if (entry == null) {
+			log.severe("no image entry found");
+			return null;
 		}
-		
-		return null;
+		if (pointer.getEntries().size() != 1)
+			log.severe("no image entry found");
+		String filePath = entry.getFile();
+		if (filePath == null) {
+			log.severe("no filename for entry");
+			return null;
+		}
+		if (log.isLoggable(Level.FINE)) log.fine("filePath: " + filePath);
+		return filePath.replaceFirst(IMAGE_FOLDER_PLACEHOLDER, imagePathRoot.replaceAll("\\\\","\\\\\\\\"));
 	}
 
 	@Override
 	public void  save(MImage image, MStorageProvider prov,byte[] inflatedData) {
 		if (inflatedData == null || inflatedData.length == 0) {
-			image.setByteData(null);
+			pending.discard(image);
+			// deleted before the pointer is cleared, it holds the key
 			delete(image, prov);
+			image.setByteData(null);
 			return;
 		}
 		
 		if(image.get_ID()==0){
 			//set binary data otherwise save will fail
 			image.setByteData(new byte[]{'0'});
-			buffer = inflatedData;
+			pending.put(image, inflatedData);
 		} else {
+			pending.discard(image);
 			write(image, prov, inflatedData);
 		}
 	}
 
+	/**
+	 * Save the image content from a file, streamed to the bucket without
+	 * holding it in memory
+	 */
+	public void save(MImage image, MStorageProvider prov, Path file) {
+		if (image.get_ID() == 0 || file.toFile().length() == 0) {
+			try (InputStream in = Files.newInputStream(file)) {
+				save(image, prov, in, Files.size(file));
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Error reading " + file, e);
+				throw new UncheckedIOException(e);
+			}
+		} else {
+			pending.discard(image);
+			write(image, prov, (s3Client, bucketStr, key) -> S3Util.putObject(s3Client, bucketStr, key, file.toFile(), prov));
+		}
+	}
+
+	/**
+	 * Save the image content from a stream, without holding it in memory. A
+	 * stream of unknown length or a new image is written to a temporary file
+	 * first. The stream is not closed.
+	 * 
+	 * @param length content length, -1 when unknown, 0 to remove the content
+	 */
+	public void save(MImage image, MStorageProvider prov, InputStream in, long length) {
+		if (length == 0) {
+			save(image, prov, (byte[]) null);
+			return;
+		}
+		if (image.get_ID() == 0) {
+			// kept in a file until the image has an ID
+			Path file = null;
+			try {
+				file = Files.createTempFile("idempiere-s3", ".tmp");
+				if (Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING) == 0) {
+					S3Util.deleteTempFile(file);
+					save(image, prov, (byte[]) null);
+					return;
+				}
+			} catch (IOException e) {
+				S3Util.deleteTempFile(file);
+				log.log(Level.SEVERE, "Error", e);
+				throw new UncheckedIOException(e);
+			}
+			//set binary data otherwise save will fail
+			image.setByteData(new byte[]{'0'});
+			pending.put(image, file);
+		} else {
+			pending.discard(image);
+			write(image, prov, (s3Client, bucketStr, key) -> S3Util.putObject(s3Client, bucketStr, key, in, length, null, prov));
+		}
+	}
+
 	private void write(MImage image, MStorageProvider prov, byte[] inflatedData) {
+		write(image, prov, (s3Client, bucketStr, key) -> S3Util.putObjectFomBytes(s3Client, bucketStr, key, inflatedData, prov));
+	}
+
+	/**
+	 * Write the image object with the given writer and its pointer; the
+	 * object written before with another key is removed once the pointer is
+	 * committed
+	 */
+	private void write(MImage image, MStorageProvider prov, ObjectWriter writer) {
 		String bucketStr = prov.get_ValueAsString("S3Bucket");
-		String imagePathRoot = getImagePathRoot(prov);
+		String imagePathRoot = S3Config.getPathRoot(prov);
 
 		try {
-			final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();			
-			
 			if ("".equals(imagePathRoot)) {
 				throw new IllegalArgumentException("no storage path defined");
 			}
 
-			StringBuilder msgfile = new StringBuilder().append(imagePathRoot)
-					.append(image.getImageStoragePath()).append(image.get_ID());
-			S3Client s3Client = S3Util.createS3Client(prov);
-			if (!S3Util.putObjectFomBytes(s3Client, bucketStr, msgfile.toString(), inflatedData)) {
+			String previousKey = getStoredKey(image, prov);
+			String layout = S3KeyLayout.getVersion(prov);
+			String path = S3KeyLayout.getKey(layout, image.getImageStoragePath() + image.get_ID());
+			StringBuilder msgfile = new StringBuilder().append(imagePathRoot).append(path);
+			S3Client s3Client = S3ClientRegistry.getClient(prov);
+			if (!writer.write(s3Client, bucketStr, msgfile.toString())) {
 				log.log(Level.SEVERE, "Error on save object | " + msgfile.toString());
-				throw new AdempiereException("Error saving S3 object: " + image.getName());
+				throw S3StorageException.of("Error saving S3 object: " + image.getName(), S3Util.getLastError());
 			}
+			resetCache(image);
 
 			//create xml entry
-			final DocumentBuilder builder = factory.newDocumentBuilder();
-			final Document document = builder.newDocument();
-			final Element root = document.createElement("image");
-			document.appendChild(root);
-			document.setXmlStandalone(true);
-			final Element entry = document.createElement("entry");
-			StringBuilder msgsat = new StringBuilder(IMAGE_FOLDER_PLACEHOLDER).append(image.getImageStoragePath()).append(image.get_ID());
-			entry.setAttribute("file", msgsat.toString());
-			root.appendChild(entry);
-			final Source source = new DOMSource(document);
-			final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			final Result result = new StreamResult(bos);
-			final Transformer xformer = TransformerFactory.newInstance().newTransformer();
-			xformer.transform(source, result);
-			final byte[] xmlData = bos.toByteArray();
-			if (log.isLoggable(Level.FINE)) log.fine(bos.toString());
+			S3Pointer pointer = new S3Pointer(S3Pointer.ROOT_IMAGE);
+			StringBuilder msgsat = new StringBuilder(IMAGE_FOLDER_PLACEHOLDER).append(path);
+			pointer.addEntry().setFile(msgsat.toString()).setLayout(S3KeyLayout.toAttribute(layout));
+			final byte[] xmlData = pointer.toXML();
+			if (log.isLoggable(Level.FINE)) log.fine(pointer.toString());
 			//store xml in db
 			image.setByteData(xmlData);
 
+			// the object written with another layout is replaced once the pointer is committed
+			if (!msgfile.toString().equals(previousKey))
+				S3TrxCleanup.register(image.get_TrxName(), prov, bucketStr,
+						previousKey != null ? List.of(previousKey) : List.of(), List.of(msgfile.toString()));
+
 		} catch (Exception e) {
 			log.log(Level.SEVERE, "Error", e);
 			image.setByteData(null);
@@ -179,34 +346,50 @@ public class ImageS3Compatible implements IImageStore {
 		}
 	}
 
-	private String getImagePathRoot(MStorageProvider prov) {
-		String imagePathRoot = prov.getFolder();
-		if (imagePathRoot == null)
-			imagePathRoot = "";
-		if (imagePathRoot.startsWith("/"))
-			imagePathRoot = imagePathRoot.replaceFirst("/", "");
-		if (!imagePathRoot.endsWith("/"))
-			imagePathRoot = imagePathRoot + "/";
-		return imagePathRoot;
+	/**
+	 * Uploads the content of an image to a key
+	 */
+	@FunctionalInterface
+	private interface ObjectWriter {
+		/**
+		 * @return true when uploaded
+		 */
+		boolean write(S3Client s3Client, String bucketStr, String key);
+	}
+
+	/**
+	 * Returns the object key of the pointer stored in the image
+	 * 
+	 * @return String, null when the image has no pointer yet
+	 */
+	private String getStoredKey(MImage image, MStorageProvider prov) {
+		byte[] data = image.getByteData();
+		if (data == null || data.length == 0 || data[0] != '<')
+			return null;
+		return getObjectKey(image, prov);
 	}
 
 	@Override
 	public boolean delete(MImage image, MStorageProvider prov) {
 		String bucketStr = prov.get_ValueAsString("S3Bucket");
-		String imagePathRoot = getImagePathRoot(prov);
+		String imagePathRoot = S3Config.getPathRoot(prov);
 
 		if ("".equals(imagePathRoot)) {
 			throw new IllegalArgumentException("no attachmentPath defined");
 		}
-		StringBuilder msgfile = new StringBuilder().append(imagePathRoot)
-				.append(image.getImageStoragePath()).append(image.getAD_Image_ID());
+		// the key of the pointer, whatever the layout it was written with
+		String key = getStoredKey(image, prov);
+		if (key == null)
+			key = new StringBuilder().append(imagePathRoot)
+					.append(image.getImageStoragePath()).append(image.getAD_Image_ID()).toString();
 		
+		resetCache(image);
 		try {
-			S3Client s3Client = S3Util.createS3Client(prov);
-			if (S3Util.deleteObject(s3Client, bucketStr, msgfile.toString())) {
+			S3Client s3Client = S3ClientRegistry.getClient(prov);
+			if (S3Util.deleteObject(s3Client, bucketStr, key, prov)) {
 				return true;
 			} else {
-				throw new AdempiereException("Error deleting S3 object: " + image.getName());
+				throw S3StorageException.of("Error deleting S3 object: " + image.getName(), S3Util.getLastError());
 			}
 				
 		} catch (Exception e) {
@@ -217,15 +400,37 @@ public class ImageS3Compatible implements IImageStore {
 
 	@Override
 	public boolean isPendingFlush() {
-		return buffer != null && buffer.length > 0;
+		return pending.isPending();
 	}
 
 	@Override
 	public void flush(MImage image, MStorageProvider prov) {
-		if (buffer != null && buffer.length > 0) {
-			write(image, prov, buffer);
-			buffer = null;
-		}		
+		S3PendingFlush.Content content = pending.remove(image);
+		if (content == null)
+			return;
+		try {
+			final Path file = content.getFile();
+			if (file != null)
+				write(image, prov, (s3Client, bucketStr, key) -> S3Util.putObject(s3Client, bucketStr, key, file.toFile(), prov));
+			else if (content.getData().length > 0)
+				write(image, prov, content.getData());
+		} finally {
+			content.discard();
+		}
+	}
+
+	/**
+	 * Component activation, start sharing the S3 clients
+	 */
+	protected void activate() {
+		S3ClientRegistry.register();
+	}
+
+	/**
+	 * Component deactivation, the S3 clients are closed when no store uses them
+	 */
+	protected void deactivate() {
+		S3ClientRegistry.unregister();
 	}
 
 }
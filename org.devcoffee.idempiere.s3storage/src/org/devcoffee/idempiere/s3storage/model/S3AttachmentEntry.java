@@ -0,0 +1,214 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+
+import org.compiere.model.MAttachmentEntry;
+import org.compiere.model.MStorageProvider;
+import org.devcoffee.idempiere.s3storage.util.S3AsyncUtil;
+import org.devcoffee.idempiere.s3storage.util.S3ClientRegistry;
+import org.devcoffee.idempiere.s3storage.util.S3Compression;
+import org.devcoffee.idempiere.s3storage.util.S3DiskCache;
+import org.devcoffee.idempiere.s3storage.util.S3Executor;
+import org.devcoffee.idempiere.s3storage.util.S3ReadResult;
+import org.devcoffee.idempiere.s3storage.util.S3StorageException;
+import org.devcoffee.idempiere.s3storage.util.S3Util;
+
+import software.amazon.awssdk.services.s3.S3Client;
+
+/**
+ * Attachment entry whose content is fetched from the bucket on first access.
+ * <p>
+ * Used by {@link AttachmentS3Compatible} in lazy load mode: the entry list is
+ * built from the XML pointer only, and the object is downloaded the first time
+ * the data, file or stream of the entry is requested. When the object is
+ * missing the entry gets the ~name~ placeholder name and empty content; when
+ * the read fails an {@link S3StorageException} is thrown and the next access
+ * tries again.
+ */
+public class S3AttachmentEntry extends MAttachmentEntry {
+
+	private final MStorageProvider prov;
+	private final String bucket;
+	private final String key;
+	private final long size;
+	private final String codec;
+
+	/** Content fetched from the bucket or set by the caller */
+	private volatile boolean loaded;
+
+	/**
+	 * @param name  entry name
+	 * @param index entry index
+	 * @param prov  storage provider
+	 * @param key   object key
+	 * @param size  object size from the pointer, -1 when unknown
+	 */
+	public S3AttachmentEntry(String name, int index, MStorageProvider prov, String key, long size) {
+		this(name, index, prov, key, size, null);
+	}
+
+	/**
+	 * @param name  entry name
+	 * @param index entry index
+	 * @param prov  storage provider
+	 * @param key   object key
+	 * @param size  content size from the pointer, -1 when unknown
+	 * @param codec codec the object is compressed with, null when not
+	 *              compressed
+	 */
+	public S3AttachmentEntry(String name, int index, MStorageProvider prov, String key, long size, String codec) {
+		super(name, null, index);
+		this.prov = prov;
+		this.bucket = prov.get_ValueAsString("S3Bucket");
+		this.key = key;
+		this.size = size;
+		this.codec = codec;
+		this.loaded = false;
+	}
+
+	@Override
+	public byte[] getData() {
+		if (!loaded)
+			load();
+		return super.getData();
+	}
+
+	/**
+	 * Loaded first, so the file name is the ~name~ placeholder when the object
+	 * is missing
+	 */
+	@Override
+	public File getFile() {
+		if (!loaded)
+			load();
+		return super.getFile();
+	}
+
+	/**
+	 * The content is written from the entry data, so it is loaded first
+	 */
+	@Override
+	public File getFile(File file) {
+		if (!loaded)
+			load();
+		return super.getFile(file);
+	}
+
+	@Override
+	public void setData(byte[] data) {
+		super.setData(data);
+		loaded = true;
+	}
+
+	/**
+	 * The content is loaded first, through the disk cache when the storage
+	 * provider has one
+	 */
+	@Override
+	public InputStream getInputStream() {
+		byte[] data = getData();
+		return data != null ? new ByteArrayInputStream(data) : null;
+	}
+
+	/**
+	 * Fetch the content without blocking, so the entries of an attachment can
+	 * be loaded at the same time from a few threads. With a disk cache the
+	 * read goes through it on the shared S3 executor.
+	 * 
+	 * @return future of the content, failed with an {@link S3StorageException}
+	 *         when the read failed
+	 */
+	public CompletableFuture<byte[]> getDataAsync() {
+		if (loaded)
+			return CompletableFuture.completedFuture(super.getData());
+		CompletableFuture<S3ReadResult> read;
+		if (S3DiskCache.get(prov) != null)
+			read = CompletableFuture.supplyAsync(() -> S3Util.readObject(S3ClientRegistry.getClient(prov), bucket, key, prov),
+					S3Executor.getExecutor());
+		else
+			read = S3AsyncUtil.readObject(S3ClientRegistry.getAsyncClient(prov), bucket, key);
+		return read.thenApply(result -> {
+			synchronized (this) {
+				if (!loaded)
+					setLoaded(result);
+			}
+			return super.getData();
+		});
+	}
+
+	/**
+	 * @return true when the content was fetched or set
+	 */
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * @return codec the object is compressed with, null when not compressed
+	 */
+	public String getCodec() {
+		return codec;
+	}
+
+	/**
+	 * @return object key
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * @return content size, -1 when not loaded and unknown
+	 */
+	public long getSize() {
+		if (loaded) {
+			byte[] data = super.getData();
+			return data != null ? data.length : 0;
+		}
+		return size;
+	}
+
+	/**
+	 * Fetch the content from the bucket
+	 */
+	private synchronized void load() {
+		if (loaded)
+			return;
+		S3Client s3Client = S3ClientRegistry.getClient(prov);
+		setLoaded(S3Util.readObject(s3Client, bucket, key, prov));
+	}
+
+	/**
+	 * Set the content read from the bucket
+	 * 
+	 * @throws S3StorageException when the read failed, the entry stays not
+	 *                            loaded
+	 */
+	private void setLoaded(S3ReadResult result) {
+		if (result.getStatus() == S3ReadResult.Status.ERROR)
+			throw S3StorageException.of("Error reading " + key, result.getError());
+		byte[] data = S3Compression.decompress(result.getData(), codec);
+		if (result.getStatus() == S3ReadResult.Status.NOT_FOUND) {
+			setName("~" + getName() + "~");
+			data = "".getBytes();
+		}
+		setData(data);
+	}
+}
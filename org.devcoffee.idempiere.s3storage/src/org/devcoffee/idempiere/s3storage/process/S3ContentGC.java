@@ -0,0 +1,237 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.process;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+
+import org.adempiere.exceptions.AdempiereException;
+import org.compiere.model.MAttachment;
+import org.compiere.model.MStorageProvider;
+import org.compiere.process.ProcessInfoParameter;
+import org.compiere.process.SvrProcess;
+import org.compiere.util.DB;
+import org.devcoffee.idempiere.s3storage.util.S3ClientRegistry;
+import org.devcoffee.idempiere.s3storage.util.S3Config;
+import org.devcoffee.idempiere.s3storage.util.S3ContentStore;
+import org.devcoffee.idempiere.s3storage.util.S3Executor;
+import org.devcoffee.idempiere.s3storage.util.S3Pointer;
+import org.devcoffee.idempiere.s3storage.util.S3Util;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * Remove the content-addressed objects no attachment refers to any more.
+ * <p>
+ * The hashes referenced by the attachment pointers of the clients storing
+ * their attachments in the bucket and folder of the storage provider, with
+ * it or another provider, are read first. Then the objects of the storage
+ * provider are listed and the ones neither referenced nor modified within
+ * the grace period are deleted. A save reusing an object refreshes it before
+ * its pointer is written, so the grace period covers the attachments being
+ * saved while the process runs. As the listing may be older than such a
+ * refresh, the pointers updated meanwhile and the candidates are read again
+ * just before the delete, and the ones referenced or refreshed since are
+ * kept.
+ */
+public class S3ContentGC extends SvrProcess {
+
+	private int p_AD_StorageProvider_ID = 0;
+	/** Objects modified within this period are kept */
+	private int p_GraceHours = 24;
+	/** Only report the objects to delete */
+	private boolean p_IsDryRun = false;
+
+	@Override
+	protected void prepare() {
+		for (ProcessInfoParameter para : getParameter()) {
+			String name = para.getParameterName();
+			if (para.getParameter() == null)
+				;
+			else if ("AD_StorageProvider_ID".equals(name))
+				p_AD_StorageProvider_ID = para.getParameterAsInt();
+			else if ("GraceHours".equals(name))
+				p_GraceHours = para.getParameterAsInt();
+			else if ("IsDryRun".equals(name))
+				p_IsDryRun = para.getParameterAsBoolean();
+			else
+				log.log(Level.SEVERE, "Unknown Parameter: " + name);
+		}
+		if (p_AD_StorageProvider_ID == 0)
+			p_AD_StorageProvider_ID = getRecord_ID();
+	}
+
+	@Override
+	protected String doIt() throws Exception {
+		MStorageProvider prov = new MStorageProvider(getCtx(), p_AD_StorageProvider_ID, get_TrxName());
+		if (prov.get_ID() == 0)
+			throw new AdempiereException("No storage provider: " + p_AD_StorageProvider_ID);
+		if (p_GraceHours < 1)
+			throw new AdempiereException("GraceHours must be at least 1");
+		String bucket = prov.get_ValueAsString("S3Bucket");
+		String prefix = S3ContentStore.getPrefix(prov);
+
+		String clients = getClientsWhere(prov);
+		Timestamp read = DB.getSQLValueTSEx(get_TrxName(), "SELECT getDate() FROM AD_System");
+		Set<String> referenced = new HashSet<>();
+		addReferencedHashes(referenced, clients, null);
+		statusUpdate("Referenced: " + referenced.size());
+
+		Instant cutoff = Instant.now().minus(p_GraceHours, ChronoUnit.HOURS);
+		List<S3Object> candidates = new ArrayList<>();
+		long[] counts = new long[3]; // objects, recent, bytes to delete
+		S3Client s3Client = S3ClientRegistry.getClient(prov);
+		boolean listed = S3Util.listObjects(s3Client, bucket, prefix, object -> {
+			String hash = S3ContentStore.getHash(object.key());
+			if (hash == null)
+				return;
+			counts[0]++;
+			if (referenced.contains(hash))
+				return;
+			if (object.lastModified() == null || object.lastModified().isAfter(cutoff)) {
+				counts[1]++;
+				return;
+			}
+			candidates.add(object);
+		});
+		if (!listed)
+			throw new AdempiereException("Error listing " + bucket + "/" + prefix);
+
+		// attachments saved while listing
+		Set<String> saved = new HashSet<>();
+		addReferencedHashes(saved, clients, read);
+		List<Callable<Instant>> checks = new ArrayList<>();
+		for (S3Object object : candidates) {
+			checks.add(() -> getLastModified(s3Client, bucket, object.key()));
+		}
+		List<Instant> modified = S3Executor.invokeAll(checks, S3Config.getMaxConcurrentFetches(prov));
+		List<String> unreferenced = new ArrayList<>();
+		for (int i = 0; i < candidates.size(); i++) {
+			S3Object object = candidates.get(i);
+			Instant lastModified = modified.get(i);
+			if (saved.contains(S3ContentStore.getHash(object.key())) || lastModified == null)
+				continue;
+			if (lastModified.isAfter(cutoff)) {
+				counts[1]++;
+				continue;
+			}
+			unreferenced.add(object.key());
+			counts[2] += object.size() != null ? object.size() : 0;
+		}
+
+		int failed = 0;
+		if (!p_IsDryRun && !unreferenced.isEmpty())
+			failed = S3Util.deleteObjects(s3Client, bucket, unreferenced, prov).size();
+		if (log.isLoggable(Level.INFO))
+			log.info("Objects=" + counts[0] + ", Unreferenced=" + unreferenced.size() + ", Recent=" + counts[1]
+					+ ", Failed=" + failed + ", DryRun=" + p_IsDryRun);
+		return "Objects: " + counts[0] + ", unreferenced: " + unreferenced.size() + " (" + (counts[2] / 1024) + " KB)"
+				+ (p_IsDryRun ? ", not deleted (dry run)" : ", deleted: " + (unreferenced.size() - failed))
+				+ ", kept within grace period: " + counts[1];
+	}
+
+	/**
+	 * Read the last modified time of an object again just before it is
+	 * deleted, a save may have refreshed it after the listing
+	 * 
+	 * @return last modified time, null when the object is gone or the check
+	 *         failed and it is kept
+	 */
+	private Instant getLastModified(S3Client s3Client, String bucket, String key) {
+		try {
+			HeadObjectResponse head = S3Util.headObject(s3Client, bucket, key);
+			return head != null ? head.lastModified() : null;
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Error checking " + key + ", kept", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the condition selecting the clients whose attachments are stored
+	 * in the bucket and folder of the storage provider, with it or another
+	 * provider sharing them
+	 * 
+	 * @return SQL condition on AD_Client_ID
+	 */
+	private String getClientsWhere(MStorageProvider prov) {
+		StringBuilder ids = new StringBuilder().append(prov.get_ID());
+		for (int id : DB.getIDsEx(get_TrxName(), "SELECT AD_StorageProvider_ID FROM AD_StorageProvider WHERE Method=? AND AD_StorageProvider_ID<>?",
+				"S3Compatible", prov.get_ID())) {
+			MStorageProvider other = new MStorageProvider(getCtx(), id, get_TrxName());
+			if (isSameLocation(prov, other))
+				ids.append(",").append(id);
+		}
+		return "AD_Client_ID IN (SELECT AD_Client_ID FROM AD_ClientInfo WHERE StorageAttachment_ID IN (" + ids + "))";
+	}
+
+	/**
+	 * @return true when both providers store their objects in the same bucket
+	 *         and folder
+	 */
+	private static boolean isSameLocation(MStorageProvider prov, MStorageProvider other) {
+		return Objects.equals(prov.getURL(), other.getURL())
+				&& Objects.equals(prov.get_ValueAsString("S3EndPoint"), other.get_ValueAsString("S3EndPoint"))
+				&& Objects.equals(prov.get_ValueAsString("S3Bucket"), other.get_ValueAsString("S3Bucket"))
+				&& S3ContentStore.getPrefix(prov).equals(S3ContentStore.getPrefix(other));
+	}
+
+	/**
+	 * Read the hashes of the content-addressed objects the attachment pointers
+	 * of the clients refer to
+	 * 
+	 * @param clients condition on AD_Client_ID
+	 * @param updated read only the attachments updated since, null for all
+	 */
+	private void addReferencedHashes(Set<String> hashes, String clients, Timestamp updated) throws SQLException {
+		String sql = "SELECT BinaryData FROM AD_Attachment WHERE Title=? AND BinaryData IS NOT NULL AND " + clients
+				+ (updated != null ? " AND Updated>=?" : "");
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			pstmt = DB.prepareStatement(sql, get_TrxName());
+			pstmt.setString(1, MAttachment.XML);
+			if (updated != null)
+				pstmt.setTimestamp(2, updated);
+			rs = pstmt.executeQuery();
+			while (rs.next()) {
+				byte[] data = rs.getBytes(1);
+				S3Pointer pointer = data != null && data.length > 0 ? S3Pointer.parse(data) : null;
+				if (pointer == null)
+					continue;
+				for (S3Pointer.Entry entry : pointer.getEntries()) {
+					String hash = S3ContentStore.getHash(entry.getFile());
+					if (hash != null)
+						hashes.add(hash);
+				}
+			}
+		} finally {
+			DB.close(rs, pstmt);
+		}
+	}
+}
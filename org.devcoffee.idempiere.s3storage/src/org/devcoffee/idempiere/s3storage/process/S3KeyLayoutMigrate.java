@@ -0,0 +1,248 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.process;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.adempiere.exceptions.AdempiereException;
+import org.compiere.model.MArchive;
+import org.compiere.model.MAttachment;
+import org.compiere.model.MImage;
+import org.compiere.model.MStorageProvider;
+import org.compiere.process.ProcessInfoParameter;
+import org.compiere.process.SvrProcess;
+import org.compiere.util.DB;
+import org.devcoffee.idempiere.s3storage.util.S3ClientRegistry;
+import org.devcoffee.idempiere.s3storage.util.S3Config;
+import org.devcoffee.idempiere.s3storage.util.S3ContentStore;
+import org.devcoffee.idempiere.s3storage.util.S3Executor;
+import org.devcoffee.idempiere.s3storage.util.S3KeyLayout;
+import org.devcoffee.idempiere.s3storage.util.S3Pointer;
+import org.devcoffee.idempiere.s3storage.util.S3StorageException;
+import org.devcoffee.idempiere.s3storage.util.S3TrxCleanup;
+import org.devcoffee.idempiere.s3storage.util.S3Util;
+
+import software.amazon.awssdk.services.s3.S3Client;
+
+/**
+ * Move the objects of the attachments, archives and images of the client to
+ * the key layout of the storage provider ({@link S3Config#KEY_LAYOUT}).
+ * <p>
+ * Each object is copied by the server to its new key, the pointer is written
+ * with a direct update unless the record was changed meanwhile, and only then
+ * the old objects are deleted. Entries already in the layout and shared
+ * content-addressed objects are left as they are, so a stopped run is simply
+ * started again.
+ */
+public class S3KeyLayoutMigrate extends SvrProcess {
+
+	/** Records submitted per worker in one batch */
+	private static final int BATCH_PER_WORKER = 8;
+
+	private static final Pattern PLACEHOLDER = Pattern.compile("^(%[A-Z_]+%)(.*)$");
+
+	private int p_AD_StorageProvider_ID = 0;
+	/** AD_Attachment, AD_Archive or AD_Image, null for all of them */
+	private String p_TableName = null;
+	private int p_Concurrency = 8;
+
+	private MStorageProvider prov;
+	private String bucket;
+	private String root;
+	private String layout;
+
+	@Override
+	protected void prepare() {
+		for (ProcessInfoParameter para : getParameter()) {
+			String name = para.getParameterName();
+			if (para.getParameter() == null)
+				;
+			else if ("AD_StorageProvider_ID".equals(name))
+				p_AD_StorageProvider_ID = para.getParameterAsInt();
+			else if ("TableName".equals(name))
+				p_TableName = para.getParameterAsString();
+			else if ("Concurrency".equals(name))
+				p_Concurrency = para.getParameterAsInt();
+			else
+				log.log(Level.SEVERE, "Unknown Parameter: " + name);
+		}
+		if (p_AD_StorageProvider_ID == 0)
+			p_AD_StorageProvider_ID = getRecord_ID();
+	}
+
+	@Override
+	protected String doIt() throws Exception {
+		prov = new MStorageProvider(getCtx(), p_AD_StorageProvider_ID, get_TrxName());
+		if (prov.get_ID() == 0)
+			throw new AdempiereException("No storage provider: " + p_AD_StorageProvider_ID);
+		if (!"S3Compatible".equals(prov.getMethod()))
+			throw new AdempiereException("Storage provider is not S3 compatible: " + prov.getName());
+		if (p_Concurrency < 1)
+			p_Concurrency = 1;
+		bucket = prov.get_ValueAsString("S3Bucket");
+		root = S3Config.getPathRoot(prov);
+		layout = S3KeyLayout.getVersion(prov);
+
+		StringBuilder msg = new StringBuilder(S3Config.getKeyLayout(prov)).append(": ");
+		String[][] tables = { { MAttachment.Table_Name, S3Pointer.ROOT_ATTACHMENTS },
+				{ MArchive.Table_Name, S3Pointer.ROOT_ARCHIVE }, { MImage.Table_Name, S3Pointer.ROOT_IMAGE } };
+		boolean first = true;
+		for (String[] table : tables) {
+			if (p_TableName != null && !p_TableName.equals(table[0]))
+				continue;
+			if (!first)
+				msg.append(" - ");
+			msg.append(migrate(table[0], table[1]));
+			first = false;
+		}
+		return msg.toString();
+	}
+
+	/**
+	 * Move the objects of the records of a table
+	 * 
+	 * @param rootElement root element of the pointers of the table
+	 * @return summary
+	 */
+	private String migrate(String tableName, String rootElement) throws InterruptedException {
+		int[] ids = DB.getIDsEx(null, "SELECT " + tableName + "_ID FROM " + tableName
+				+ " WHERE AD_Client_ID=? AND BinaryData IS NOT NULL ORDER BY " + tableName + "_ID", getAD_Client_ID());
+		if (log.isLoggable(Level.INFO)) log.info(tableName + ": " + ids.length + " records");
+
+		int moved = 0, skipped = 0, failed = 0;
+		long start = System.nanoTime();
+		int batchSize = p_Concurrency * BATCH_PER_WORKER;
+		for (int from = 0; from < ids.length; from += batchSize) {
+			List<Callable<Result>> tasks = new ArrayList<>();
+			for (int i = from; i < Math.min(ids.length, from + batchSize); i++) {
+				final int id = ids[i];
+				tasks.add(() -> migrate(tableName, rootElement, id));
+			}
+			List<Result> results;
+			try {
+				results = S3Executor.invokeAll(tasks, p_Concurrency);
+			} catch (ExecutionException e) {
+				// tasks report their errors in the result
+				throw new AdempiereException(e.getCause());
+			}
+			for (Result result : results) {
+				if (result.error != null) {
+					failed++;
+					addLog(result.id, null, null, tableName + " " + result.id + ": " + result.error);
+				} else if (result.objects == 0) {
+					skipped++;
+				} else {
+					moved++;
+				}
+			}
+			double seconds = Math.max(0.001, (System.nanoTime() - start) / 1e9);
+			statusUpdate(tableName + ": " + (from + results.size()) + "/" + ids.length
+					+ String.format(" - %.1f records/s", (from + results.size()) / seconds));
+		}
+
+		String summary = tableName + ": moved=" + moved + ", skipped=" + skipped + ", failed=" + failed;
+		if (log.isLoggable(Level.INFO)) log.info(summary);
+		return summary;
+	}
+
+	/**
+	 * Move the objects of one record, errors are returned in the result
+	 */
+	private Result migrate(String tableName, String rootElement, int id) {
+		Result result = new Result(id);
+		List<String> copied = new ArrayList<>();
+		try {
+			byte[] data = null;
+			Timestamp updated = null;
+			PreparedStatement pstmt = null;
+			ResultSet rs = null;
+			try {
+				pstmt = DB.prepareStatement("SELECT BinaryData, Updated FROM " + tableName + " WHERE " + tableName + "_ID=?", null);
+				pstmt.setInt(1, id);
+				rs = pstmt.executeQuery();
+				if (rs.next()) {
+					data = rs.getBytes(1);
+					updated = rs.getTimestamp(2);
+				}
+			} finally {
+				DB.close(rs, pstmt);
+			}
+			if (data == null || data.length == 0 || data[0] != '<')
+				return result;
+			S3Pointer pointer = S3Pointer.parse(data);
+			if (pointer == null || !rootElement.equals(pointer.getRoot()))
+				return result;
+
+			S3Client s3Client = S3ClientRegistry.getClient(prov);
+			List<String> oldKeys = new ArrayList<>();
+			for (S3Pointer.Entry entry : pointer.getEntries()) {
+				String version = S3KeyLayout.getVersion(entry);
+				if (entry.getFile() == null || layout.equals(version) || S3ContentStore.isContentAddressed(entry.getFile()))
+					continue;
+				Matcher matcher = PLACEHOLDER.matcher(entry.getFile());
+				if (!matcher.matches())
+					continue;
+				String oldPath = matcher.group(2);
+				String newPath = S3KeyLayout.getKey(layout, S3KeyLayout.getPath(version, oldPath));
+				if (!S3Util.copyObject(s3Client, bucket, root + oldPath, root + newPath, prov))
+					throw S3StorageException.of("Cannot copy " + root + oldPath, S3Util.getLastError());
+				copied.add(root + newPath);
+				oldKeys.add(root + oldPath);
+				entry.setFile(matcher.group(1) + newPath).setLayout(S3KeyLayout.toAttribute(layout));
+			}
+			if (oldKeys.isEmpty())
+				return result;
+
+			int count = DB.executeUpdateEx("UPDATE " + tableName + " SET BinaryData=? WHERE " + tableName + "_ID=? AND Updated=?",
+					new Object[] { pointer.toXML(), id, updated }, null);
+			if (count != 1)
+				throw new AdempiereException("Record changed during the migration, run again to migrate it");
+			copied.clear();
+			result.objects = oldKeys.size();
+			// the pointer is committed, the moved objects go with the same cleanup as a save
+			S3TrxCleanup.register(null, prov, bucket, oldKeys, List.of());
+		} catch (Exception e) {
+			log.log(Level.WARNING, tableName + " " + id, e);
+			result.error = e.getLocalizedMessage() != null ? e.getLocalizedMessage() : e.toString();
+			// the pointer was not written, the copies are not used
+			if (!copied.isEmpty())
+				S3Util.deleteObjects(S3ClientRegistry.getClient(prov), bucket, copied, prov);
+		}
+		return result;
+	}
+
+	/**
+	 * Outcome of the move of one record
+	 */
+	private static class Result {
+		private final int id;
+		/** Objects moved */
+		private int objects;
+		private String error;
+
+		private Result(int id) {
+			this.id = id;
+		}
+	}
+}
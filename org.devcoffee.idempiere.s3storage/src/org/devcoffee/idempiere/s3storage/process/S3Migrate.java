@@ -0,0 +1,483 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.process;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+
+import org.adempiere.exceptions.AdempiereException;
+import org.compiere.model.MArchive;
+import org.compiere.model.MAttachment;
+import org.compiere.model.MAttachmentEntry;
+import org.compiere.model.MImage;
+import org.compiere.model.MStorageProvider;
+import org.compiere.model.MSysConfig;
+import org.compiere.process.ProcessInfoParameter;
+import org.compiere.process.SvrProcess;
+import org.compiere.util.DB;
+import org.compiere.util.Env;
+import org.devcoffee.idempiere.s3storage.model.ArchiveS3Compatible;
+import org.devcoffee.idempiere.s3storage.model.AttachmentS3Compatible;
+import org.devcoffee.idempiere.s3storage.model.ImageS3Compatible;
+import org.devcoffee.idempiere.s3storage.util.S3ClientRegistry;
+import org.devcoffee.idempiere.s3storage.util.S3Compression;
+import org.devcoffee.idempiere.s3storage.util.S3Config;
+import org.devcoffee.idempiere.s3storage.util.S3ContentStore;
+import org.devcoffee.idempiere.s3storage.util.S3Executor;
+import org.devcoffee.idempiere.s3storage.util.S3Pointer;
+import org.devcoffee.idempiere.s3storage.util.S3ReadResult;
+import org.devcoffee.idempiere.s3storage.util.S3Spool;
+import org.devcoffee.idempiere.s3storage.util.S3TrxCleanup;
+import org.devcoffee.idempiere.s3storage.util.S3Util;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+/**
+ * Migrate the attachments, archives and images of the client from another
+ * storage provider (database, file system or another bucket) to an S3
+ * compatible one.
+ * <p>
+ * Records are read with the store of the source provider, uploaded with the
+ * S3 stores (multipart uploads for large content) and verified in the bucket
+ * before their pointer is written with a direct update, so a record is never
+ * left pointing to content that is not stored. Records are migrated in
+ * batches, up to Concurrency at the same time; after each batch the last
+ * migrated ID before the first failed record is kept in a System Configurator
+ * key of the client, so a run that stopped resumes from there and the failed
+ * records are tried again. Records already in the bucket are skipped. The
+ * objects of a record whose pointer is not written are deleted.
+ */
+public class S3Migrate extends SvrProcess {
+
+	/** Prefix of the System Configurator keys keeping the checkpoints */
+	public static final String CHECKPOINT_PREFIX = "S3_MIGRATION_";
+
+	/** Records submitted per worker in one batch */
+	private static final int BATCH_PER_WORKER = 8;
+
+	private int p_From_StorageProvider_ID = 0;
+	private int p_AD_StorageProvider_ID = 0;
+	/** AD_Attachment, AD_Archive or AD_Image, null for all of them */
+	private String p_TableName = null;
+	private int p_Concurrency = 8;
+	/** Read back and compare the content instead of checking the size */
+	private boolean p_IsVerifyContent = false;
+	/** Ignore the checkpoint and start from the first record */
+	private boolean p_IsRestart = false;
+
+	private MStorageProvider source;
+	private MStorageProvider target;
+	private String bucket;
+	private String root;
+
+	@Override
+	protected void prepare() {
+		for (ProcessInfoParameter para : getParameter()) {
+			String name = para.getParameterName();
+			if (para.getParameter() == null)
+				;
+			else if ("From_StorageProvider_ID".equals(name))
+				p_From_StorageProvider_ID = para.getParameterAsInt();
+			else if ("AD_StorageProvider_ID".equals(name))
+				p_AD_StorageProvider_ID = para.getParameterAsInt();
+			else if ("TableName".equals(name))
+				p_TableName = para.getParameterAsString();
+			else if ("Concurrency".equals(name))
+				p_Concurrency = para.getParameterAsInt();
+			else if ("IsVerifyContent".equals(name))
+				p_IsVerifyContent = para.getParameterAsBoolean();
+			else if ("IsRestart".equals(name))
+				p_IsRestart = para.getParameterAsBoolean();
+			else
+				log.log(Level.SEVERE, "Unknown Parameter: " + name);
+		}
+		if (p_AD_StorageProvider_ID == 0)
+			p_AD_StorageProvider_ID = getRecord_ID();
+	}
+
+	@Override
+	protected String doIt() throws Exception {
+		source = new MStorageProvider(getCtx(), p_From_StorageProvider_ID, get_TrxName());
+		target = new MStorageProvider(getCtx(), p_AD_StorageProvider_ID, get_TrxName());
+		if (source.get_ID() == 0 || target.get_ID() == 0)
+			throw new AdempiereException("Source and target storage providers are mandatory");
+		if (source.get_ID() == target.get_ID())
+			throw new AdempiereException("Source and target storage providers are the same");
+		if (!"S3Compatible".equals(target.getMethod()))
+			throw new AdempiereException("Target storage provider is not S3 compatible: " + target.getName());
+		if (p_Concurrency < 1)
+			p_Concurrency = 1;
+		bucket = target.get_ValueAsString("S3Bucket");
+		root = S3Config.getPathRoot(target);
+
+		StringBuilder msg = new StringBuilder();
+		for (String tableName : new String[] { MAttachment.Table_Name, MArchive.Table_Name, MImage.Table_Name }) {
+			if (p_TableName != null && !p_TableName.equals(tableName))
+				continue;
+			if (msg.length() > 0)
+				msg.append(" - ");
+			msg.append(migrate(tableName));
+		}
+		return msg.toString();
+	}
+
+	/**
+	 * Migrate the records of a table from the checkpoint on
+	 * 
+	 * @return summary
+	 */
+	private String migrate(String tableName) throws InterruptedException {
+		String checkpointName = CHECKPOINT_PREFIX + tableName.toUpperCase() + "_" + source.get_ID() + "_" + target.get_ID();
+		int checkpoint = p_IsRestart ? 0 : getCheckpoint(checkpointName);
+		if (p_IsRestart)
+			setCheckpoint(checkpointName, 0);
+		int[] ids = DB.getIDsEx(null, "SELECT " + tableName + "_ID FROM " + tableName
+				+ " WHERE AD_Client_ID=? AND " + tableName + "_ID>? AND BinaryData IS NOT NULL ORDER BY " + tableName + "_ID",
+				getAD_Client_ID(), checkpoint);
+		if (log.isLoggable(Level.INFO)) log.info(tableName + ": " + ids.length + " records after " + checkpoint);
+
+		int migrated = 0, skipped = 0, failed = 0;
+		Checkpoint lastDone = new Checkpoint(checkpoint);
+		long bytes = 0;
+		long start = System.nanoTime();
+		int batchSize = p_Concurrency * BATCH_PER_WORKER;
+		for (int from = 0; from < ids.length; from += batchSize) {
+			List<Callable<Result>> tasks = new ArrayList<>();
+			for (int i = from; i < Math.min(ids.length, from + batchSize); i++) {
+				final int id = ids[i];
+				tasks.add(() -> migrate(tableName, id));
+			}
+			List<Result> results;
+			try {
+				results = S3Executor.invokeAll(tasks, p_Concurrency);
+			} catch (ExecutionException e) {
+				// tasks report their errors in the result
+				throw new AdempiereException(e.getCause());
+			}
+			for (Result result : results) {
+				if (result.error != null) {
+					failed++;
+					lastDone.failed();
+					addLog(result.id, null, null, tableName + " " + result.id + ": " + result.error);
+					continue;
+				}
+				if (result.skipped) {
+					skipped++;
+				} else {
+					migrated++;
+					bytes += result.bytes;
+				}
+				lastDone.done(result.id);
+			}
+			if (lastDone.get() > checkpoint) {
+				checkpoint = lastDone.get();
+				setCheckpoint(checkpointName, checkpoint);
+			}
+
+			double seconds = Math.max(0.001, (System.nanoTime() - start) / 1e9);
+			statusUpdate(tableName + ": " + (from + results.size()) + "/" + ids.length
+					+ String.format(" - %.1f records/s, %.1f MB/s", (migrated + skipped) / seconds, bytes / seconds / (1024 * 1024)));
+		}
+
+		double seconds = Math.max(0.001, (System.nanoTime() - start) / 1e9);
+		String summary = tableName + ": migrated=" + migrated + ", skipped=" + skipped + ", failed=" + failed
+				+ String.format(", %.0f s, %.1f records/s, %.1f MB/s", seconds, migrated / seconds, bytes / seconds / (1024 * 1024));
+		if (log.isLoggable(Level.INFO)) log.info(summary);
+		return summary;
+	}
+
+	/**
+	 * Migrate one record, errors are returned in the result
+	 */
+	private Result migrate(String tableName, int id) {
+		Result result = new Result(id);
+		try {
+			if (MAttachment.Table_Name.equals(tableName))
+				migrateAttachment(id, result);
+			else if (MArchive.Table_Name.equals(tableName))
+				migrateArchive(id, result);
+			else
+				migrateImage(id, result);
+		} catch (Exception e) {
+			log.log(Level.WARNING, tableName + " " + id, e);
+			result.error = e.getLocalizedMessage() != null ? e.getLocalizedMessage() : e.toString();
+		}
+		return result;
+	}
+
+	private void migrateAttachment(int id, Result result) {
+		MAttachment attach = new MAttachment(getCtx(), id, null);
+		Timestamp updated = attach.getUpdated();
+		if (isMigrated(attach.getBinaryData(), S3Pointer.ROOT_ATTACHMENTS)) {
+			result.skipped = true;
+			return;
+		}
+		if (!source.getAttachmentStore().loadLOBData(attach, source) || attach.m_items == null)
+			throw new AdempiereException("Cannot load the attachment");
+		List<byte[]> contents = new ArrayList<>();
+		for (MAttachmentEntry entry : attach.m_items) {
+			byte[] data = entry.getData();
+			contents.add(data);
+			result.bytes += data != null ? data.length : 0;
+		}
+		// the pointer of the source provider is not a previous save of the target one
+		attach.setBinaryData(null);
+		if (!new AttachmentS3Compatible().save(attach, target))
+			throw new AdempiereException("Cannot save the attachment");
+		try {
+			S3Pointer pointer = verify(attach.getBinaryData(), contents);
+			update(MAttachment.Table_Name, id, updated, pointer, ", Title='" + MAttachment.XML + "'");
+		} catch (RuntimeException e) {
+			discard(attach.getBinaryData());
+			throw e;
+		}
+	}
+
+	private void migrateArchive(int id, Result result) {
+		MArchive archive = new MArchive(getCtx(), id, null);
+		Timestamp updated = archive.getUpdated();
+		if (isMigrated(archive.getByteData(), S3Pointer.ROOT_ARCHIVE)) {
+			result.skipped = true;
+			return;
+		}
+		byte[] data = source.getArchiveStore().loadLOBData(archive, source);
+		if (data == null || data.length == 0)
+			throw new AdempiereException("Cannot load the archive");
+		result.bytes = data.length;
+		new ArchiveS3Compatible().save(archive, target, data);
+		try {
+			S3Pointer pointer = verify(archive.getByteData(), data);
+			update(MArchive.Table_Name, id, updated, pointer, "");
+		} catch (RuntimeException e) {
+			discard(archive.getByteData());
+			throw e;
+		}
+	}
+
+	private void migrateImage(int id, Result result) {
+		MImage image = new MImage(getCtx(), id, null);
+		Timestamp updated = image.getUpdated();
+		if (isMigrated(image.getByteData(), S3Pointer.ROOT_IMAGE)) {
+			result.skipped = true;
+			return;
+		}
+		byte[] data = source.getImageStore().load(image, source);
+		if (data == null || data.length == 0)
+			throw new AdempiereException("Cannot load the image");
+		result.bytes = data.length;
+		new ImageS3Compatible().save(image, target, data);
+		try {
+			S3Pointer pointer = verify(image.getByteData(), data);
+			update(MImage.Table_Name, id, updated, pointer, "");
+		} catch (RuntimeException e) {
+			discard(image.getByteData());
+			throw e;
+		}
+	}
+
+	/**
+	 * Check the objects of the single entry of an archive or image pointer
+	 */
+	private S3Pointer verify(byte[] xml, byte[] data) {
+		S3Pointer pointer = xml != null ? S3Pointer.parse(xml) : null;
+		if (pointer == null || pointer.getEntries().size() != 1)
+			throw new AdempiereException("No pointer written");
+		verify(pointer.getEntry(), data);
+		return pointer;
+	}
+
+	/**
+	 * Check the objects of the entries of an attachment pointer
+	 * 
+	 * @param contents content of the entries, in pointer order
+	 */
+	private S3Pointer verify(byte[] xml, List<byte[]> contents) {
+		S3Pointer pointer = xml != null ? S3Pointer.parse(xml) : null;
+		if (pointer == null || pointer.getEntries().size() != contents.size())
+			throw new AdempiereException("Pointer does not list every entry");
+		for (int i = 0; i < contents.size(); i++)
+			verify(pointer.getEntries().get(i), contents.get(i));
+		return pointer;
+	}
+
+	/**
+	 * Check that the object of an entry holds the content: its size, or when
+	 * IsVerifyContent the content read back. Content still in the write-behind
+	 * spool is checked there.
+	 */
+	private void verify(S3Pointer.Entry entry, byte[] data) {
+		if (data == null)
+			throw new AdempiereException("No content for " + entry.getName());
+		String key = getKey(entry);
+		S3Client s3Client = S3ClientRegistry.getClient(target);
+		S3Spool spool = S3Spool.getExisting(target);
+		byte[] spooled = spool != null ? spool.read(target, bucket, key) : null;
+		if (p_IsVerifyContent || spooled != null) {
+			byte[] stored = spooled;
+			if (stored == null) {
+				S3ReadResult read = S3Util.readObject(s3Client, bucket, key);
+				if (!read.isFound())
+					throw new AdempiereException("Object not stored: " + key);
+				stored = read.getData();
+			}
+			if (!Arrays.equals(data, S3Compression.decompress(stored, entry.getCodec())))
+				throw new AdempiereException("Object content differs: " + key);
+			return;
+		}
+		HeadObjectResponse head = S3Util.headObject(s3Client, bucket, key);
+		if (head == null)
+			throw new AdempiereException("Object not stored: " + key);
+		// the size of compressed objects is not known in advance
+		if (entry.getCodec() == null && head.contentLength() != null && head.contentLength() != data.length)
+			throw new AdempiereException("Object size " + head.contentLength() + " instead of " + data.length + ": " + key);
+	}
+
+	/**
+	 * @return true when the record holds a pointer of the given type whose
+	 *         objects are all in the target bucket
+	 */
+	private boolean isMigrated(byte[] data, String rootElement) {
+		if (data == null || data.length == 0 || data[0] != '<')
+			return false;
+		S3Pointer pointer = S3Pointer.parse(data);
+		if (pointer == null || !rootElement.equals(pointer.getRoot()) || pointer.getEntries().isEmpty())
+			return false;
+		S3Client s3Client = S3ClientRegistry.getClient(target);
+		for (S3Pointer.Entry entry : pointer.getEntries()) {
+			if (entry.getFile() == null || !S3Util.exists(s3Client, bucket, getKey(entry)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write the pointer of a record, unless the record was changed since it
+	 * was read
+	 */
+	private void update(String tableName, int id, Timestamp updated, S3Pointer pointer, String set) {
+		int count = DB.executeUpdateEx("UPDATE " + tableName + " SET BinaryData=?" + set
+				+ " WHERE " + tableName + "_ID=? AND Updated=?", new Object[] { pointer.toXML(), id, updated }, null);
+		if (count != 1)
+			throw new AdempiereException("Record changed during the migration, run again to migrate it");
+	}
+
+	/**
+	 * Delete the objects of a pointer that was not written, so a failed record
+	 * leaves nothing in the bucket. Content-addressed objects may be shared
+	 * with other records, they are left to the garbage collection.
+	 */
+	private void discard(byte[] xml) {
+		S3Pointer pointer = xml != null && xml.length > 0 && xml[0] == '<' ? S3Pointer.parse(xml) : null;
+		if (pointer == null)
+			return;
+		List<String> keys = new ArrayList<>();
+		for (S3Pointer.Entry entry : pointer.getEntries()) {
+			if (entry.getFile() != null && !S3ContentStore.isContentAddressed(entry.getFile()))
+				keys.add(getKey(entry));
+		}
+		S3TrxCleanup.register(null, target, bucket, keys, List.of());
+	}
+
+	/**
+	 * @return object key of a pointer entry in the target bucket
+	 */
+	private String getKey(S3Pointer.Entry entry) {
+		return entry.getFile().replaceFirst("^%[A-Z_]+%", Matcher.quoteReplacement(root));
+	}
+
+	private int getCheckpoint(String name) {
+		String value = DB.getSQLValueStringEx(null, "SELECT Value FROM AD_SysConfig WHERE Name=? AND AD_Client_ID=?",
+				name, getAD_Client_ID());
+		try {
+			return value != null ? Integer.parseInt(value.trim()) : 0;
+		} catch (NumberFormatException e) {
+			log.warning("Invalid checkpoint " + name + "=" + value);
+			return 0;
+		}
+	}
+
+	private void setCheckpoint(String name, int id) {
+		int count = DB.executeUpdateEx("UPDATE AD_SysConfig SET Value=?, Updated=getDate() WHERE Name=? AND AD_Client_ID=?",
+				new Object[] { String.valueOf(id), name, getAD_Client_ID() }, null);
+		if (count == 0) {
+			// the key belongs to the client migrated, whatever the client of the session
+			Properties ctx = new Properties();
+			ctx.putAll(getCtx());
+			Env.setContext(ctx, Env.AD_CLIENT_ID, getAD_Client_ID());
+			MSysConfig config = new MSysConfig(ctx, 0, null);
+			config.setAD_Org_ID(0);
+			config.setName(name);
+			config.setValue(String.valueOf(id));
+			config.setDescription("Last record migrated by " + getClass().getSimpleName());
+			config.setConfigurationLevel(MSysConfig.CONFIGURATIONLEVEL_Client);
+			config.saveEx();
+		}
+	}
+
+	/**
+	 * Last record migrated before the first failed one, given the results in
+	 * record order. A run resumes after it, so the failed record and the ones
+	 * after it are tried again; those already migrated are then skipped.
+	 */
+	static class Checkpoint {
+		private int id;
+		private boolean failed;
+
+		/**
+		 * @param id checkpoint the run started from
+		 */
+		Checkpoint(int id) {
+			this.id = id;
+		}
+
+		void done(int recordId) {
+			if (!failed)
+				id = recordId;
+		}
+
+		void failed() {
+			failed = true;
+		}
+
+		/**
+		 * @return record the next run starts after
+		 */
+		int get() {
+			return id;
+		}
+	}
+
+	/**
+	 * Outcome of the migration of one record
+	 */
+	private static class Result {
+		private final int id;
+		private boolean skipped;
+		private long bytes;
+		private String error;
+
+		private Result(int id) {
+			this.id = id;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.process;
+
+import org.adempiere.base.IProcessFactory;
+import org.compiere.process.ProcessCall;
+
+/**
+ * Process factory of the plugin processes, registered as an OSGi component
+ */
+public class S3ProcessFactory implements IProcessFactory {
+
+	@Override
+	public ProcessCall newProcessInstance(String className) {
+		if (S3ContentGC.class.getName().equals(className))
+			return new S3ContentGC();
+		if (S3Migrate.class.getName().equals(className))
+			return new S3Migrate();
+		if (S3KeyLayoutMigrate.class.getName().equals(className))
+			return new S3KeyLayoutMigrate();
+		return null;
+	}
+}
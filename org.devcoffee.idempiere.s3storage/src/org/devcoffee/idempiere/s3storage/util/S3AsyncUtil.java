@@ -0,0 +1,253 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Level;
+
+import org.compiere.model.MStorageProvider;
+import org.compiere.util.CLogger;
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.SdkEventLoopGroup;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * Non blocking variant of {@link S3Util}, built on the async client.
+ * <p>
+ * Operations return a future instead of holding a thread for the network
+ * round trip, so many objects can be read or written at the same time from a
+ * few event loop threads. As in {@link S3Util} failures are logged and the
+ * futures complete with false or an error result, they do not complete
+ * exceptionally. Callbacks run on the event loop threads and must not block.
+ * The async operations do not use the local disk cache.
+ */
+public class S3AsyncUtil {
+
+	private static final CLogger log = CLogger.getCLogger(S3AsyncUtil.class);
+
+	private S3AsyncUtil() {
+	}
+
+	/**
+	 * Create a new async client for the storage provider. Stores should use
+	 * {@link S3ClientRegistry#getAsyncClient(MStorageProvider)} instead, which
+	 * reuses the client between calls.
+	 *
+	 * @return S3AsyncClient
+	 */
+	public static S3AsyncClient createS3AsyncClient(MStorageProvider prov) {
+		String regionStr = prov.get_ValueAsString("S3Region");
+		String endpointStr = prov.get_ValueAsString("S3EndPoint");
+		boolean isAwsS3 = prov.getURL().contains("amazonaws.com");
+
+		AwsBasicCredentials awsCreds = AwsBasicCredentials.create(prov.getUserName(), prov.getPassword());
+		StaticCredentialsProvider credentialsProvider = StaticCredentialsProvider.create(awsCreds);
+
+		NettyNioAsyncHttpClient.Builder netty = NettyNioAsyncHttpClient.builder()
+				.maxConcurrency(S3Config.getMaxConnections(prov))
+				.connectionTimeout(S3Config.getConnectionTimeout(prov))
+				.readTimeout(S3Config.getSocketTimeout(prov))
+				.writeTimeout(S3Config.getSocketTimeout(prov))
+				.connectionAcquisitionTimeout(S3Config.getConnectionAcquireTimeout(prov))
+				.connectionMaxIdleTime(S3Config.getConnectionMaxIdle(prov))
+				.tcpKeepAlive(S3Config.isTcpKeepAlive(prov));
+		Duration ttl = S3Config.getConnectionTTL(prov);
+		if (ttl != null)
+			netty.connectionTimeToLive(ttl);
+		int eventLoopThreads = S3Config.getEventLoopThreads(prov);
+		if (eventLoopThreads > 0)
+			netty.eventLoopGroupBuilder(SdkEventLoopGroup.builder().numberOfThreads(eventLoopThreads));
+
+		S3MetricPublisher metrics = new S3MetricPublisher(prov.getAD_StorageProvider_ID());
+		RetryPolicy retryPolicy = S3Util.createRetryPolicy(prov);
+		S3CircuitBreaker circuitBreaker = S3CircuitBreaker.get(prov);
+
+		S3AsyncClient client;
+		if (isAwsS3) {
+			client = S3AsyncClient.builder()
+					.region(Region.of(regionStr))
+					.credentialsProvider(credentialsProvider)
+					.overrideConfiguration(o -> o.addMetricPublisher(metrics).retryPolicy(retryPolicy)
+							.addExecutionInterceptor(circuitBreaker))
+					.httpClientBuilder(netty).build();
+		} else {
+			client = S3AsyncClient.builder().region(Region.of(regionStr))
+					.endpointOverride(URI.create(endpointStr))
+					.credentialsProvider(credentialsProvider)
+					.forcePathStyle(true)
+					.overrideConfiguration(o -> o.addMetricPublisher(metrics).retryPolicy(retryPolicy)
+							.addExecutionInterceptor(circuitBreaker))
+					.httpClientBuilder(netty).build();
+		}
+		S3Metrics.bind(client, prov);
+		return client;
+	}
+
+	/**
+	 * Check if the object exist on Bucket
+	 *
+	 * @return future of true when the object exists
+	 */
+	public static CompletableFuture<Boolean> exists(S3AsyncClient s3Client, String bucket, String key) {
+		HeadObjectRequest request = HeadObjectRequest.builder().bucket(bucket).key(key).build();
+		long start = System.nanoTime();
+		return s3Client.headObject(request).handle((response, e) -> {
+			if (e == null) {
+				S3Metrics.record(s3Client, S3Metrics.OPERATION_HEAD, S3Metrics.OUTCOME_SUCCESS, 0, start);
+				return true;
+			}
+			if (isNotFound(e)) {
+				S3Metrics.record(s3Client, S3Metrics.OPERATION_HEAD, S3Metrics.OUTCOME_NOT_FOUND, 0, start);
+			} else {
+				S3Metrics.record(s3Client, S3Metrics.OPERATION_HEAD, S3Metrics.OUTCOME_ERROR, 0, start);
+				S3Util.error("Error checking " + key, e);
+			}
+			return false;
+		});
+	}
+
+	/**
+	 * Read an object with a single GET
+	 *
+	 * @return future of the result, found, missing or failed
+	 */
+	public static CompletableFuture<S3ReadResult> readObject(S3AsyncClient s3Client, String bucket, String key) {
+		GetObjectRequest request = GetObjectRequest.builder().bucket(bucket).key(key).build();
+		long start = System.nanoTime();
+		return s3Client.getObject(request, AsyncResponseTransformer.toBytes()).handle((response, e) -> {
+			if (e == null) {
+				byte[] data = response.asByteArrayUnsafe();
+				S3Metrics.record(s3Client, S3Metrics.OPERATION_GET, S3Metrics.OUTCOME_SUCCESS, data.length, start);
+				return S3ReadResult.found(data, response.response().eTag(), response.response().metadata());
+			}
+			if (isNotFound(e)) {
+				S3Metrics.record(s3Client, S3Metrics.OPERATION_GET, S3Metrics.OUTCOME_NOT_FOUND, 0, start);
+				if (log.isLoggable(Level.FINE)) log.fine("Object not found | " + key);
+				return S3ReadResult.notFound();
+			}
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_GET, S3Metrics.OUTCOME_ERROR, 0, start);
+			return S3ReadResult.error(S3Util.error("Error reading " + key, e));
+		});
+	}
+
+	/**
+	 * Read several objects at the same time
+	 *
+	 * @return future of the results, in the order of the keys
+	 */
+	public static CompletableFuture<List<S3ReadResult>> readObjects(S3AsyncClient s3Client, String bucket, List<String> keys) {
+		List<CompletableFuture<S3ReadResult>> futures = new ArrayList<>(keys.size());
+		for (String key : keys)
+			futures.add(readObject(s3Client, bucket, key));
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+			List<S3ReadResult> results = new ArrayList<>(futures.size());
+			for (CompletableFuture<S3ReadResult> future : futures)
+				results.add(future.join());
+			return results;
+		});
+	}
+
+	/**
+	 * Upload an object from memory, dropping its copy from the local disk cache
+	 *
+	 * @return future of true when uploaded
+	 */
+	public static CompletableFuture<Boolean> putObject(S3AsyncClient s3Client, String bucket, String path, byte[] bytes, MStorageProvider prov) {
+		S3DiskCache.invalidateIfEnabled(prov, bucket, path);
+		PutObjectRequest request = PutObjectRequest.builder().bucket(bucket).key(path).build();
+		long start = System.nanoTime();
+		return s3Client.putObject(request, AsyncRequestBody.fromBytes(bytes)).handle((response, e) -> {
+			if (e == null) {
+				S3Metrics.record(s3Client, S3Metrics.OPERATION_PUT, S3Metrics.OUTCOME_SUCCESS, bytes.length, start);
+				return true;
+			}
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_PUT, S3Metrics.OUTCOME_ERROR, 0, start);
+			S3Util.error("Error uploading " + path, e);
+			return false;
+		});
+	}
+
+	/**
+	 * Upload an object from a file, dropping its copy from the local disk cache
+	 *
+	 * @return future of true when uploaded
+	 */
+	public static CompletableFuture<Boolean> putObject(S3AsyncClient s3Client, String bucket, String path, Path file, MStorageProvider prov) {
+		S3DiskCache.invalidateIfEnabled(prov, bucket, path);
+		PutObjectRequest request = PutObjectRequest.builder().bucket(bucket).key(path).build();
+		long start = System.nanoTime();
+		return s3Client.putObject(request, AsyncRequestBody.fromFile(file)).handle((response, e) -> {
+			if (e == null) {
+				S3Metrics.record(s3Client, S3Metrics.OPERATION_PUT, S3Metrics.OUTCOME_SUCCESS, file.toFile().length(), start);
+				return true;
+			}
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_PUT, S3Metrics.OUTCOME_ERROR, 0, start);
+			S3Util.error("Error uploading " + path, e);
+			return false;
+		});
+	}
+
+	/**
+	 * Delete an object, dropping its copy from the local disk cache
+	 *
+	 * @return future of true when deleted
+	 */
+	public static CompletableFuture<Boolean> deleteObject(S3AsyncClient s3Client, String bucket, String path, MStorageProvider prov) {
+		S3DiskCache.invalidateIfEnabled(prov, bucket, path);
+		DeleteObjectRequest request = DeleteObjectRequest.builder().bucket(bucket).key(path).build();
+		long start = System.nanoTime();
+		return s3Client.deleteObject(request).handle((response, e) -> {
+			if (e == null) {
+				S3Metrics.record(s3Client, S3Metrics.OPERATION_DELETE, S3Metrics.OUTCOME_SUCCESS, 0, start);
+				return true;
+			}
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_DELETE, S3Metrics.OUTCOME_ERROR, 0, start);
+			S3Util.error("Error deleting " + path, e);
+			return false;
+		});
+	}
+
+	private static boolean isNotFound(Throwable e) {
+		Throwable cause = unwrap(e);
+		return cause instanceof NoSuchKeyException
+				|| (cause instanceof S3Exception && ((S3Exception) cause).statusCode() == HttpURLConnection.HTTP_NOT_FOUND);
+	}
+
+	private static Throwable unwrap(Throwable e) {
+		while (e instanceof CompletionException && e.getCause() != null)
+			e = e.getCause();
+		return e;
+	}
+}
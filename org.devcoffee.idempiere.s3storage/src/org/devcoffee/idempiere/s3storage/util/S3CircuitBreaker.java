@@ -0,0 +1,169 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.compiere.model.MStorageProvider;
+import org.compiere.util.CLogger;
+
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+
+/**
+ * Circuit breaker of a storage provider, shared by its sync and async clients.
+ * <p>
+ * After {@link S3Config#CIRCUIT_BREAKER_FAILURES} consecutive requests failed
+ * with a server or network error (after their retries), the circuit opens and
+ * requests fail at once with a {@link S3StorageException.Kind#CIRCUIT_OPEN}
+ * error instead of waiting on an endpoint that is down. Once the open period
+ * is over one request is let through: the circuit closes when it succeeds and
+ * opens again when it fails. Throttled requests are left to the retry policy
+ * and do not count.
+ */
+public class S3CircuitBreaker implements ExecutionInterceptor {
+
+	private static final CLogger log = CLogger.getCLogger(S3CircuitBreaker.class);
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/** Breakers by AD_StorageProvider_ID */
+	private static final ConcurrentHashMap<Integer, S3CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+	private final int AD_StorageProvider_ID;
+
+	/** Consecutive failures opening the circuit, 0 when disabled */
+	private volatile int threshold;
+
+	/** Time the circuit stays open before a request is let through */
+	private volatile long openNanos;
+
+	private final AtomicInteger failures = new AtomicInteger();
+
+	private volatile State state = State.CLOSED;
+
+	/** When the circuit opened or the probe request was let through, guarded by this */
+	private long since;
+
+	private S3CircuitBreaker(int AD_StorageProvider_ID) {
+		this.AD_StorageProvider_ID = AD_StorageProvider_ID;
+	}
+
+	/**
+	 * Get the breaker of a storage provider, with its current settings
+	 * 
+	 * @return S3CircuitBreaker
+	 */
+	public static S3CircuitBreaker get(MStorageProvider prov) {
+		S3CircuitBreaker breaker = breakers.computeIfAbsent(prov.getAD_StorageProvider_ID(), S3CircuitBreaker::new);
+		breaker.threshold = S3Config.getCircuitBreakerFailures(prov);
+		breaker.openNanos = S3Config.getCircuitBreakerOpen(prov).toNanos();
+		return breaker;
+	}
+
+	/**
+	 * @return state of the breaker of a storage provider, closed when none
+	 *         was created
+	 */
+	public static State getState(int AD_StorageProvider_ID) {
+		S3CircuitBreaker breaker = breakers.get(AD_StorageProvider_ID);
+		return breaker != null ? breaker.state : State.CLOSED;
+	}
+
+	/**
+	 * @return true when a request may be sent
+	 */
+	public boolean allowRequest() {
+		if (state == State.CLOSED || threshold <= 0)
+			return true;
+		synchronized (this) {
+			if (state == State.CLOSED)
+				return true;
+			long now = System.nanoTime();
+			// also when the probe never reported back
+			if (now - since < openNanos)
+				return false;
+			state = State.HALF_OPEN;
+			since = now;
+			return true;
+		}
+	}
+
+	/**
+	 * The endpoint answered, even with an error of the request
+	 */
+	public void onSuccess() {
+		if (failures.get() != 0)
+			failures.set(0);
+		if (state == State.CLOSED)
+			return;
+		synchronized (this) {
+			if (state != State.CLOSED) {
+				state = State.CLOSED;
+				log.info("S3 circuit closed for AD_StorageProvider_ID=" + AD_StorageProvider_ID);
+			}
+		}
+	}
+
+	/**
+	 * The request failed with a server or network error
+	 */
+	public void onFailure() {
+		int count = failures.incrementAndGet();
+		if (state == State.CLOSED && (threshold <= 0 || count < threshold))
+			return;
+		synchronized (this) {
+			if (state == State.OPEN)
+				return;
+			state = State.OPEN;
+			since = System.nanoTime();
+			log.warning("S3 circuit opened for AD_StorageProvider_ID=" + AD_StorageProvider_ID + " after " + count
+					+ " failed requests, retrying in " + TimeUnit.NANOSECONDS.toSeconds(openNanos) + "s");
+		}
+	}
+
+	@Override
+	public void beforeExecution(Context.BeforeExecution context, ExecutionAttributes executionAttributes) {
+		if (!allowRequest())
+			throw new S3StorageException("S3 circuit open for AD_StorageProvider_ID=" + AD_StorageProvider_ID,
+					S3StorageException.Kind.CIRCUIT_OPEN, null);
+	}
+
+	@Override
+	public void afterExecution(Context.AfterExecution context, ExecutionAttributes executionAttributes) {
+		onSuccess();
+	}
+
+	@Override
+	public void onExecutionFailure(Context.FailedExecution context, ExecutionAttributes executionAttributes) {
+		switch (S3StorageException.classify(context.exception())) {
+		case TRANSIENT:
+			onFailure();
+			break;
+		case NOT_FOUND:
+		case PERMANENT:
+			onSuccess();
+			break;
+		default:
+			// throttled: the endpoint is up; circuit open: not sent
+			break;
+		}
+	}
+}
@@ -0,0 +1,340 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.sql.Timestamp;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Level;
+
+import org.compiere.model.MStorageProvider;
+import org.compiere.util.CLogger;
+
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.utils.SdkAutoCloseable;
+
+/**
+ * Shared registry of S3 clients, one per storage provider (and one async
+ * client when the async API is used, one presigner when presigned URLs are
+ * requested).
+ * <p>
+ * Clients are thread safe and expensive to build (credentials, HTTP stack, TLS
+ * and DNS warm up), so every store reuses the client cached for its
+ * AD_StorageProvider_ID. A cached client is replaced when the connection
+ * settings of the provider change; an older instance of the provider record
+ * does not replace the client of a newer one. A client is built outside of
+ * the cache, so requests for other providers do not wait for it, and the
+ * client built by a thread losing the race is closed. A replaced client is
+ * closed after a grace period, as other threads may still be using it. All
+ * clients are closed when the last store component using the registry is
+ * deactivated.
+ */
+public class S3ClientRegistry {
+
+	private static final CLogger log = CLogger.getCLogger(S3ClientRegistry.class);
+
+	private static final ConcurrentHashMap<Integer, CachedClient<S3Client>> clients = new ConcurrentHashMap<>();
+
+	/** Async clients by AD_StorageProvider_ID */
+	private static final ConcurrentHashMap<Integer, CachedClient<S3AsyncClient>> asyncClients = new ConcurrentHashMap<>();
+
+	/** Presigners by AD_StorageProvider_ID */
+	private static final ConcurrentHashMap<Integer, CachedClient<S3Presigner>> presigners = new ConcurrentHashMap<>();
+
+	/** Connection settings read last by AD_StorageProvider_ID */
+	private static final ConcurrentHashMap<Integer, CachedSettings> cachedSettings = new ConcurrentHashMap<>();
+
+	/** Time the settings read are used before they are read again */
+	private static final long SETTINGS_TTL_MILLIS = 30 * 1000;
+
+	/** Time a replaced client is kept open for the requests still running on it */
+	private static final long RETIRE_DELAY_MINUTES = 10;
+
+	/** Replaced clients waiting to be closed */
+	private static final Set<CachedClient<?>> retired = ConcurrentHashMap.newKeySet();
+
+	private static ScheduledExecutorService retirer;
+
+	/** Number of active components using the registry */
+	private static final AtomicInteger users = new AtomicInteger();
+
+	private S3ClientRegistry() {
+	}
+
+	/**
+	 * Get the client for the storage provider, creating it when there is none
+	 * or when the cached one is stale
+	 *
+	 * @param prov storage provider
+	 * @return S3Client
+	 */
+	public static S3Client getClient(MStorageProvider prov) {
+		return getClient(clients, prov, S3Util::createS3Client);
+	}
+
+	/**
+	 * Get the async client for the storage provider, creating it when there is
+	 * none or when the cached one is stale
+	 *
+	 * @param prov storage provider
+	 * @return S3AsyncClient
+	 */
+	public static S3AsyncClient getAsyncClient(MStorageProvider prov) {
+		return getClient(asyncClients, prov, S3AsyncUtil::createS3AsyncClient);
+	}
+
+	/**
+	 * Get the presigner for the storage provider, creating it when there is
+	 * none or when the cached one is stale
+	 *
+	 * @param prov storage provider
+	 * @return S3Presigner
+	 */
+	public static S3Presigner getPresigner(MStorageProvider prov) {
+		return getClient(presigners, prov, S3Util::createS3Presigner);
+	}
+
+	private static <T extends SdkAutoCloseable> T getClient(ConcurrentHashMap<Integer, CachedClient<T>> cache,
+			MStorageProvider prov, Function<MStorageProvider, T> factory) {
+		final int id = prov.getAD_StorageProvider_ID();
+		final long updated = getUpdated(prov);
+		CachedClient<T> cached = cache.get(id);
+		// an instance of the provider older than the cached client does not replace it
+		if (cached != null && updated < cached.updated)
+			return cached.client;
+		final Settings settings = getSettings(prov);
+		if (cached != null && cached.settings.equals(settings))
+			return cached.client;
+
+		CachedClient<T> created = new CachedClient<>(settings, updated, factory.apply(prov));
+		while (true) {
+			CachedClient<T> current = cache.get(id);
+			if (current == null) {
+				if (cache.putIfAbsent(id, created) == null)
+					return created.client;
+			} else if (current.settings.equals(settings) || updated < current.updated) {
+				// built by another thread meanwhile
+				created.close();
+				return current.client;
+			} else if (cache.replace(id, current, created)) {
+				if (log.isLoggable(Level.CONFIG))
+					log.config("Storage provider changed, replacing S3 client for AD_StorageProvider_ID=" + id);
+				retire(current);
+				return created.client;
+			}
+		}
+	}
+
+	/**
+	 * Close and forget the client of a storage provider. Requests still
+	 * running on it may complete, it is closed after a grace period.
+	 *
+	 * @param AD_StorageProvider_ID
+	 */
+	public static void invalidate(int AD_StorageProvider_ID) {
+		cachedSettings.remove(AD_StorageProvider_ID);
+		CachedClient<S3Client> cached = clients.remove(AD_StorageProvider_ID);
+		if (cached != null)
+			retire(cached);
+		CachedClient<S3AsyncClient> cachedAsync = asyncClients.remove(AD_StorageProvider_ID);
+		if (cachedAsync != null)
+			retire(cachedAsync);
+		CachedClient<S3Presigner> cachedPresigner = presigners.remove(AD_StorageProvider_ID);
+		if (cachedPresigner != null)
+			retire(cachedPresigner);
+	}
+
+	/**
+	 * Close and forget all clients, including the retired ones still in their
+	 * grace period
+	 */
+	public static void closeAll() {
+		for (Integer id : clients.keySet())
+			close(clients.remove(id));
+		for (Integer id : asyncClients.keySet())
+			close(asyncClients.remove(id));
+		for (Integer id : presigners.keySet())
+			close(presigners.remove(id));
+		cachedSettings.clear();
+		synchronized (S3ClientRegistry.class) {
+			if (retirer != null) {
+				retirer.shutdownNow();
+				retirer = null;
+			}
+		}
+		for (CachedClient<?> client : retired) {
+			if (retired.remove(client))
+				close(client);
+		}
+	}
+
+	private static void close(CachedClient<?> cached) {
+		if (cached != null)
+			cached.close();
+	}
+
+	/**
+	 * Close a replaced client after a grace period, other threads may still
+	 * run requests or multipart uploads on it
+	 */
+	private static synchronized void retire(CachedClient<?> cached) {
+		if (retirer == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+				Thread thread = new Thread(r, "S3Storage-ClientRetire");
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor.setRemoveOnCancelPolicy(true);
+			retirer = executor;
+		}
+		retired.add(cached);
+		retirer.schedule(() -> {
+			if (retired.remove(cached))
+				cached.close();
+		}, RETIRE_DELAY_MINUTES, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Register a component using the registry, called on component activation
+	 */
+	public static void register() {
+		if (users.incrementAndGet() == 1)
+			S3Metrics.registerMBean();
+	}
+
+	/**
+	 * Unregister a component using the registry, called on component
+	 * deactivation. The clients, the transfer pool and the JMX bean of the
+	 * metrics are released when no component is left.
+	 */
+	public static void unregister() {
+		if (users.decrementAndGet() <= 0) {
+			users.set(0);
+			closeAll();
+			S3Spool.shutdown();
+			S3Executor.shutdown();
+			S3Metrics.unregisterMBean();
+		}
+	}
+
+	/**
+	 * Returns the settings used to build the client. They are kept for a
+	 * short time per provider record, being read from several System
+	 * Configurator keys.
+	 *
+	 * @return Settings
+	 */
+	private static Settings getSettings(MStorageProvider prov) {
+		final long updated = getUpdated(prov);
+		final long now = System.currentTimeMillis();
+		CachedSettings cached = cachedSettings.get(prov.getAD_StorageProvider_ID());
+		if (cached != null && cached.updated == updated && cached.expires > now)
+			return cached.settings;
+		Settings settings = new Settings(prov);
+		cachedSettings.put(prov.getAD_StorageProvider_ID(), new CachedSettings(updated, settings, now + SETTINGS_TTL_MILLIS));
+		return settings;
+	}
+
+	private static long getUpdated(MStorageProvider prov) {
+		Timestamp updated = prov.getUpdated();
+		return updated != null ? updated.getTime() : 0;
+	}
+
+	private static class CachedSettings {
+		private final long updated;
+		private final Settings settings;
+		private final long expires;
+
+		private CachedSettings(long updated, Settings settings, long expires) {
+			this.updated = updated;
+			this.settings = settings;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Connection settings of a provider, compared value by value so a client
+	 * is only replaced when one of them changes
+	 */
+	private static final class Settings {
+		private final String url;
+		private final String userName;
+		private final String password;
+		private final String region;
+		private final String endpoint;
+		private final String httpClient;
+		private final String retry;
+		private final int eventLoopThreads;
+
+		private Settings(MStorageProvider prov) {
+			url = prov.getURL();
+			userName = prov.getUserName();
+			password = prov.getPassword();
+			region = prov.get_ValueAsString("S3Region");
+			endpoint = prov.get_ValueAsString("S3EndPoint");
+			httpClient = S3Config.getHttpClientSettings(prov);
+			retry = S3Config.getRetrySettings(prov);
+			eventLoopThreads = S3Config.getEventLoopThreads(prov);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Settings))
+				return false;
+			Settings other = (Settings) obj;
+			return Objects.equals(url, other.url) && Objects.equals(userName, other.userName)
+					&& Objects.equals(password, other.password) && Objects.equals(region, other.region)
+					&& Objects.equals(endpoint, other.endpoint) && Objects.equals(httpClient, other.httpClient)
+					&& Objects.equals(retry, other.retry) && eventLoopThreads == other.eventLoopThreads;
+		}
+
+		@Override
+		public int hashCode() {
+			// without the password
+			return Objects.hash(url, userName, region, endpoint);
+		}
+	}
+
+	private static class CachedClient<T extends SdkAutoCloseable> {
+		private final Settings settings;
+		/** Updated of the provider record the client was built from */
+		private final long updated;
+		private final T client;
+
+		private CachedClient(Settings settings, long updated, T client) {
+			this.settings = settings;
+			this.updated = updated;
+			this.client = client;
+		}
+
+		private void close() {
+			try {
+				client.close();
+			} catch (Exception e) {
+				log.log(Level.WARNING, "Error closing S3 client", e);
+			}
+		}
+	}
+}
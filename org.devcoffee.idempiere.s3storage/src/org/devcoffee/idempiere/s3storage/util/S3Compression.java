@@ -0,0 +1,219 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.compiere.model.MStorageProvider;
+import org.compiere.util.CLogger;
+
+/**
+ * Optional compression of the stored content.
+ * <p>
+ * Content is compressed before the upload when compression is enabled for
+ * the storage provider, unless it is small, already compressed (known file
+ * types and signatures) or does not get noticeably smaller. The codec is
+ * recorded in the object metadata and in the XML pointer; readers decompress
+ * according to the pointer, so objects written before compression was enabled
+ * are still read as they are.
+ */
+public class S3Compression {
+
+	private static final CLogger log = CLogger.getCLogger(S3Compression.class);
+
+	/** Codec of gzip compressed objects, in the pointer and object metadata */
+	public static final String CODEC_GZIP = "gzip";
+
+	/** Object metadata naming the codec */
+	public static final String METADATA_CODEC = "codec";
+
+	/** Content is kept as it is unless compression saves at least 10% */
+	private static final double MAX_RATIO = 0.9;
+
+	/** Extensions of compressed file types */
+	private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+			"7z", "avi", "bz2", "docx", "gif", "gz", "heic", "jar", "jpeg", "jpg", "mkv", "mov", "mp3", "mp4",
+			"odp", "ods", "odt", "png", "pptx", "rar", "tgz", "webm", "webp", "xlsx", "xz", "zip", "zst"));
+
+	/** Signatures of compressed content: gzip, zip, png, jpeg, gif, 7z, zstd, bzip2, xz and rar */
+	private static final byte[][] COMPRESSED_SIGNATURES = {
+			{ 0x1f, (byte) 0x8b }, { 'P', 'K', 3, 4 }, { (byte) 0x89, 'P', 'N', 'G' }, { (byte) 0xff, (byte) 0xd8, (byte) 0xff },
+			{ 'G', 'I', 'F', '8' }, { '7', 'z', (byte) 0xbc, (byte) 0xaf }, { 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd },
+			{ 'B', 'Z', 'h' }, { (byte) 0xfd, '7', 'z', 'X' }, { 'R', 'a', 'r', '!' } };
+
+	/** Length of the longest signature */
+	private static final int SIGNATURE_LENGTH = 4;
+
+	private S3Compression() {
+	}
+
+	/**
+	 * Compress content to be stored, when compression is enabled and worth it
+	 *
+	 * @param name file name of the content, used to skip compressed file types
+	 * @return content compressed with {@link #CODEC_GZIP}, null when the
+	 *         content is to be stored as it is
+	 */
+	public static byte[] compress(MStorageProvider prov, String name, byte[] data) {
+		if (!S3Config.COMPRESSION_GZIP.equals(S3Config.getCompression(prov)))
+			return null;
+		if (data == null || data.length < S3Config.getCompressionMinSize(prov) || isCompressed(name, data))
+			return null;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out, 64 * 1024)) {
+			gzip.write(data);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Cannot compress " + name, e);
+			return null;
+		}
+		if (out.size() > data.length * MAX_RATIO) {
+			if (log.isLoggable(Level.FINE)) log.fine("Not compressible: " + name);
+			return null;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Compress a file to a temporary file, when compression is enabled and
+	 * worth it
+	 *
+	 * @param name file name of the content, used to skip compressed file types
+	 * @return temporary file of the content compressed with
+	 *         {@link #CODEC_GZIP}, to be deleted by the caller, null when the
+	 *         content is to be stored as it is
+	 */
+	public static Path compress(MStorageProvider prov, String name, Path source) throws IOException {
+		long length = Files.size(source);
+		Path compressed;
+		try (InputStream in = Files.newInputStream(source)) {
+			compressed = compress(prov, name, in, length);
+		}
+		if (compressed != null && Files.size(compressed) > length * MAX_RATIO) {
+			if (log.isLoggable(Level.FINE)) log.fine("Not compressible: " + name);
+			S3Util.deleteTempFile(compressed);
+			return null;
+		}
+		return compressed;
+	}
+
+	/**
+	 * Compress a stream to a temporary file, when compression is enabled. A
+	 * stream is read once, so it is kept compressed whatever size it gets, and
+	 * it is checked for the signature of a compressed type only when it
+	 * supports mark.
+	 *
+	 * @param name   file name of the content, used to skip compressed file types
+	 * @param length content length, -1 when unknown
+	 * @return temporary file of the content compressed with
+	 *         {@link #CODEC_GZIP}, to be deleted by the caller, null when the
+	 *         content is to be stored as it is, the stream is not read then
+	 */
+	public static Path compress(MStorageProvider prov, String name, InputStream in, long length) throws IOException {
+		if (!S3Config.COMPRESSION_GZIP.equals(S3Config.getCompression(prov)))
+			return null;
+		if (length >= 0 && length < S3Config.getCompressionMinSize(prov))
+			return null;
+		byte[] head = new byte[0];
+		if (in.markSupported()) {
+			in.mark(SIGNATURE_LENGTH);
+			head = in.readNBytes(SIGNATURE_LENGTH);
+			in.reset();
+		}
+		if (isCompressed(name, head))
+			return null;
+		Path compressed = Files.createTempFile("idempiere-s3", ".gz");
+		try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressed), 64 * 1024)) {
+			in.transferTo(out);
+		} catch (IOException e) {
+			S3Util.deleteTempFile(compressed);
+			throw e;
+		}
+		return compressed;
+	}
+
+	/**
+	 * @param codec codec, null when the content is not compressed
+	 * @return object metadata recording the codec, empty when not compressed
+	 */
+	public static Map<String, String> getMetadata(String codec) {
+		return codec != null ? Collections.singletonMap(METADATA_CODEC, codec) : Collections.emptyMap();
+	}
+
+	/**
+	 * Decompress stored content
+	 *
+	 * @param codec codec from the pointer, null when the content is not
+	 *              compressed
+	 * @return content, null when data is null or cannot be decompressed
+	 */
+	public static byte[] decompress(byte[] data, String codec) {
+		if (data == null || codec == null)
+			return data;
+		try (InputStream in = decompress(new ByteArrayInputStream(data), codec)) {
+			return in.readAllBytes();
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Cannot decompress " + codec + " content", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Decompress a stream of stored content
+	 *
+	 * @param codec codec from the pointer, null when the content is not
+	 *              compressed
+	 * @return stream of the content, closing it closes the given stream
+	 */
+	public static InputStream decompress(InputStream in, String codec) throws IOException {
+		if (in == null || codec == null)
+			return in;
+		if (CODEC_GZIP.equals(codec))
+			return new GZIPInputStream(in, 64 * 1024);
+		in.close();
+		throw new IOException("Unsupported codec: " + codec);
+	}
+
+	/**
+	 * @return true when the content is of a compressed type
+	 */
+	private static boolean isCompressed(String name, byte[] data) {
+		if (name != null) {
+			int dot = name.lastIndexOf('.');
+			if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT)))
+				return true;
+		}
+		for (byte[] signature : COMPRESSED_SIGNATURES) {
+			if (data.length >= signature.length
+					&& Arrays.equals(data, 0, signature.length, signature, 0, signature.length))
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,549 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.logging.Level;
+
+import org.compiere.model.MSysConfig;
+import org.compiere.model.MStorageProvider;
+import org.compiere.util.CLogger;
+import org.compiere.util.Ini;
+import org.compiere.util.Util;
+
+/**
+ * Tuning settings of the S3 storage.
+ * <p>
+ * A setting is read from the AD_StorageProvider column with the setting name
+ * (e.g. S3MaxConcurrentFetches) when the column exists and has a value, so it
+ * can be defined per provider. Otherwise the System Configurator key with the
+ * same name in upper case with underscores (e.g. S3_MAX_CONCURRENT_FETCHES) is
+ * used, and finally the default value.
+ */
+public class S3Config {
+
+	private static final CLogger log = CLogger.getCLogger(S3Config.class);
+
+	/** Maximum number of entries of one attachment fetched at the same time */
+	public static final String MAX_CONCURRENT_FETCHES = "S3MaxConcurrentFetches";
+
+	/** Maximum number of entries of one attachment uploaded at the same time */
+	public static final String MAX_CONCURRENT_UPLOADS = "S3MaxConcurrentUploads";
+
+	/** Fetch the content of attachment entries on first access */
+	public static final String LAZY_LOAD = "S3LazyLoad";
+
+	/** Size in MB from which uploads use a multipart upload */
+	public static final String MULTIPART_THRESHOLD = "S3MultipartThresholdMB";
+
+	/** Part size in MB of multipart uploads */
+	public static final String MULTIPART_PART_SIZE = "S3MultipartPartSizeMB";
+
+	/** Maximum number of parts of one object uploaded at the same time */
+	public static final String MULTIPART_CONCURRENCY = "S3MultipartConcurrency";
+
+	/** Keep a copy of the objects read in a local disk cache */
+	public static final String DISK_CACHE = "S3DiskCache";
+
+	/** Directory of the local disk cache */
+	public static final String DISK_CACHE_DIRECTORY = "S3DiskCacheDirectory";
+
+	/** Size in MB of the local disk cache */
+	public static final String DISK_CACHE_SIZE = "S3DiskCacheSizeMB";
+
+	/** Seconds a cached copy is used before it is checked against the bucket */
+	public static final String DISK_CACHE_REVALIDATE = "S3DiskCacheRevalidateSeconds";
+
+	/** Size in MB of the in memory image cache */
+	public static final String IMAGE_CACHE_SIZE = "S3ImageCacheSizeMB";
+
+	/** Write archives to a local spool and upload them in the background */
+	public static final String WRITE_BEHIND = "S3WriteBehind";
+
+	/** Directory of the write-behind spool */
+	public static final String WRITE_BEHIND_DIRECTORY = "S3WriteBehindDirectory";
+
+	/** HTTP client used by the S3 client, URLConnection or Apache */
+	public static final String HTTP_CLIENT = "S3HttpClient";
+
+	/** Maximum number of pooled connections of the Apache HTTP client */
+	public static final String MAX_CONNECTIONS = "S3MaxConnections";
+
+	/** Milliseconds to wait for a connection to be established */
+	public static final String CONNECTION_TIMEOUT = "S3ConnectionTimeoutMillis";
+
+	/** Milliseconds to wait for data on an established connection */
+	public static final String SOCKET_TIMEOUT = "S3SocketTimeoutMillis";
+
+	/** Milliseconds to wait for a connection from the pool */
+	public static final String CONNECTION_ACQUIRE_TIMEOUT = "S3ConnectionAcquireTimeoutMillis";
+
+	/** Seconds a pooled connection may stay idle before it is closed */
+	public static final String CONNECTION_MAX_IDLE = "S3ConnectionMaxIdleSeconds";
+
+	/** Seconds a pooled connection is reused before it is closed */
+	public static final String CONNECTION_TTL = "S3ConnectionTTLSeconds";
+
+	/** Send TCP keep-alive probes on pooled connections */
+	public static final String TCP_KEEP_ALIVE = "S3TcpKeepAlive";
+
+	/** Number of event loop threads of the async client */
+	public static final String EVENT_LOOP_THREADS = "S3EventLoopThreads";
+
+	/** Compression of archives and attachment entries */
+	public static final String COMPRESSION = "S3Compression";
+
+	/** Size from which content is compressed */
+	public static final String COMPRESSION_MIN_SIZE = "S3CompressionMinSizeKB";
+
+	/** Store attachment entries once per content, keyed by their SHA-256 */
+	public static final String CONTENT_ADDRESSED = "S3ContentAddressed";
+
+	/** Validity of presigned download URLs, in seconds */
+	public static final String PRESIGNED_URL_EXPIRY = "S3PresignedUrlExpirySeconds";
+
+	/** Layout of the object keys, Sequential or Hashed */
+	public static final String KEY_LAYOUT = "S3KeyLayout";
+
+	/** Retry mode of the S3 clients, Standard or Adaptive */
+	public static final String RETRY_MODE = "S3RetryMode";
+
+	/** Number of retries of a failed request */
+	public static final String MAX_RETRIES = "S3MaxRetries";
+
+	/** Base delay in milliseconds of the backoff between retries */
+	public static final String RETRY_BASE_DELAY = "S3RetryBaseDelayMillis";
+
+	/** Base delay in milliseconds of the backoff after a throttled request */
+	public static final String RETRY_THROTTLED_DELAY = "S3RetryThrottledDelayMillis";
+
+	/** Longest backoff in milliseconds between retries */
+	public static final String RETRY_MAX_BACKOFF = "S3RetryMaxBackoffMillis";
+
+	/** Consecutive failed requests opening the circuit breaker */
+	public static final String CIRCUIT_BREAKER_FAILURES = "S3CircuitBreakerFailures";
+
+	/** Seconds the circuit breaker stays open */
+	public static final String CIRCUIT_BREAKER_OPEN = "S3CircuitBreakerOpenSeconds";
+
+	/** {@link #HTTP_CLIENT} value of the JDK URLConnection client */
+	public static final String HTTP_CLIENT_URLCONNECTION = "URLConnection";
+
+	/** {@link #HTTP_CLIENT} value of the pooled Apache client */
+	public static final String HTTP_CLIENT_APACHE = "Apache";
+
+	/** {@link #COMPRESSION} value to store content as it is */
+	public static final String COMPRESSION_NONE = "None";
+
+	/** {@link #COMPRESSION} value to compress content with gzip */
+	public static final String COMPRESSION_GZIP = "Gzip";
+
+	/** {@link #KEY_LAYOUT} value of keys following the record path */
+	public static final String KEY_LAYOUT_SEQUENTIAL = "Sequential";
+
+	/** {@link #KEY_LAYOUT} value of keys starting with a hash of the path */
+	public static final String KEY_LAYOUT_HASHED = "Hashed";
+
+	/** {@link #RETRY_MODE} value of the standard retries */
+	public static final String RETRY_MODE_STANDARD = "Standard";
+
+	/** {@link #RETRY_MODE} value of the standard retries with client side rate limiting */
+	public static final String RETRY_MODE_ADAPTIVE = "Adaptive";
+
+	private static final long KB = 1024L;
+
+	private static final long MB = 1024L * 1024L;
+
+	private S3Config() {
+	}
+
+	/**
+	 * @return maximum number of entries of one attachment fetched at the same
+	 *         time, 1 to fetch them one after another
+	 */
+	public static int getMaxConcurrentFetches(MStorageProvider prov) {
+		return Math.max(1, getInt(prov, MAX_CONCURRENT_FETCHES, 8));
+	}
+
+	/**
+	 * @return maximum number of entries of one attachment uploaded at the same
+	 *         time, 1 to upload them one after another
+	 */
+	public static int getMaxConcurrentUploads(MStorageProvider prov) {
+		return Math.max(1, getInt(prov, MAX_CONCURRENT_UPLOADS, 4));
+	}
+
+	/**
+	 * @return true when attachment entries are fetched on first access instead
+	 *         of when the attachment is loaded
+	 */
+	public static boolean isLazyLoad(MStorageProvider prov) {
+		return getBoolean(prov, LAZY_LOAD, false);
+	}
+
+	/**
+	 * @return size in bytes from which uploads use a multipart upload
+	 */
+	public static long getMultipartThreshold(MStorageProvider prov) {
+		return Math.max(1, getInt(prov, MULTIPART_THRESHOLD, 16)) * MB;
+	}
+
+	/**
+	 * @return part size in bytes of multipart uploads, at least 5 MB
+	 */
+	public static long getMultipartPartSize(MStorageProvider prov) {
+		return Math.max(5, getInt(prov, MULTIPART_PART_SIZE, 8)) * MB;
+	}
+
+	/**
+	 * @return maximum number of parts of one object uploaded at the same time
+	 */
+	public static int getMultipartConcurrency(MStorageProvider prov) {
+		return Math.max(1, getInt(prov, MULTIPART_CONCURRENCY, 4));
+	}
+
+	/**
+	 * @return true when objects read are kept in the local disk cache
+	 */
+	public static boolean isDiskCache(MStorageProvider prov) {
+		return getBoolean(prov, DISK_CACHE, false);
+	}
+
+	/**
+	 * @return directory of the local disk cache, may be shared by the server
+	 *         processes of the host
+	 */
+	public static String getDiskCacheDirectory(MStorageProvider prov) {
+		return getValue(prov, DISK_CACHE_DIRECTORY,
+				Paths.get(System.getProperty("java.io.tmpdir"), "idempiere-s3cache").toString());
+	}
+
+	/**
+	 * @return size in bytes of the local disk cache
+	 */
+	public static long getDiskCacheSize(MStorageProvider prov) {
+		return Math.max(1, getInt(prov, DISK_CACHE_SIZE, 1024)) * MB;
+	}
+
+	/**
+	 * @return seconds a cached copy is used before it is checked against the
+	 *         bucket, 0 to check it on every read
+	 */
+	public static int getDiskCacheRevalidateSeconds(MStorageProvider prov) {
+		return Math.max(0, getInt(prov, DISK_CACHE_REVALIDATE, 60));
+	}
+
+	/**
+	 * @return size in bytes of the in memory image cache, 0 when disabled
+	 */
+	public static long getImageCacheSize(MStorageProvider prov) {
+		return Math.max(0, getInt(prov, IMAGE_CACHE_SIZE, 16)) * MB;
+	}
+
+	/**
+	 * @return true when archives are written to the local spool and uploaded
+	 *         in the background
+	 */
+	public static boolean isWriteBehind(MStorageProvider prov) {
+		return getBoolean(prov, WRITE_BEHIND, false);
+	}
+
+	/**
+	 * @return directory of the write-behind spool, must be on durable storage
+	 */
+	public static String getWriteBehindDirectory(MStorageProvider prov) {
+		return getValue(prov, WRITE_BEHIND_DIRECTORY, Paths.get(Ini.getAdempiereHome(), "s3spool").toString());
+	}
+
+	/**
+	 * @return HTTP client used by the S3 client, {@link #HTTP_CLIENT_URLCONNECTION}
+	 *         or {@link #HTTP_CLIENT_APACHE}
+	 */
+	public static String getHttpClient(MStorageProvider prov) {
+		String value = getValue(prov, HTTP_CLIENT, HTTP_CLIENT_URLCONNECTION);
+		if (HTTP_CLIENT_APACHE.equalsIgnoreCase(value))
+			return HTTP_CLIENT_APACHE;
+		if (!HTTP_CLIENT_URLCONNECTION.equalsIgnoreCase(value))
+			log.log(Level.WARNING, "Unsupported " + HTTP_CLIENT + ": " + value + ", using " + HTTP_CLIENT_URLCONNECTION);
+		return HTTP_CLIENT_URLCONNECTION;
+	}
+
+	/**
+	 * @return maximum number of pooled connections of the Apache HTTP client
+	 */
+	public static int getMaxConnections(MStorageProvider prov) {
+		return Math.max(1, getInt(prov, MAX_CONNECTIONS, 50));
+	}
+
+	/**
+	 * @return time to wait for a connection to be established
+	 */
+	public static Duration getConnectionTimeout(MStorageProvider prov) {
+		return Duration.ofMillis(Math.max(1, getInt(prov, CONNECTION_TIMEOUT, 2000)));
+	}
+
+	/**
+	 * @return time to wait for data on an established connection
+	 */
+	public static Duration getSocketTimeout(MStorageProvider prov) {
+		return Duration.ofMillis(Math.max(1, getInt(prov, SOCKET_TIMEOUT, 30000)));
+	}
+
+	/**
+	 * @return time to wait for a connection from the pool of the Apache HTTP
+	 *         client
+	 */
+	public static Duration getConnectionAcquireTimeout(MStorageProvider prov) {
+		return Duration.ofMillis(Math.max(1, getInt(prov, CONNECTION_ACQUIRE_TIMEOUT, 10000)));
+	}
+
+	/**
+	 * @return time a pooled connection may stay idle before it is closed
+	 */
+	public static Duration getConnectionMaxIdle(MStorageProvider prov) {
+		return Duration.ofSeconds(Math.max(1, getInt(prov, CONNECTION_MAX_IDLE, 60)));
+	}
+
+	/**
+	 * @return time a pooled connection is reused before it is closed, null
+	 *         when not limited
+	 */
+	public static Duration getConnectionTTL(MStorageProvider prov) {
+		int seconds = getInt(prov, CONNECTION_TTL, 0);
+		return seconds > 0 ? Duration.ofSeconds(seconds) : null;
+	}
+
+	/**
+	 * @return true when TCP keep-alive probes are sent on pooled connections
+	 */
+	public static boolean isTcpKeepAlive(MStorageProvider prov) {
+		return getBoolean(prov, TCP_KEEP_ALIVE, false);
+	}
+
+	/**
+	 * @return number of event loop threads of the async client, 0 for the
+	 *         Netty default (twice the number of processors)
+	 */
+	public static int getEventLoopThreads(MStorageProvider prov) {
+		return Math.max(0, getInt(prov, EVENT_LOOP_THREADS, 0));
+	}
+
+	/**
+	 * @return compression of archives and attachment entries,
+	 *         {@link #COMPRESSION_NONE} or {@link #COMPRESSION_GZIP}
+	 */
+	public static String getCompression(MStorageProvider prov) {
+		String value = getValue(prov, COMPRESSION, COMPRESSION_NONE);
+		if (COMPRESSION_GZIP.equalsIgnoreCase(value))
+			return COMPRESSION_GZIP;
+		if (!COMPRESSION_NONE.equalsIgnoreCase(value))
+			log.log(Level.WARNING, "Unsupported " + COMPRESSION + ": " + value + ", using " + COMPRESSION_NONE);
+		return COMPRESSION_NONE;
+	}
+
+	/**
+	 * @return size in bytes from which content is compressed
+	 */
+	public static long getCompressionMinSize(MStorageProvider prov) {
+		return Math.max(0, getInt(prov, COMPRESSION_MIN_SIZE, 4)) * KB;
+	}
+
+	/**
+	 * @return validity of presigned download URLs, from 1 second to the 7
+	 *         days allowed by S3
+	 */
+	public static Duration getPresignedUrlExpiry(MStorageProvider prov) {
+		return Duration.ofSeconds(Math.min(7 * 24 * 3600, Math.max(1, getInt(prov, PRESIGNED_URL_EXPIRY, 300))));
+	}
+
+	/**
+	 * @return true when attachment entries are stored by the SHA-256 of their
+	 *         content, so identical files are uploaded and stored once
+	 */
+	public static boolean isContentAddressed(MStorageProvider prov) {
+		return getBoolean(prov, CONTENT_ADDRESSED, false);
+	}
+
+	/**
+	 * @return layout of the keys of new objects, {@link #KEY_LAYOUT_SEQUENTIAL}
+	 *         or {@link #KEY_LAYOUT_HASHED}
+	 */
+	public static String getKeyLayout(MStorageProvider prov) {
+		String value = getValue(prov, KEY_LAYOUT, KEY_LAYOUT_SEQUENTIAL);
+		if (KEY_LAYOUT_HASHED.equalsIgnoreCase(value))
+			return KEY_LAYOUT_HASHED;
+		if (!KEY_LAYOUT_SEQUENTIAL.equalsIgnoreCase(value))
+			log.log(Level.WARNING, "Unsupported " + KEY_LAYOUT + ": " + value + ", using " + KEY_LAYOUT_SEQUENTIAL);
+		return KEY_LAYOUT_SEQUENTIAL;
+	}
+
+	/**
+	 * @return retry mode of the S3 clients, {@link #RETRY_MODE_ADAPTIVE} or
+	 *         {@link #RETRY_MODE_STANDARD}
+	 */
+	public static String getRetryMode(MStorageProvider prov) {
+		String value = getValue(prov, RETRY_MODE, RETRY_MODE_ADAPTIVE);
+		if (RETRY_MODE_STANDARD.equalsIgnoreCase(value))
+			return RETRY_MODE_STANDARD;
+		if (!RETRY_MODE_ADAPTIVE.equalsIgnoreCase(value))
+			log.log(Level.WARNING, "Unsupported " + RETRY_MODE + ": " + value + ", using " + RETRY_MODE_ADAPTIVE);
+		return RETRY_MODE_ADAPTIVE;
+	}
+
+	/**
+	 * @return number of retries of a failed request, 0 for none
+	 */
+	public static int getMaxRetries(MStorageProvider prov) {
+		return Math.max(0, getInt(prov, MAX_RETRIES, 3));
+	}
+
+	/**
+	 * @return base delay of the backoff between retries
+	 */
+	public static Duration getRetryBaseDelay(MStorageProvider prov) {
+		return Duration.ofMillis(Math.max(1, getInt(prov, RETRY_BASE_DELAY, 100)));
+	}
+
+	/**
+	 * @return base delay of the backoff after a throttled request
+	 */
+	public static Duration getRetryThrottledDelay(MStorageProvider prov) {
+		return Duration.ofMillis(Math.max(1, getInt(prov, RETRY_THROTTLED_DELAY, 1000)));
+	}
+
+	/**
+	 * @return longest backoff between retries
+	 */
+	public static Duration getRetryMaxBackoff(MStorageProvider prov) {
+		return Duration.ofMillis(Math.max(1, getInt(prov, RETRY_MAX_BACKOFF, 20000)));
+	}
+
+	/**
+	 * @return consecutive failed requests opening the circuit breaker, 0 when
+	 *         disabled
+	 */
+	public static int getCircuitBreakerFailures(MStorageProvider prov) {
+		return Math.max(0, getInt(prov, CIRCUIT_BREAKER_FAILURES, 10));
+	}
+
+	/**
+	 * @return time the circuit breaker stays open before a request is let
+	 *         through
+	 */
+	public static Duration getCircuitBreakerOpen(MStorageProvider prov) {
+		return Duration.ofSeconds(Math.max(1, getInt(prov, CIRCUIT_BREAKER_OPEN, 30)));
+	}
+
+	/**
+	 * @return all retry and circuit breaker settings, a change means the S3
+	 *         client must be created again
+	 */
+	public static String getRetrySettings(MStorageProvider prov) {
+		return getRetryMode(prov) + "/" + getMaxRetries(prov) + "/" + getRetryBaseDelay(prov)
+				+ "/" + getRetryThrottledDelay(prov) + "/" + getRetryMaxBackoff(prov)
+				+ "/" + getCircuitBreakerFailures(prov) + "/" + getCircuitBreakerOpen(prov);
+	}
+
+	/**
+	 * @return all HTTP client settings, a change means the S3 client must be
+	 *         created again
+	 */
+	public static String getHttpClientSettings(MStorageProvider prov) {
+		return getHttpClient(prov) + "/" + getMaxConnections(prov) + "/" + getConnectionTimeout(prov)
+				+ "/" + getSocketTimeout(prov) + "/" + getConnectionAcquireTimeout(prov)
+				+ "/" + getConnectionMaxIdle(prov) + "/" + getConnectionTTL(prov) + "/" + isTcpKeepAlive(prov);
+	}
+
+	/**
+	 * Root of the object keys of a storage provider: its folder without a
+	 * leading slash and with a trailing one
+	 *
+	 * @return root, "/" when the provider has no folder
+	 */
+	public static String getPathRoot(MStorageProvider prov) {
+		String root = prov.getFolder();
+		if (root == null)
+			root = "";
+		if (root.startsWith("/"))
+			root = root.replaceFirst("/", "");
+		if (!root.endsWith("/"))
+			root = root + "/";
+		return root;
+	}
+
+	/**
+	 * Get a setting value
+	 *
+	 * @param prov         storage provider
+	 * @param name         setting name
+	 * @param defaultValue value used when the setting is not defined
+	 * @return String
+	 */
+	public static String getValue(MStorageProvider prov, String name, String defaultValue) {
+		if (prov != null && prov.get_ColumnIndex(name) >= 0) {
+			String value = prov.get_ValueAsString(name);
+			if (!Util.isEmpty(value, true))
+				return value.trim();
+		}
+		int AD_Client_ID = prov != null ? prov.getAD_Client_ID() : 0;
+		return MSysConfig.getValue(getSysConfigName(name), defaultValue, AD_Client_ID);
+	}
+
+	/**
+	 * Get an integer setting value
+	 *
+	 * @param prov         storage provider
+	 * @param name         setting name
+	 * @param defaultValue value used when the setting is not defined or invalid
+	 * @return int
+	 */
+	public static int getInt(MStorageProvider prov, String name, int defaultValue) {
+		String value = getValue(prov, name, null);
+		if (Util.isEmpty(value, true))
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			log.log(Level.WARNING, "Invalid value for " + name + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Get a boolean setting value, Y/true are accepted as true
+	 *
+	 * @param prov         storage provider
+	 * @param name         setting name
+	 * @param defaultValue value used when the setting is not defined
+	 * @return boolean
+	 */
+	public static boolean getBoolean(MStorageProvider prov, String name, boolean defaultValue) {
+		String value = getValue(prov, name, null);
+		if (Util.isEmpty(value, true))
+			return defaultValue;
+		return "Y".equalsIgnoreCase(value) || "true".equalsIgnoreCase(value);
+	}
+
+	/**
+	 * Returns the System Configurator key of a setting, S3MaxConcurrentFetches
+	 * becomes S3_MAX_CONCURRENT_FETCHES
+	 *
+	 * @return String
+	 */
+	private static String getSysConfigName(String name) {
+		return name.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase();
+	}
+}
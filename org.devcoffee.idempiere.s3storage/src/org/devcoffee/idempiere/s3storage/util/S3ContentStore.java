@@ -0,0 +1,140 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.compiere.model.MStorageProvider;
+
+/**
+ * Layout of the content-addressed objects.
+ * <p>
+ * In content-addressed mode an attachment entry is stored under the SHA-256
+ * of its content, e.g. <code>cas/3f/3f2a...e1</code> below the folder of the
+ * storage provider, so a file attached to many records is uploaded and stored
+ * once. The objects are shared: deleting an attachment only drops its pointer,
+ * and objects no pointer refers to any more are removed by the
+ * {@link org.devcoffee.idempiere.s3storage.process.S3ContentGC} process.
+ */
+public class S3ContentStore {
+
+	/** Folder of the content-addressed objects, below the storage provider folder */
+	public static final String FOLDER = "cas/";
+
+	private static final Pattern HASH_PATH = Pattern.compile("(?:^|/|%)" + FOLDER + "[0-9a-f]{2}/([0-9a-f]{64})$");
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private S3ContentStore() {
+	}
+
+	/**
+	 * Hash a file without reading it in memory
+	 * 
+	 * @return lower case hex SHA-256 of the content
+	 */
+	public static String sha256(File file) throws IOException {
+		return digest(file, "SHA-256");
+	}
+
+	/**
+	 * Hash a file without reading it in memory
+	 * 
+	 * @return lower case hex MD5 of the content, the ETag of an object put in
+	 *         one request
+	 */
+	public static String md5(File file) throws IOException {
+		return digest(file, "MD5");
+	}
+
+	private static String digest(File file, String algorithm) throws IOException {
+		MessageDigest digest = newDigest(algorithm);
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			int read;
+			while ((read = in.read(buffer)) >= 0)
+				digest.update(buffer, 0, read);
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * @param root folder of the storage provider, ending with /
+	 * @param hash SHA-256 of the content
+	 * @return object key of the content
+	 */
+	public static String getKey(String root, String hash) {
+		return root + FOLDER + hash.substring(0, 2) + "/" + hash;
+	}
+
+	/**
+	 * @return prefix of the content-addressed objects of a storage provider
+	 */
+	public static String getPrefix(MStorageProvider prov) {
+		return S3Config.getPathRoot(prov) + FOLDER;
+	}
+
+	/**
+	 * @param path object key or pointer file
+	 * @return SHA-256 of a content-addressed object, null when the path is not
+	 *         one
+	 */
+	public static String getHash(String path) {
+		if (path == null)
+			return null;
+		Matcher matcher = HASH_PATH.matcher(path);
+		return matcher.find() ? matcher.group(1) : null;
+	}
+
+	/**
+	 * @param path object key or pointer file
+	 * @return true when the path is of a shared content-addressed object
+	 */
+	public static boolean isContentAddressed(String path) {
+		return getHash(path) != null;
+	}
+
+	/**
+	 * @return lower case hex SHA-256 of a string
+	 */
+	static String sha256(String value) {
+		return toHex(newDigest("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static MessageDigest newDigest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}
@@ -0,0 +1,479 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.compiere.model.MStorageProvider;
+import org.compiere.util.CLogger;
+
+import software.amazon.awssdk.services.s3.S3Client;
+
+/**
+ * Size bounded local disk cache in front of S3 reads.
+ * <p>
+ * Each object is kept in one file holding its ETag on the first line and the
+ * content after it. Files are written to a temporary name and moved in place,
+ * so readers, including other server processes sharing the directory, never
+ * see a partial file. The file modification time is the last access time, and
+ * the least recently used files are evicted when the directory grows over the
+ * byte budget; eviction holds a file lock so only one process evicts at a time.
+ * A cached copy is revalidated with a conditional GET (If-None-Match) once it
+ * is older than the revalidation interval. A read invalidated by this server
+ * while it was going to the bucket is not written to the cache, as it may hold
+ * the replaced version.
+ */
+public class S3DiskCache {
+
+	private static final CLogger log = CLogger.getCLogger(S3DiskCache.class);
+
+	private static final String DATA_SUFFIX = ".s3c";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String LOCK_FILE = ".lock";
+	/** Invalidation counters, each shared by the files hashed to it */
+	private static final int GENERATION_STRIPES = 256;
+	/** Above this size the expired validation times are dropped */
+	private static final int MAX_VALIDATED = 50000;
+
+	/** Caches by directory */
+	private static final Map<Path, S3DiskCache> caches = new ConcurrentHashMap<>();
+
+	private final Path directory;
+	private volatile long maxBytes;
+	private volatile long revalidateMillis;
+
+	/** Estimated size of the directory, recomputed on eviction */
+	private final AtomicLong currentBytes = new AtomicLong();
+	/** Last time each file was validated against the bucket by this process */
+	private final Map<Path, Long> validated = new ConcurrentHashMap<>();
+	/** Invalidations by stripe, a read started before one is not cached */
+	private final long[] generations = new long[GENERATION_STRIPES];
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong revalidations = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private S3DiskCache(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+		currentBytes.set(scan().stream().mapToLong(f -> f.size).sum());
+	}
+
+	/**
+	 * Get the disk cache of a storage provider
+	 *
+	 * @return cache, null when the cache is disabled for the provider
+	 */
+	public static S3DiskCache get(MStorageProvider prov) {
+		if (!S3Config.isDiskCache(prov))
+			return null;
+		Path directory = Paths.get(S3Config.getDiskCacheDirectory(prov)).toAbsolutePath().normalize();
+		S3DiskCache cache = caches.computeIfAbsent(directory, dir -> {
+			try {
+				return new S3DiskCache(dir);
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Cannot use disk cache directory " + dir, e);
+				return null;
+			}
+		});
+		if (cache != null) {
+			cache.maxBytes = S3Config.getDiskCacheSize(prov);
+			cache.revalidateMillis = S3Config.getDiskCacheRevalidateSeconds(prov) * 1000L;
+		}
+		return cache;
+	}
+
+	/**
+	 * @return all disk caches in use
+	 */
+	public static Collection<S3DiskCache> getCaches() {
+		return Collections.unmodifiableCollection(caches.values());
+	}
+
+	/**
+	 * Read an object through the cache
+	 *
+	 * @return result, found from the cache or the bucket, missing or failed
+	 */
+	public S3ReadResult read(S3Client s3Client, MStorageProvider prov, String bucket, String key) {
+		final Path file = getFile(prov, bucket, key);
+		final long generation = getGeneration(file);
+		final CachedObject cached = readFile(file);
+		if (cached != null) {
+			Long checked = validated.get(file);
+			if (checked != null && System.currentTimeMillis() - checked < revalidateMillis) {
+				hits.incrementAndGet();
+				touch(file);
+				return S3ReadResult.found(cached.data, cached.eTag, null);
+			}
+		}
+
+		S3ReadResult result = S3Util.readObject(s3Client, bucket, key, cached != null ? cached.eTag : null);
+		switch (result.getStatus()) {
+		case NOT_MODIFIED:
+			hits.incrementAndGet();
+			revalidations.incrementAndGet();
+			synchronized (generations) {
+				if (generation == getGeneration(file))
+					markValidated(file);
+			}
+			touch(file);
+			return S3ReadResult.found(cached.data, cached.eTag, null);
+		case FOUND:
+			misses.incrementAndGet();
+			writeFile(file, result, generation);
+			return result;
+		case NOT_FOUND:
+			misses.incrementAndGet();
+			remove(file);
+			return result;
+		default:
+			misses.incrementAndGet();
+			return result;
+		}
+	}
+
+	/**
+	 * Forget the cached copy of an object, called when the object is written or
+	 * deleted by this server
+	 */
+	public void invalidate(MStorageProvider prov, String bucket, String key) {
+		Path file = getFile(prov, bucket, key);
+		synchronized (generations) {
+			generations[getStripe(file)]++;
+			remove(file);
+		}
+	}
+
+	/**
+	 * Forget the cached copy of an object, when the disk cache is enabled for
+	 * the provider
+	 */
+	public static void invalidateIfEnabled(MStorageProvider prov, String bucket, String key) {
+		S3DiskCache cache = get(prov);
+		if (cache != null)
+			cache.invalidate(prov, bucket, key);
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return hits confirmed by a conditional GET
+	 */
+	public long getRevalidations() {
+		return revalidations.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Clear the hit, miss, revalidation and eviction counters
+	 */
+	void resetCounters() {
+		hits.set(0);
+		misses.set(0);
+		revalidations.set(0);
+		evictions.set(0);
+	}
+
+	/**
+	 * @return estimated bytes used by the cache directory
+	 */
+	public long getCurrentBytes() {
+		return currentBytes.get();
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "S3DiskCache[" + directory + ", hits=" + getHits() + ", misses=" + getMisses() + ", revalidations="
+				+ getRevalidations() + ", evictions=" + getEvictions() + ", bytes=" + getCurrentBytes() + "/" + maxBytes
+				+ "]";
+	}
+
+	/**
+	 * Returns the cache file of an object, named by a hash of the provider,
+	 * bucket and key
+	 *
+	 * @return Path
+	 */
+	private Path getFile(MStorageProvider prov, String bucket, String key) {
+		String hash = S3ContentStore.sha256(prov.getAD_StorageProvider_ID() + "/" + bucket + "/" + key);
+		return directory.resolve(hash.substring(0, 2)).resolve(hash + DATA_SUFFIX);
+	}
+
+	private CachedObject readFile(Path file) {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+				InputStream in = new BufferedInputStream(Channels.newInputStream(channel))) {
+			long remaining = channel.size();
+			ByteArrayOutputStream header = new ByteArrayOutputStream(64);
+			int b;
+			while ((b = in.read()) >= 0 && b != '\n')
+				header.write(b);
+			if (b < 0)
+				return null;
+			remaining -= header.size() + 1;
+			byte[] data = new byte[(int) remaining];
+			int offset = 0;
+			while (offset < data.length) {
+				int n = in.read(data, offset, data.length - offset);
+				if (n < 0)
+					return null;
+				offset += n;
+			}
+			return new CachedObject(header.toString(StandardCharsets.UTF_8.name()), data);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Cannot read cache file " + file, e);
+			return null;
+		}
+	}
+
+	private int getStripe(Path file) {
+		return Math.floorMod(file.hashCode(), GENERATION_STRIPES);
+	}
+
+	/**
+	 * @return invalidations of the stripe of the file so far
+	 */
+	private long getGeneration(Path file) {
+		synchronized (generations) {
+			return generations[getStripe(file)];
+		}
+	}
+
+	/**
+	 * Record that the file matches the bucket now. Validation times older than
+	 * the revalidation interval are dropped when the map grows too big, they
+	 * lead to a conditional GET anyway.
+	 */
+	private void markValidated(Path file) {
+		long now = System.currentTimeMillis();
+		if (validated.size() >= MAX_VALIDATED) {
+			validated.values().removeIf(checked -> now - checked >= revalidateMillis);
+			if (validated.size() >= MAX_VALIDATED)
+				validated.clear();
+		}
+		validated.put(file, now);
+	}
+
+	/**
+	 * Write the content read from the bucket, unless the object was
+	 * invalidated since the read started
+	 *
+	 * @param generation generation of the file when the read started
+	 */
+	private void writeFile(Path file, S3ReadResult result, long generation) {
+		if (result.getETag() == null || result.getData() == null)
+			return;
+		// an object over a quarter of the budget would evict too much
+		long size = result.getData().length;
+		if (size > maxBytes / 4)
+			return;
+		byte[] header = result.getETag().getBytes(StandardCharsets.UTF_8);
+		Path temp = file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + TEMP_SUFFIX);
+		try {
+			Files.createDirectories(file.getParent());
+			long previous = Files.exists(file) ? Files.size(file) : 0;
+			try (OutputStream out = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+				out.write(header);
+				out.write('\n');
+				out.write(result.getData());
+			}
+			synchronized (generations) {
+				if (generation != getGeneration(file)) {
+					// written or deleted meanwhile, the content read may be the replaced one
+					Files.deleteIfExists(temp);
+					return;
+				}
+				try {
+					Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+				}
+				markValidated(file);
+			}
+			if (currentBytes.addAndGet(header.length + 1 + size - previous) > maxBytes)
+				evict();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Cannot write cache file " + file, e);
+			try {
+				Files.deleteIfExists(temp);
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	private void remove(Path file) {
+		validated.remove(file);
+		try {
+			long size = Files.size(file);
+			if (Files.deleteIfExists(file))
+				currentBytes.addAndGet(-size);
+		} catch (NoSuchFileException e) {
+			// not cached
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Cannot delete cache file " + file, e);
+		}
+	}
+
+	/**
+	 * Record an access, used for the least recently used eviction
+	 */
+	private void touch(Path file) {
+		try {
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			// evicted by another process meanwhile
+		}
+	}
+
+	/**
+	 * Delete the least recently used files until the directory is at 90% of the
+	 * budget. The lock file keeps processes sharing the directory from evicting
+	 * at the same time.
+	 */
+	private void evict() {
+		synchronized (this) {
+			try (FileChannel channel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE); FileLock lock = channel.tryLock()) {
+				if (lock == null)
+					return; // another process is evicting
+				List<CacheFile> files = scan();
+				// files deleted by other processes sharing the directory
+				Set<Path> present = new HashSet<>();
+				for (CacheFile f : files)
+					present.add(f.path);
+				validated.keySet().retainAll(present);
+				long total = files.stream().mapToLong(f -> f.size).sum();
+				long target = maxBytes * 9 / 10;
+				files.sort(Comparator.comparingLong(f -> f.lastAccess));
+				for (CacheFile f : files) {
+					if (total <= target)
+						break;
+					try {
+						if (Files.deleteIfExists(f.path)) {
+							total -= f.size;
+							validated.remove(f.path);
+							evictions.incrementAndGet();
+						}
+					} catch (IOException e) {
+						log.log(Level.WARNING, "Cannot evict cache file " + f.path, e);
+					}
+				}
+				currentBytes.set(total);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Disk cache eviction failed in " + directory, e);
+			}
+		}
+	}
+
+	/**
+	 * List the cache files, deleting temporary files left by crashed writers
+	 *
+	 * @return List
+	 */
+	private List<CacheFile> scan() throws IOException {
+		List<CacheFile> files = new ArrayList<>();
+		long staleTemp = System.currentTimeMillis() - 3600 * 1000L;
+		try (DirectoryStream<Path> subdirs = Files.newDirectoryStream(directory, Files::isDirectory)) {
+			for (Path subdir : subdirs) {
+				try (DirectoryStream<Path> entries = Files.newDirectoryStream(subdir)) {
+					for (Path entry : entries) {
+						try {
+							String name = entry.getFileName().toString();
+							long modified = Files.getLastModifiedTime(entry).toMillis();
+							if (name.endsWith(DATA_SUFFIX))
+								files.add(new CacheFile(entry, Files.size(entry), modified));
+							else if (name.endsWith(TEMP_SUFFIX) && modified < staleTemp)
+								Files.deleteIfExists(entry);
+						} catch (NoSuchFileException e) {
+							// removed meanwhile
+						}
+					}
+				}
+			}
+		}
+		return files;
+	}
+
+	private static class CachedObject {
+		private final String eTag;
+		private final byte[] data;
+
+		private CachedObject(String eTag, byte[] data) {
+			this.eTag = eTag;
+			this.data = data;
+		}
+	}
+
+	private static class CacheFile {
+		private final Path path;
+		private final long size;
+		private final long lastAccess;
+
+		private CacheFile(Path path, long size, long lastAccess) {
+			this.path = path;
+			this.size = size;
+			this.lastAccess = lastAccess;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.compiere.model.MSysConfig;
+
+/**
+ * Shared thread pool for S3 transfers.
+ * <p>
+ * The pool size is read from the S3_THREAD_POOL_SIZE System Configurator key
+ * when the pool is created. The calling thread always takes part in the work,
+ * so a task running on the pool can submit more work without risk of
+ * starvation.
+ */
+public class S3Executor {
+
+	private static ThreadPoolExecutor executor;
+
+	private S3Executor() {
+	}
+
+	/**
+	 * Run the tasks with at most maxInFlight of them running at the same time
+	 * and wait for all of them. When one task fails the tasks not yet started
+	 * are skipped.
+	 *
+	 * @param tasks       tasks to run
+	 * @param maxInFlight maximum number of tasks running at the same time
+	 * @return results, in the same order as the tasks
+	 * @throws ExecutionException   with the cause of the first failed task
+	 * @throws InterruptedException
+	 */
+	public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks, int maxInFlight)
+			throws ExecutionException, InterruptedException {
+		final int size = tasks.size();
+		@SuppressWarnings("unchecked")
+		final T[] results = (T[]) new Object[size];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		final CountDownLatch done = new CountDownLatch(size);
+
+		Runnable worker = () -> {
+			int i;
+			while ((i = next.getAndIncrement()) < size) {
+				try {
+					if (error.get() == null)
+						results[i] = tasks.get(i).call();
+				} catch (Throwable t) {
+					error.compareAndSet(null, t);
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+
+		int workers = Math.min(Math.max(1, maxInFlight), size);
+		List<Future<?>> helpers = new ArrayList<>();
+		for (int w = 1; w < workers; w++)
+			helpers.add(getExecutor().submit(worker));
+		try {
+			worker.run();
+			done.await();
+		} finally {
+			// helpers still waiting in the queue have nothing left to do
+			for (Future<?> helper : helpers)
+				helper.cancel(false);
+		}
+
+		if (error.get() != null)
+			throw new ExecutionException(error.get());
+		return new ArrayList<>(Arrays.asList(results));
+	}
+
+	/**
+	 * @return the shared executor, created on first use
+	 */
+	public static synchronized ThreadPoolExecutor getExecutor() {
+		if (executor == null || executor.isShutdown()) {
+			int poolSize = Math.max(1, MSysConfig.getIntValue("S3_THREAD_POOL_SIZE", 32));
+			final AtomicInteger count = new AtomicInteger();
+			executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+					r -> {
+						Thread thread = new Thread(r, "S3Storage-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					});
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	/**
+	 * Stop the shared executor, a new one is created on next use
+	 */
+	public static synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+}
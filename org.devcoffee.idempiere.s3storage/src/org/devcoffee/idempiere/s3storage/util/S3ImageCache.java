@@ -0,0 +1,167 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.compiere.model.MImage;
+import org.compiere.util.CCache;
+
+/**
+ * In memory cache of image content, keyed by AD_Image_ID.
+ * <p>
+ * The cache is registered for the AD_Image table, so a cache reset of an
+ * image, on this server or on another node of the cluster, drops its entry.
+ * Each entry also carries the version of the image it was read for, an entry
+ * of an older version is never returned. The total content size is bounded,
+ * the least recently used entries are dropped first.
+ */
+public class S3ImageCache extends CCache<Integer, S3ImageCache.CachedImage> {
+
+	private static final long serialVersionUID = 4185023717465329915L;
+
+	private static final S3ImageCache instance = new S3ImageCache();
+
+	/** Total size in bytes of the cached content */
+	private long currentBytes = 0;
+
+	private S3ImageCache() {
+		super(MImage.Table_Name, "S3ImageCache", 50, 0, false);
+	}
+
+	/**
+	 * @return the image cache
+	 */
+	public static S3ImageCache get() {
+		return instance;
+	}
+
+	/**
+	 * Get the cached content of an image
+	 *
+	 * @param AD_Image_ID image
+	 * @param version     current version of the image
+	 * @return content, null when not cached or cached for another version
+	 */
+	public byte[] get(int AD_Image_ID, String version) {
+		CachedImage cached = get(AD_Image_ID);
+		if (cached == null || !cached.version.equals(version))
+			return null;
+		cached.lastAccess = System.nanoTime();
+		return cached.data;
+	}
+
+	/**
+	 * Cache the content of an image
+	 *
+	 * @param AD_Image_ID image
+	 * @param version     version of the image the content was read for
+	 * @param data        content
+	 * @param maxBytes    total size limit of the cache, images over a quarter
+	 *                    of it are not cached
+	 */
+	public void put(int AD_Image_ID, String version, byte[] data, long maxBytes) {
+		if (AD_Image_ID <= 0 || data == null || data.length > maxBytes / 4)
+			return;
+		put(AD_Image_ID, new CachedImage(version, data));
+		if (getCurrentBytes() > maxBytes)
+			evict(maxBytes);
+	}
+
+	@Override
+	public synchronized CachedImage put(Integer key, CachedImage value) {
+		CachedImage previous = super.put(key, value);
+		currentBytes += value.data.length - (previous != null ? previous.data.length : 0);
+		return previous;
+	}
+
+	@Override
+	public synchronized CachedImage remove(Object key) {
+		CachedImage previous = super.remove(key);
+		if (previous != null)
+			currentBytes -= previous.data.length;
+		return previous;
+	}
+
+	@Override
+	public synchronized int reset(int recordId) {
+		int count = super.reset(recordId);
+		recount();
+		return count;
+	}
+
+	@Override
+	public synchronized int reset() {
+		int count = super.reset();
+		currentBytes = 0;
+		return count;
+	}
+
+	/**
+	 * @return total size in bytes of the cached content
+	 */
+	public synchronized long getCurrentBytes() {
+		return currentBytes;
+	}
+
+	/**
+	 * Drop the least recently used entries until the cache uses 90% of the
+	 * limit
+	 */
+	private synchronized void evict(long maxBytes) {
+		// entries may have been dropped without notice (e.g. expiry)
+		recount();
+		if (currentBytes <= maxBytes)
+			return;
+		List<Map.Entry<Integer, CachedImage>> entries = new ArrayList<>(entrySet());
+		entries.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+		long target = maxBytes * 9 / 10;
+		for (Map.Entry<Integer, CachedImage> entry : entries) {
+			if (currentBytes <= target)
+				break;
+			remove(entry.getKey());
+		}
+	}
+
+	private synchronized void recount() {
+		long total = 0;
+		for (CachedImage cached : values())
+			total += cached.data.length;
+		currentBytes = total;
+	}
+
+	@Override
+	public String toString() {
+		return "S3ImageCache[size=" + size() + ", bytes=" + getCurrentBytes() + "]";
+	}
+
+	/**
+	 * Cached content of an image
+	 */
+	public static class CachedImage {
+		private final String version;
+		private final byte[] data;
+		private volatile long lastAccess;
+
+		private CachedImage(String version, byte[] data) {
+			this.version = version;
+			this.data = data;
+			this.lastAccess = System.nanoTime();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.compiere.model.MStorageProvider;
+
+/**
+ * Layout of the object keys below the folder of the storage provider.
+ * <p>
+ * In the sequential layout (version 1) the key follows the record, e.g.
+ * <code>1000000/0/259/1000001/Invoice.pdf</code>, so the writes of a busy
+ * table land on one key range. The hashed layout (version 2) starts the key
+ * with 4 hex characters of the MD5 of that path, e.g.
+ * <code>a3f9/1000000/0/259/1000001/Invoice.pdf</code>, spreading them over
+ * the partitions of the bucket. The version is kept in the pointer entry, so
+ * objects written with another layout still resolve; the
+ * {@link org.devcoffee.idempiere.s3storage.process.S3KeyLayoutMigrate}
+ * process moves them to the layout of the storage provider.
+ */
+public class S3KeyLayout {
+
+	/** Keys following the record, also the layout of entries without version */
+	public static final String VERSION_SEQUENTIAL = "1";
+
+	/** Keys starting with a hash of the record path */
+	public static final String VERSION_HASHED = "2";
+
+	private static final int PREFIX_LENGTH = 4;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private S3KeyLayout() {
+	}
+
+	/**
+	 * @return layout version of the new objects of the storage provider
+	 */
+	public static String getVersion(MStorageProvider prov) {
+		return S3Config.KEY_LAYOUT_HASHED.equals(S3Config.getKeyLayout(prov)) ? VERSION_HASHED : VERSION_SEQUENTIAL;
+	}
+
+	/**
+	 * @return layout version of the object of a pointer entry
+	 */
+	public static String getVersion(S3Pointer.Entry entry) {
+		String version = entry.getLayout();
+		return version != null ? version : VERSION_SEQUENTIAL;
+	}
+
+	/**
+	 * Get the key of an object, below the folder of the storage provider
+	 * 
+	 * @param version layout version
+	 * @param path    record path, e.g. client/org/table/record/name
+	 * @return path with the prefix of the layout
+	 */
+	public static String getKey(String version, String path) {
+		if (!VERSION_HASHED.equals(version))
+			return path;
+		return hash(path) + "/" + path;
+	}
+
+	/**
+	 * Get the record path of a key, the reverse of
+	 * {@link #getKey(String, String)}
+	 * 
+	 * @param version layout version the key was written with
+	 * @param key     key below the folder of the storage provider
+	 * @return record path
+	 */
+	public static String getPath(String version, String key) {
+		if (!VERSION_HASHED.equals(version) || key.length() <= PREFIX_LENGTH + 1 || key.charAt(PREFIX_LENGTH) != '/')
+			return key;
+		return key.substring(PREFIX_LENGTH + 1);
+	}
+
+	/**
+	 * Layout version to record in a pointer entry, null for the sequential
+	 * layout so the pointers stay as they were written before
+	 * 
+	 * @return String
+	 */
+	public static String toAttribute(String version) {
+		return VERSION_SEQUENTIAL.equals(version) ? null : version;
+	}
+
+	private static String hash(String path) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(path.getBytes(StandardCharsets.UTF_8));
+			char[] hex = new char[PREFIX_LENGTH];
+			for (int i = 0; i < PREFIX_LENGTH / 2; i++) {
+				hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+				hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+			}
+			return new String(hex);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
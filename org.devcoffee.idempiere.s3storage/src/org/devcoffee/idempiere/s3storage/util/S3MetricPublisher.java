@@ -0,0 +1,68 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import software.amazon.awssdk.core.metrics.CoreMetric;
+import software.amazon.awssdk.http.HttpMetric;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricPublisher;
+
+/**
+ * Publisher of the SDK metrics of a client into {@link S3Metrics}: duration,
+ * outcome and retries of each call, and the time each attempt waited for a
+ * pooled connection.
+ */
+public class S3MetricPublisher implements MetricPublisher {
+
+	private final int AD_StorageProvider_ID;
+
+	public S3MetricPublisher(int AD_StorageProvider_ID) {
+		this.AD_StorageProvider_ID = AD_StorageProvider_ID;
+	}
+
+	@Override
+	public void publish(MetricCollection metrics) {
+		String operation = first(metrics.metricValues(CoreMetric.OPERATION_NAME));
+		Boolean successful = first(metrics.metricValues(CoreMetric.API_CALL_SUCCESSFUL));
+		Integer retries = first(metrics.metricValues(CoreMetric.RETRY_COUNT));
+		Duration duration = first(metrics.metricValues(CoreMetric.API_CALL_DURATION));
+		List<Duration> acquires = new ArrayList<>();
+		collect(metrics, acquires);
+		S3Metrics.recordSdkCall(AD_StorageProvider_ID, operation != null ? operation : metrics.name(),
+				Boolean.TRUE.equals(successful), retries != null ? retries : 0, duration, acquires);
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Collect the connection acquire durations of the attempts, reported by the
+	 * HTTP client below the attempt
+	 */
+	private static void collect(MetricCollection metrics, List<Duration> acquires) {
+		acquires.addAll(metrics.metricValues(HttpMetric.CONCURRENCY_ACQUIRE_DURATION));
+		for (MetricCollection child : metrics.children())
+			collect(child, acquires);
+	}
+
+	private static <T> T first(List<T> values) {
+		return values.isEmpty() ? null : values.get(0);
+	}
+}
@@ -0,0 +1,583 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.compiere.model.MStorageProvider;
+import org.compiere.util.CLogger;
+
+/**
+ * Counters, transferred bytes and latency histograms of the S3 operations, by
+ * storage provider, operation and outcome.
+ * <p>
+ * Operations are recorded by {@link S3Util} and {@link S3AsyncUtil}; the
+ * latency of an operation covers the whole transfer, except for streams where
+ * it is the time to open the stream and no bytes are counted. The SDK calls
+ * behind them (e.g. the UploadPart calls of a multipart upload), with their
+ * retries and the time spent waiting for a pooled connection, are recorded by
+ * {@link S3MetricPublisher}.
+ * <p>
+ * The metrics are read with {@link #getOperations()} and
+ * {@link #getSdkCalls()}, or through JMX as
+ * {@value #OBJECT_NAME}.
+ */
+public class S3Metrics {
+
+	private static final CLogger log = CLogger.getCLogger(S3Metrics.class);
+
+	public static final String OBJECT_NAME = "org.devcoffee.idempiere.s3storage:type=S3Metrics";
+
+	public static final String OPERATION_HEAD = "Head";
+	public static final String OPERATION_GET = "Get";
+	public static final String OPERATION_PUT = "Put";
+	public static final String OPERATION_DELETE = "Delete";
+	public static final String OPERATION_LIST = "List";
+	public static final String OPERATION_MULTIPART = "Multipart";
+
+	public static final String OUTCOME_SUCCESS = "Success";
+	public static final String OUTCOME_NOT_FOUND = "NotFound";
+	public static final String OUTCOME_NOT_MODIFIED = "NotModified";
+	public static final String OUTCOME_ERROR = "Error";
+
+	/** Upper bounds of the histogram buckets, in microseconds */
+	private static final long[] BUCKETS = { 100, 200, 500, 1_000, 2_000, 5_000, 10_000, 20_000, 50_000, 100_000,
+			200_000, 500_000, 1_000_000, 2_000_000, 5_000_000, 10_000_000, 30_000_000, 60_000_000, Long.MAX_VALUE };
+
+	/** Operation metrics by provider/operation/outcome */
+	private static final Map<String, OperationStats> operations = new ConcurrentHashMap<>();
+	/** SDK call metrics by provider/SDK operation */
+	private static final Map<String, SdkCallStats> sdkCalls = new ConcurrentHashMap<>();
+	/** Provider names by AD_StorageProvider_ID */
+	private static final Map<Integer, String> providerNames = new ConcurrentHashMap<>();
+	/** AD_StorageProvider_ID of the clients */
+	private static final Map<Object, Integer> clientProviders = Collections.synchronizedMap(new WeakHashMap<>());
+
+	private static ObjectName registeredName;
+
+	private S3Metrics() {
+	}
+
+	/**
+	 * Tag the operations of a client with its storage provider, called when
+	 * the client is created
+	 */
+	public static void bind(Object client, MStorageProvider prov) {
+		clientProviders.put(client, prov.getAD_StorageProvider_ID());
+		if (prov.getName() != null)
+			providerNames.put(prov.getAD_StorageProvider_ID(), prov.getName());
+	}
+
+	/**
+	 * Record an operation of a client
+	 *
+	 * @param operation  e.g. {@link #OPERATION_GET}
+	 * @param outcome    e.g. {@link #OUTCOME_SUCCESS}
+	 * @param bytes      bytes transferred, 0 when unknown
+	 * @param startNanos {@link System#nanoTime()} at the start of the operation
+	 */
+	public static void record(Object client, String operation, String outcome, long bytes, long startNanos) {
+		Integer AD_StorageProvider_ID = clientProviders.get(client);
+		record(AD_StorageProvider_ID != null ? AD_StorageProvider_ID : -1, operation, outcome, bytes,
+				System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Record an operation
+	 *
+	 * @param AD_StorageProvider_ID provider, -1 when unknown
+	 * @param nanos                 duration of the operation
+	 */
+	public static void record(int AD_StorageProvider_ID, String operation, String outcome, long bytes, long nanos) {
+		String key = AD_StorageProvider_ID + "/" + operation + "/" + outcome;
+		OperationStats stats = operations.get(key);
+		if (stats == null)
+			stats = operations.computeIfAbsent(key, k -> new OperationStats(AD_StorageProvider_ID, operation, outcome));
+		stats.count.increment();
+		if (bytes > 0)
+			stats.bytes.add(bytes);
+		stats.latency.record(nanos);
+	}
+
+	/**
+	 * Record an SDK call, see {@link S3MetricPublisher}
+	 *
+	 * @param operation SDK operation name, e.g. GetObject
+	 * @param duration  duration of the call, null when unknown
+	 * @param acquires  time waited for a connection by each attempt
+	 */
+	static void recordSdkCall(int AD_StorageProvider_ID, String operation, boolean successful, int retries,
+			Duration duration, List<Duration> acquires) {
+		String key = AD_StorageProvider_ID + "/" + operation;
+		SdkCallStats stats = sdkCalls.get(key);
+		if (stats == null)
+			stats = sdkCalls.computeIfAbsent(key, k -> new SdkCallStats(AD_StorageProvider_ID, operation));
+		stats.calls.increment();
+		if (!successful)
+			stats.failures.increment();
+		if (retries > 0)
+			stats.retries.add(retries);
+		if (duration != null)
+			stats.latency.record(duration.toNanos());
+		for (Duration acquire : acquires)
+			stats.acquire.record(acquire.toNanos());
+	}
+
+	/**
+	 * @return snapshot of the operation metrics
+	 */
+	public static List<OperationMetrics> getOperations() {
+		List<OperationMetrics> list = new ArrayList<>(operations.size());
+		for (OperationStats stats : operations.values())
+			list.add(new OperationMetrics(stats));
+		list.sort(Comparator.comparing(OperationMetrics::getStorageProviderId)
+				.thenComparing(OperationMetrics::getOperation).thenComparing(OperationMetrics::getOutcome));
+		return list;
+	}
+
+	/**
+	 * @return snapshot of the SDK call metrics
+	 */
+	public static List<SdkCallMetrics> getSdkCalls() {
+		List<SdkCallMetrics> list = new ArrayList<>(sdkCalls.size());
+		for (SdkCallStats stats : sdkCalls.values())
+			list.add(new SdkCallMetrics(stats));
+		list.sort(Comparator.comparing(SdkCallMetrics::getStorageProviderId).thenComparing(SdkCallMetrics::getOperation));
+		return list;
+	}
+
+	/**
+	 * @return snapshot of the disk cache counters, by cache directory
+	 */
+	public static List<DiskCacheMetrics> getDiskCaches() {
+		List<DiskCacheMetrics> list = new ArrayList<>();
+		for (S3DiskCache cache : S3DiskCache.getCaches())
+			list.add(new DiskCacheMetrics(cache));
+		list.sort(Comparator.comparing(DiskCacheMetrics::getDirectory));
+		return list;
+	}
+
+	/**
+	 * Clear all metrics
+	 */
+	public static void reset() {
+		operations.clear();
+		sdkCalls.clear();
+		for (S3DiskCache cache : S3DiskCache.getCaches())
+			cache.resetCounters();
+	}
+
+	/**
+	 * Register the JMX bean, called when the first store component is activated
+	 */
+	static synchronized void registerMBean() {
+		if (registeredName != null)
+			return;
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(name))
+				server.registerMBean(new MetricsBean(), name);
+			registeredName = name;
+		} catch (JMException e) {
+			log.log(Level.WARNING, "Cannot register " + OBJECT_NAME, e);
+		}
+	}
+
+	/**
+	 * Unregister the JMX bean, called when the last store component is
+	 * deactivated
+	 */
+	static synchronized void unregisterMBean() {
+		if (registeredName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+		} catch (JMException e) {
+			log.log(Level.WARNING, "Cannot unregister " + OBJECT_NAME, e);
+		}
+		registeredName = null;
+	}
+
+	private static String getProviderName(int AD_StorageProvider_ID) {
+		String name = providerNames.get(AD_StorageProvider_ID);
+		return name != null ? name : String.valueOf(AD_StorageProvider_ID);
+	}
+
+	private static double toMillis(long micros) {
+		return micros / 1000d;
+	}
+
+	/**
+	 * Latency histogram with fixed buckets, cheap to update from many threads
+	 */
+	private static class Histogram {
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalMicros = new LongAdder();
+		private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+		private void record(long nanos) {
+			long micros = Math.max(0, nanos / 1000);
+			int bucket = 0;
+			while (micros > BUCKETS[bucket])
+				bucket++;
+			buckets.incrementAndGet(bucket);
+			count.increment();
+			totalMicros.add(micros);
+			maxMicros.accumulate(micros);
+		}
+
+		/**
+		 * @return upper bound of the bucket holding the quantile, in
+		 *         microseconds, at most the maximum
+		 */
+		private long getQuantile(double quantile) {
+			long[] counts = new long[BUCKETS.length];
+			long total = 0;
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = buckets.get(i);
+				total += counts[i];
+			}
+			if (total == 0)
+				return 0;
+			long rank = (long) Math.ceil(quantile * total);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(BUCKETS[i], maxMicros.get());
+			}
+			return maxMicros.get();
+		}
+
+		private double getMeanMillis() {
+			long n = count.sum();
+			return n > 0 ? Math.round((double) totalMicros.sum() / n) / 1000d : 0;
+		}
+	}
+
+	private static class OperationStats {
+		private final int AD_StorageProvider_ID;
+		private final String operation;
+		private final String outcome;
+		private final LongAdder count = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final Histogram latency = new Histogram();
+
+		private OperationStats(int AD_StorageProvider_ID, String operation, String outcome) {
+			this.AD_StorageProvider_ID = AD_StorageProvider_ID;
+			this.operation = operation;
+			this.outcome = outcome;
+		}
+	}
+
+	private static class SdkCallStats {
+		private final int AD_StorageProvider_ID;
+		private final String operation;
+		private final LongAdder calls = new LongAdder();
+		private final LongAdder failures = new LongAdder();
+		private final LongAdder retries = new LongAdder();
+		private final Histogram latency = new Histogram();
+		private final Histogram acquire = new Histogram();
+
+		private SdkCallStats(int AD_StorageProvider_ID, String operation) {
+			this.AD_StorageProvider_ID = AD_StorageProvider_ID;
+			this.operation = operation;
+		}
+	}
+
+	/**
+	 * Metrics of an operation of a storage provider with an outcome
+	 */
+	public static class OperationMetrics {
+		private final int storageProviderId;
+		private final String storageProvider;
+		private final String operation;
+		private final String outcome;
+		private final long count;
+		private final long bytes;
+		private final double meanMillis;
+		private final double p50Millis;
+		private final double p95Millis;
+		private final double p99Millis;
+		private final double maxMillis;
+
+		private OperationMetrics(OperationStats stats) {
+			storageProviderId = stats.AD_StorageProvider_ID;
+			storageProvider = getProviderName(stats.AD_StorageProvider_ID);
+			operation = stats.operation;
+			outcome = stats.outcome;
+			count = stats.count.sum();
+			bytes = stats.bytes.sum();
+			meanMillis = stats.latency.getMeanMillis();
+			p50Millis = toMillis(stats.latency.getQuantile(0.5));
+			p95Millis = toMillis(stats.latency.getQuantile(0.95));
+			p99Millis = toMillis(stats.latency.getQuantile(0.99));
+			maxMillis = toMillis(stats.latency.maxMicros.get());
+		}
+
+		public int getStorageProviderId() {
+			return storageProviderId;
+		}
+
+		public String getStorageProvider() {
+			return storageProvider;
+		}
+
+		public String getOperation() {
+			return operation;
+		}
+
+		public String getOutcome() {
+			return outcome;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return bytes read or written
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		public double getMeanMillis() {
+			return meanMillis;
+		}
+
+		/**
+		 * @return median latency, upper bound of its histogram bucket
+		 */
+		public double getP50Millis() {
+			return p50Millis;
+		}
+
+		public double getP95Millis() {
+			return p95Millis;
+		}
+
+		public double getP99Millis() {
+			return p99Millis;
+		}
+
+		public double getMaxMillis() {
+			return maxMillis;
+		}
+
+		@Override
+		public String toString() {
+			return storageProvider + "/" + operation + "/" + outcome + ": count=" + count + ", bytes=" + bytes
+					+ ", mean=" + meanMillis + "ms, p50=" + p50Millis + "ms, p99=" + p99Millis + "ms, max=" + maxMillis + "ms";
+		}
+	}
+
+	/**
+	 * Metrics of an SDK operation of a storage provider, e.g. UploadPart
+	 */
+	public static class SdkCallMetrics {
+		private final int storageProviderId;
+		private final String storageProvider;
+		private final String operation;
+		private final long calls;
+		private final long failures;
+		private final long retries;
+		private final double meanMillis;
+		private final double p99Millis;
+		private final double acquireMeanMillis;
+		private final double acquireP99Millis;
+		private final double acquireMaxMillis;
+
+		private SdkCallMetrics(SdkCallStats stats) {
+			storageProviderId = stats.AD_StorageProvider_ID;
+			storageProvider = getProviderName(stats.AD_StorageProvider_ID);
+			operation = stats.operation;
+			calls = stats.calls.sum();
+			failures = stats.failures.sum();
+			retries = stats.retries.sum();
+			meanMillis = stats.latency.getMeanMillis();
+			p99Millis = toMillis(stats.latency.getQuantile(0.99));
+			acquireMeanMillis = stats.acquire.getMeanMillis();
+			acquireP99Millis = toMillis(stats.acquire.getQuantile(0.99));
+			acquireMaxMillis = toMillis(stats.acquire.maxMicros.get());
+		}
+
+		public int getStorageProviderId() {
+			return storageProviderId;
+		}
+
+		public String getStorageProvider() {
+			return storageProvider;
+		}
+
+		public String getOperation() {
+			return operation;
+		}
+
+		public long getCalls() {
+			return calls;
+		}
+
+		/**
+		 * @return calls that failed after their retries
+		 */
+		public long getFailures() {
+			return failures;
+		}
+
+		/**
+		 * @return attempts beyond the first one of each call
+		 */
+		public long getRetries() {
+			return retries;
+		}
+
+		public double getMeanMillis() {
+			return meanMillis;
+		}
+
+		public double getP99Millis() {
+			return p99Millis;
+		}
+
+		/**
+		 * @return mean time waited for a pooled connection
+		 */
+		public double getAcquireMeanMillis() {
+			return acquireMeanMillis;
+		}
+
+		public double getAcquireP99Millis() {
+			return acquireP99Millis;
+		}
+
+		public double getAcquireMaxMillis() {
+			return acquireMaxMillis;
+		}
+
+		@Override
+		public String toString() {
+			return storageProvider + "/" + operation + ": calls=" + calls + ", failures=" + failures + ", retries="
+					+ retries + ", mean=" + meanMillis + "ms, p99=" + p99Millis + "ms, acquireP99=" + acquireP99Millis + "ms";
+		}
+	}
+
+	/**
+	 * Counters of a disk cache directory
+	 */
+	public static class DiskCacheMetrics {
+		private final String directory;
+		private final long hits;
+		private final long misses;
+		private final long revalidations;
+		private final long evictions;
+		private final long bytes;
+		private final long maxBytes;
+
+		private DiskCacheMetrics(S3DiskCache cache) {
+			directory = cache.getDirectory().toString();
+			hits = cache.getHits();
+			misses = cache.getMisses();
+			revalidations = cache.getRevalidations();
+			evictions = cache.getEvictions();
+			bytes = cache.getCurrentBytes();
+			maxBytes = cache.getMaxBytes();
+		}
+
+		public String getDirectory() {
+			return directory;
+		}
+
+		public long getHits() {
+			return hits;
+		}
+
+		public long getMisses() {
+			return misses;
+		}
+
+		/**
+		 * @return hits confirmed by a conditional GET
+		 */
+		public long getRevalidations() {
+			return revalidations;
+		}
+
+		public long getEvictions() {
+			return evictions;
+		}
+
+		/**
+		 * @return estimated bytes used by the cache directory
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		public long getMaxBytes() {
+			return maxBytes;
+		}
+
+		@Override
+		public String toString() {
+			return directory + ": hits=" + hits + ", misses=" + misses + ", revalidations=" + revalidations
+					+ ", evictions=" + evictions + ", bytes=" + bytes + "/" + maxBytes;
+		}
+	}
+
+	/**
+	 * JMX view of the metrics
+	 */
+	private static class MetricsBean implements S3MetricsMXBean {
+
+		@Override
+		public List<OperationMetrics> getOperations() {
+			return S3Metrics.getOperations();
+		}
+
+		@Override
+		public List<SdkCallMetrics> getSdkCalls() {
+			return S3Metrics.getSdkCalls();
+		}
+
+		@Override
+		public List<DiskCacheMetrics> getDiskCaches() {
+			return S3Metrics.getDiskCaches();
+		}
+
+		@Override
+		public void reset() {
+			S3Metrics.reset();
+		}
+	}
+}
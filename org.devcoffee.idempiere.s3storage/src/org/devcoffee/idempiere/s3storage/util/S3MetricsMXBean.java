@@ -0,0 +1,43 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.util.List;
+
+/**
+ * JMX interface of {@link S3Metrics}
+ */
+public interface S3MetricsMXBean {
+
+	/**
+	 * @return metrics by storage provider, operation and outcome
+	 */
+	List<S3Metrics.OperationMetrics> getOperations();
+
+	/**
+	 * @return metrics of the SDK calls, with retries and connection waits
+	 */
+	List<S3Metrics.SdkCallMetrics> getSdkCalls();
+
+	/**
+	 * @return hits, misses and evictions of the disk caches
+	 */
+	List<S3Metrics.DiskCacheMetrics> getDiskCaches();
+
+	/**
+	 * Clear all metrics
+	 */
+	void reset();
+}
@@ -0,0 +1,199 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+
+import org.compiere.util.CLogger;
+
+/**
+ * Content of new records waiting to be written once the record has an ID.
+ * <p>
+ * The stores are singletons shared by every session, while iDempiere asks
+ * them {@link org.compiere.model.IArchiveStore#isPendingFlush()} without
+ * telling which record is being saved. The content is therefore kept per
+ * thread, since a record is given its content and saved on the same thread,
+ * and per record instance, compared by identity. Records are weakly
+ * referenced, so the content of a record that is never saved is dropped with
+ * the record. Content given as a stream is kept in a temporary file instead
+ * of memory.
+ *
+ * @param <T> record type
+ */
+public class S3PendingFlush<T> {
+
+	private static final CLogger log = CLogger.getCLogger(S3PendingFlush.class);
+
+	private final ThreadLocal<List<Pending<T>>> pending = ThreadLocal.withInitial(ArrayList::new);
+
+	/**
+	 * Keep the content of a record, replacing the one kept before
+	 */
+	public void put(T record, byte[] data) {
+		put(record, new Content(data, null));
+	}
+
+	/**
+	 * Keep the content of a record in a temporary file, replacing the one kept
+	 * before. The file is deleted once the content is written, replaced or
+	 * dropped with the record.
+	 */
+	public void put(T record, Path file) {
+		put(record, new Content(null, file));
+	}
+
+	private void put(T record, Content content) {
+		List<Pending<T>> list = pending.get();
+		Content previous = remove(list, record);
+		if (previous != null)
+			previous.discard();
+		list.add(new Pending<>(record, content));
+	}
+
+	/**
+	 * @return content kept for the record, read from its file when kept in one,
+	 *         null when none
+	 */
+	public byte[] get(T record) {
+		for (Pending<T> entry : purge()) {
+			if (entry.record.get() == record)
+				return entry.content.read();
+		}
+		return null;
+	}
+
+	/**
+	 * Remove the content of a record, to be discarded by the caller once
+	 * written
+	 *
+	 * @return content kept for the record, null when none
+	 */
+	public Content remove(T record) {
+		return remove(pending.get(), record);
+	}
+
+	/**
+	 * Remove and discard the content of a record
+	 */
+	public void discard(T record) {
+		Content content = remove(record);
+		if (content != null)
+			content.discard();
+	}
+
+	/**
+	 * @return true when the current thread has content waiting to be written
+	 */
+	public boolean isPending() {
+		return !purge().isEmpty();
+	}
+
+	private Content remove(List<Pending<T>> list, T record) {
+		for (Iterator<Pending<T>> it = list.iterator(); it.hasNext();) {
+			Pending<T> entry = it.next();
+			T current = entry.record.get();
+			if (current == null) {
+				it.remove();
+				entry.content.discard();
+			} else if (current == record) {
+				it.remove();
+				return entry.content;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Drop the content of the records no longer referenced
+	 *
+	 * @return content kept by the current thread
+	 */
+	private List<Pending<T>> purge() {
+		List<Pending<T>> list = pending.get();
+		list.removeIf(entry -> {
+			if (entry.record.get() != null)
+				return false;
+			entry.content.discard();
+			return true;
+		});
+		return list;
+	}
+
+	/**
+	 * Content of a record, in memory or in a temporary file
+	 */
+	public static class Content {
+		private final byte[] data;
+		private final Path file;
+
+		private Content(byte[] data, Path file) {
+			this.data = data;
+			this.file = file;
+		}
+
+		/**
+		 * @return content in memory, null when kept in a file
+		 */
+		public byte[] getData() {
+			return data;
+		}
+
+		/**
+		 * @return temporary file of the content, null when kept in memory
+		 */
+		public Path getFile() {
+			return file;
+		}
+
+		/**
+		 * @return content, read from the file when kept in one, null when it
+		 *         cannot be read
+		 */
+		public byte[] read() {
+			if (file == null)
+				return data;
+			try {
+				return Files.readAllBytes(file);
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Cannot read " + file, e);
+				return null;
+			}
+		}
+
+		/**
+		 * Delete the temporary file of the content
+		 */
+		public void discard() {
+			S3Util.deleteTempFile(file);
+		}
+	}
+
+	private static class Pending<T> {
+		private final WeakReference<T> record;
+		private final Content content;
+
+		private Pending(T record, Content content) {
+			this.record = new WeakReference<>(record);
+			this.content = content;
+		}
+	}
+}
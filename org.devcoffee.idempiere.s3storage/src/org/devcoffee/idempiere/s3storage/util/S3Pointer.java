@@ -0,0 +1,347 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.compiere.util.CLogger;
+
+/**
+ * XML pointer stored in the database in place of the content, e.g.
+ * <pre>
+ * &lt;attachments&gt;&lt;entry file="%ATTACHMENT_FOLDER%1000000/Invoice.pdf" name="Invoice.pdf" size="52310"/&gt;&lt;/attachments&gt;
+ * </pre>
+ * The root element is attachments, image or archive, with one entry element
+ * per object. Besides the file and name attributes an entry may carry the
+ * object size, ETag, content type, the codec the object is compressed
+ * with, the layout version of its key ({@link S3KeyLayout}) and the SHA-256
+ * of the content.
+ * <p>
+ * Pointers are read with a streaming parser and written directly, instead of
+ * building a DOM and serializing it with a Transformer. Attributes are written
+ * in name order and unknown attributes are kept, so the documents match the
+ * ones written before.
+ */
+public class S3Pointer {
+
+	private static final CLogger log = CLogger.getCLogger(S3Pointer.class);
+
+	public static final String ROOT_ATTACHMENTS = "attachments";
+	public static final String ROOT_IMAGE = "image";
+	public static final String ROOT_ARCHIVE = "archive";
+
+	private static final String ENTRY = "entry";
+
+	public static final String ATTRIBUTE_FILE = "file";
+	public static final String ATTRIBUTE_NAME = "name";
+	public static final String ATTRIBUTE_SIZE = "size";
+	public static final String ATTRIBUTE_ETAG = "etag";
+	public static final String ATTRIBUTE_CONTENT_TYPE = "contentType";
+	public static final String ATTRIBUTE_CODEC = "codec";
+	public static final String ATTRIBUTE_LAYOUT = "layout";
+	public static final String ATTRIBUTE_SHA256 = "sha256";
+
+	private static final XMLInputFactory inputFactory;
+
+	static {
+		inputFactory = XMLInputFactory.newInstance();
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+	}
+
+	private final String root;
+	private final List<Entry> entries = new ArrayList<>();
+
+	/**
+	 * @param root root element name, e.g. {@link #ROOT_ATTACHMENTS}
+	 */
+	public S3Pointer(String root) {
+		this.root = root;
+	}
+
+	/**
+	 * Read a pointer document
+	 *
+	 * @param data XML
+	 * @return pointer, null when the document cannot be read
+	 */
+	public static S3Pointer parse(byte[] data) {
+		XMLStreamReader reader = null;
+		try {
+			reader = inputFactory.createXMLStreamReader(new ByteArrayInputStream(data));
+			S3Pointer pointer = null;
+			while (reader.hasNext()) {
+				if (reader.next() != XMLStreamConstants.START_ELEMENT)
+					continue;
+				if (pointer == null) {
+					pointer = new S3Pointer(reader.getLocalName());
+					if (!ENTRY.equals(reader.getLocalName()))
+						continue;
+				}
+				if (ENTRY.equals(reader.getLocalName())) {
+					Entry entry = pointer.addEntry();
+					for (int i = 0; i < reader.getAttributeCount(); i++)
+						entry.set(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+				}
+			}
+			return pointer;
+		} catch (XMLStreamException e) {
+			log.log(Level.SEVERE, e.getMessage());
+			return null;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the pointer document
+	 *
+	 * @return XML
+	 */
+	public byte[] toXML() {
+		StringBuilder xml = new StringBuilder(64 + entries.size() * 128);
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><").append(root).append('>');
+		for (Entry entry : entries) {
+			xml.append('<').append(ENTRY);
+			for (Map.Entry<String, String> attribute : entry.attributes.entrySet()) {
+				xml.append(' ').append(attribute.getKey()).append("=\"");
+				escape(xml, attribute.getValue());
+				xml.append('"');
+			}
+			xml.append("/>");
+		}
+		xml.append("</").append(root).append('>');
+		return xml.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return root element name
+	 */
+	public String getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return entries, in document order
+	 */
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * @return first entry, null when there is none
+	 */
+	public Entry getEntry() {
+		return entries.isEmpty() ? null : entries.get(0);
+	}
+
+	/**
+	 * Add an entry at the end of the document
+	 *
+	 * @return the new entry
+	 */
+	public Entry addEntry() {
+		Entry entry = new Entry();
+		entries.add(entry);
+		return entry;
+	}
+
+	@Override
+	public String toString() {
+		return new String(toXML(), StandardCharsets.UTF_8);
+	}
+
+	private static void escape(StringBuilder xml, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&':
+				xml.append("&amp;");
+				break;
+			case '<':
+				xml.append("&lt;");
+				break;
+			case '>':
+				xml.append("&gt;");
+				break;
+			case '"':
+				xml.append("&quot;");
+				break;
+			case '\n':
+				xml.append("&#10;");
+				break;
+			case '\r':
+				xml.append("&#13;");
+				break;
+			case '\t':
+				xml.append("&#9;");
+				break;
+			default:
+				xml.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Entry of a pointer, one object
+	 */
+	public static class Entry {
+
+		/** Attributes in name order */
+		private final Map<String, String> attributes = new TreeMap<>();
+
+		private Entry() {
+		}
+
+		/**
+		 * @return attribute value, null when not set
+		 */
+		public String get(String attribute) {
+			return attributes.get(attribute);
+		}
+
+		/**
+		 * Set an attribute, removed when the value is null
+		 *
+		 * @return this entry
+		 */
+		public Entry set(String attribute, String value) {
+			if (value == null)
+				attributes.remove(attribute);
+			else
+				attributes.put(attribute, value);
+			return this;
+		}
+
+		/**
+		 * @return object key with the folder placeholder, null when not set
+		 */
+		public String getFile() {
+			return get(ATTRIBUTE_FILE);
+		}
+
+		public Entry setFile(String file) {
+			return set(ATTRIBUTE_FILE, file);
+		}
+
+		/**
+		 * @return entry name, null when not set
+		 */
+		public String getName() {
+			return get(ATTRIBUTE_NAME);
+		}
+
+		public Entry setName(String name) {
+			return set(ATTRIBUTE_NAME, name);
+		}
+
+		/**
+		 * @return object size, -1 when unknown
+		 */
+		public long getSize() {
+			String size = get(ATTRIBUTE_SIZE);
+			if (size == null)
+				return -1;
+			try {
+				return Long.parseLong(size);
+			} catch (NumberFormatException e) {
+				log.warning("Invalid size: " + size);
+				return -1;
+			}
+		}
+
+		/**
+		 * @param size object size, -1 when unknown
+		 */
+		public Entry setSize(long size) {
+			return set(ATTRIBUTE_SIZE, size >= 0 ? String.valueOf(size) : null);
+		}
+
+		/**
+		 * @return object ETag, null when unknown
+		 */
+		public String getETag() {
+			return get(ATTRIBUTE_ETAG);
+		}
+
+		public Entry setETag(String eTag) {
+			return set(ATTRIBUTE_ETAG, eTag);
+		}
+
+		/**
+		 * @return content type, null when unknown
+		 */
+		public String getContentType() {
+			return get(ATTRIBUTE_CONTENT_TYPE);
+		}
+
+		public Entry setContentType(String contentType) {
+			return set(ATTRIBUTE_CONTENT_TYPE, contentType);
+		}
+
+		/**
+		 * @return codec the object is compressed with, null when stored as it is
+		 */
+		public String getCodec() {
+			return get(ATTRIBUTE_CODEC);
+		}
+
+		public Entry setCodec(String codec) {
+			return set(ATTRIBUTE_CODEC, codec);
+		}
+
+		/**
+		 * @return layout version of the object key, null for the sequential
+		 *         layout of the pointers written before layouts existed
+		 */
+		public String getLayout() {
+			return get(ATTRIBUTE_LAYOUT);
+		}
+
+		public Entry setLayout(String layout) {
+			return set(ATTRIBUTE_LAYOUT, layout);
+		}
+
+		/**
+		 * @return lower case hex SHA-256 of the content before compression,
+		 *         null when unknown
+		 */
+		public String getSha256() {
+			return get(ATTRIBUTE_SHA256);
+		}
+
+		public Entry setSha256(String sha256) {
+			return set(ATTRIBUTE_SHA256, sha256);
+		}
+	}
+}
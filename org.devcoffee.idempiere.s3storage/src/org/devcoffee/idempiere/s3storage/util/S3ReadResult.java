@@ -0,0 +1,126 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Outcome of {@link S3Util#readObject(software.amazon.awssdk.services.s3.S3Client, String, String, String)},
+ * telling a missing object apart from a failed request
+ */
+public class S3ReadResult {
+
+	public enum Status {
+		/** Object read, the content is available */
+		FOUND,
+		/** No object with that key */
+		NOT_FOUND,
+		/** The object still has the ETag given, the content was not transferred */
+		NOT_MODIFIED,
+		/** The request failed */
+		ERROR
+	}
+
+	private static final S3ReadResult NOT_FOUND = new S3ReadResult(Status.NOT_FOUND, null, null, null);
+	private static final S3ReadResult ERROR = new S3ReadResult(Status.ERROR, null, null, null);
+
+	private final Status status;
+	private final byte[] data;
+	private final String eTag;
+	private final Map<String, String> metadata;
+	private final S3StorageException error;
+
+	private S3ReadResult(Status status, byte[] data, String eTag, Map<String, String> metadata) {
+		this(status, data, eTag, metadata, null);
+	}
+
+	private S3ReadResult(Status status, byte[] data, String eTag, Map<String, String> metadata, S3StorageException error) {
+		this.status = status;
+		this.error = error;
+		this.data = data;
+		this.eTag = eTag;
+		this.metadata = metadata != null ? metadata : Collections.emptyMap();
+	}
+
+	public static S3ReadResult found(byte[] data, String eTag, Map<String, String> metadata) {
+		return new S3ReadResult(Status.FOUND, data, eTag, metadata);
+	}
+
+	public static S3ReadResult notModified(String eTag) {
+		return new S3ReadResult(Status.NOT_MODIFIED, null, eTag, null);
+	}
+
+	public static S3ReadResult notFound() {
+		return NOT_FOUND;
+	}
+
+	public static S3ReadResult error() {
+		return ERROR;
+	}
+
+	/**
+	 * @param error failure of the request, telling if it may succeed later
+	 */
+	public static S3ReadResult error(S3StorageException error) {
+		return new S3ReadResult(Status.ERROR, null, null, null, error);
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return true when the content was read
+	 */
+	public boolean isFound() {
+		return status == Status.FOUND;
+	}
+
+	/**
+	 * @return content, null unless found
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return object ETag, when found or not modified
+	 */
+	public String getETag() {
+		return eTag;
+	}
+
+	/**
+	 * @return failure of the request when it failed, null when unknown
+	 */
+	public S3StorageException getError() {
+		return error;
+	}
+
+	/**
+	 * @return true when the request failed and may succeed later
+	 */
+	public boolean isTransientError() {
+		return error != null && error.isTransient();
+	}
+
+	/**
+	 * @return user metadata of the object, empty unless found
+	 */
+	public Map<String, String> getMetadata() {
+		return metadata;
+	}
+}
@@ -0,0 +1,710 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.compiere.model.MStorageProvider;
+import org.compiere.util.CLogger;
+import org.compiere.util.Env;
+import org.compiere.util.Trx;
+import org.compiere.util.TrxEventListener;
+
+import software.amazon.awssdk.services.s3.S3Client;
+
+/**
+ * Durable local spool of objects waiting to be uploaded (write-behind).
+ * <p>
+ * An object is written to the spool directory and uploaded by a background
+ * thread, so the caller does not wait for S3. Each spooled object is a data
+ * file and a properties file naming the provider, bucket and key; the
+ * properties file is moved in place last, so only complete objects are
+ * uploaded. Failed uploads are retried with an increasing delay until they
+ * succeed. Objects left in the spool by a previous run are uploaded when the
+ * spool is first used.
+ * <p>
+ * An object spooled in a transaction is kept aside until the transaction
+ * commits and only then queued for the upload, so the object of a rolled back
+ * record is never uploaded. Until then it is only read by that transaction.
+ * <p>
+ * Until its upload completes a spooled object is served from the spool, so on
+ * a cluster the directory must be shared by all the servers. Writing,
+ * uploading and dropping an object hold a file lock in the directory besides
+ * the lock of this process, so the servers sharing it do not upload or drop
+ * the same object at the same time.
+ */
+public class S3Spool {
+
+	private static final CLogger log = CLogger.getCLogger(S3Spool.class);
+
+	private static final String DATA_SUFFIX = ".data";
+	private static final String INFO_SUFFIX = ".properties";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String METADATA_PREFIX = "Metadata.";
+	private static final String LOCK_PREFIX = ".lock-";
+	private static final String PENDING_SUFFIX = ".pending";
+
+	private static final long MIN_RETRY_DELAY = 5;
+	private static final long MAX_RETRY_DELAY = 300;
+	/** Age in milliseconds of the files of a transaction left by a crashed server */
+	private static final long STALE_PENDING = 24 * 3600 * 1000L;
+
+	/** Spools by directory */
+	private static final Map<Path, S3Spool> spools = new ConcurrentHashMap<>();
+
+	private static ScheduledExecutorService scheduler;
+
+	private final Path directory;
+	/** Providers of the spooled objects, by AD_StorageProvider_ID, the latest one read */
+	private final Map<Integer, MStorageProvider> providers = new ConcurrentHashMap<>();
+	/**
+	 * Locks of the spooled objects, held while writing, uploading or dropping.
+	 * Shared by the spools, so a spool opened again after a restart of the
+	 * components does not take the file lock its previous instance holds.
+	 */
+	private static final Object[] locks = new Object[64];
+
+	static {
+		for (int i = 0; i < locks.length; i++)
+			locks[i] = new Object();
+	}
+	/** Objects spooled by the open transactions, by transaction */
+	private final Map<String, TrxObjects> trxObjects = new ConcurrentHashMap<>();
+
+	private S3Spool(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+	}
+
+	/**
+	 * Get the spool of a storage provider
+	 *
+	 * @return spool, null when write-behind is disabled for the provider
+	 */
+	public static S3Spool get(MStorageProvider prov) {
+		if (!S3Config.isWriteBehind(prov))
+			return null;
+		return get(prov, getDirectory(prov));
+	}
+
+	/**
+	 * Get the spool holding the objects of a storage provider not uploaded yet.
+	 * A spool left when write-behind was disabled is still uploaded and read
+	 * until it is empty.
+	 *
+	 * @return spool, null when write-behind is disabled and no spool was left
+	 */
+	public static S3Spool getExisting(MStorageProvider prov) {
+		if (S3Config.isWriteBehind(prov))
+			return get(prov);
+		Path directory = getDirectory(prov);
+		if (!spools.containsKey(directory) && !Files.isDirectory(directory))
+			return null;
+		return get(prov, directory);
+	}
+
+	private static S3Spool get(MStorageProvider prov, Path directory) {
+		S3Spool spool = spools.computeIfAbsent(directory, dir -> {
+			try {
+				S3Spool created = new S3Spool(dir);
+				// the objects left are uploaded with the provider at hand
+				created.setProvider(prov);
+				created.recover();
+				return created;
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Cannot use spool directory " + dir, e);
+				return null;
+			}
+		});
+		if (spool != null)
+			spool.setProvider(prov);
+		return spool;
+	}
+
+	private static Path getDirectory(MStorageProvider prov) {
+		return Paths.get(S3Config.getWriteBehindDirectory(prov)).toAbsolutePath().normalize();
+	}
+
+	/**
+	 * @return all spools in use
+	 */
+	public static Collection<S3Spool> getSpools() {
+		return Collections.unmodifiableCollection(spools.values());
+	}
+
+	/**
+	 * Write an object to the spool and schedule its upload
+	 *
+	 * @return true when spooled, false when it could not be written
+	 */
+	public boolean spool(MStorageProvider prov, String bucket, String key, byte[] data) {
+		return spool(prov, bucket, key, data, null, null);
+	}
+
+	/**
+	 * Write an object with object metadata to the spool and schedule its upload
+	 * once the transaction commits
+	 *
+	 * @param metadata object metadata, null for none
+	 * @param trxName  transaction saving the record, null for none
+	 * @return true when spooled, false when it could not be written
+	 */
+	public boolean spool(MStorageProvider prov, String bucket, String key, byte[] data, Map<String, String> metadata,
+			String trxName) {
+		return spool(prov, bucket, key, new ByteArrayInputStream(data), metadata, trxName);
+	}
+
+	/**
+	 * Write an object with object metadata to the spool from a stream, without
+	 * holding it in memory, and schedule its upload once the transaction
+	 * commits. The stream is not closed.
+	 *
+	 * @param metadata object metadata, null for none
+	 * @param trxName  transaction saving the record, null for none
+	 * @return true when spooled, false when it could not be written
+	 */
+	public boolean spool(MStorageProvider prov, String bucket, String key, InputStream in, Map<String, String> metadata,
+			String trxName) {
+		String id = getId(prov, bucket, key);
+		Properties info = new Properties();
+		info.setProperty("AD_StorageProvider_ID", String.valueOf(prov.getAD_StorageProvider_ID()));
+		info.setProperty("Bucket", bucket);
+		info.setProperty("Key", key);
+		if (metadata != null) {
+			for (Map.Entry<String, String> entry : metadata.entrySet())
+				info.setProperty(METADATA_PREFIX + entry.getKey(), entry.getValue());
+		}
+		Trx trx = trxName != null ? Trx.get(trxName, false) : null;
+		// kept aside until the transaction commits
+		Path file = directory.resolve(id + "." + UUID.randomUUID() + (trx != null ? PENDING_SUFFIX : TEMP_SUFFIX));
+		try {
+			write(file, in);
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Cannot spool " + key, e);
+			deleteFile(file);
+			return false;
+		}
+		if (trx != null) {
+			TrxObjects objects = trxObjects.computeIfAbsent(trxName, name -> {
+				TrxObjects created = new TrxObjects(name);
+				trx.addTrxEventListener(created);
+				return created;
+			});
+			objects.put(id, file, info);
+			return true;
+		}
+		if (!publish(id, file, info))
+			return false;
+		schedule(id, 0, 0);
+		return true;
+	}
+
+	/**
+	 * Move a written object in place, so it is read and uploaded
+	 *
+	 * @param file data of the object, moved or deleted
+	 * @return true when spooled
+	 */
+	private boolean publish(String id, Path file, Properties info) {
+		synchronized (getLock(id)) {
+			FileChannel lock = null;
+			try {
+				lock = lockFile(id);
+				Files.deleteIfExists(directory.resolve(id + INFO_SUFFIX));
+				move(file, directory.resolve(id + DATA_SUFFIX));
+				Path temp = directory.resolve(id + "." + UUID.randomUUID() + TEMP_SUFFIX);
+				try (OutputStream out = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.SYNC)) {
+					info.store(out, null);
+				}
+				move(temp, directory.resolve(id + INFO_SUFFIX));
+				return true;
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Cannot spool " + info.getProperty("Key"), e);
+				deleteFile(file);
+				drop(id);
+				return false;
+			} finally {
+				unlock(lock);
+			}
+		}
+	}
+
+	private static void write(Path file, InputStream in) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+			in.transferTo(out);
+			out.flush();
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Read an object waiting in the spool
+	 *
+	 * @return content, null when the object is not in the spool
+	 */
+	public byte[] read(MStorageProvider prov, String bucket, String key) {
+		return read(prov, bucket, key, null);
+	}
+
+	/**
+	 * Read an object waiting in the spool, or spooled by the transaction
+	 *
+	 * @param trxName transaction reading the object, null for none
+	 * @return content, null when the object is not in the spool
+	 */
+	public byte[] read(MStorageProvider prov, String bucket, String key, String trxName) {
+		Path file = getFile(prov, bucket, key, trxName);
+		if (file == null)
+			return null;
+		try {
+			return Files.readAllBytes(file);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Cannot read spooled " + key, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Open a stream on an object waiting in the spool, or spooled by the
+	 * transaction, read from the spooled file
+	 *
+	 * @param trxName transaction reading the object, null for none
+	 * @return stream to be closed by the caller, null when the object is not
+	 *         in the spool
+	 */
+	public InputStream open(MStorageProvider prov, String bucket, String key, String trxName) {
+		Path file = getFile(prov, bucket, key, trxName);
+		if (file == null)
+			return null;
+		try {
+			// an object uploaded meanwhile is still read from the open file
+			return Files.newInputStream(file);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Cannot read spooled " + key, e);
+			return null;
+		}
+	}
+
+	/**
+	 * @param trxName transaction reading the object, null for none
+	 * @return true when the object waits in the spool or was spooled by the
+	 *         transaction
+	 */
+	public boolean contains(MStorageProvider prov, String bucket, String key, String trxName) {
+		return getFile(prov, bucket, key, trxName) != null;
+	}
+
+	/**
+	 * @return data file of a spooled object, null when not spooled
+	 */
+	private Path getFile(MStorageProvider prov, String bucket, String key, String trxName) {
+		// not locked, so reads do not wait for an upload; the files are only
+		// dropped once uploaded, then the object is read from the bucket
+		String id = getId(prov, bucket, key);
+		TrxObjects objects = trxName != null ? trxObjects.get(trxName) : null;
+		Path file = objects != null ? objects.get(id) : null;
+		if (file != null)
+			return file;
+		if (!Files.exists(directory.resolve(id + INFO_SUFFIX)))
+			return null;
+		return directory.resolve(id + DATA_SUFFIX);
+	}
+
+	/**
+	 * Drop an object from the spool, so it is not uploaded
+	 *
+	 * @return true when the object was in the spool
+	 */
+	public boolean remove(MStorageProvider prov, String bucket, String key) {
+		String id = getId(prov, bucket, key);
+		synchronized (getLock(id)) {
+			FileChannel lock = null;
+			try {
+				lock = lockFile(id);
+				return drop(id);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Cannot lock spool entry " + id, e);
+				return false;
+			} finally {
+				unlock(lock);
+			}
+		}
+	}
+
+	/**
+	 * @return number of objects waiting in the spool
+	 */
+	public int getPendingCount() {
+		int count = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + INFO_SUFFIX)) {
+			for (@SuppressWarnings("unused") Path file : stream)
+				count++;
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Cannot list spool directory " + directory, e);
+		}
+		return count;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Stop the background uploads, objects left in the spool are uploaded on
+	 * the next start
+	 */
+	public static synchronized void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		spools.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "S3Spool[" + directory + ", pending=" + getPendingCount() + "]";
+	}
+
+	/**
+	 * Upload a spooled object, rescheduled with a longer delay on failure
+	 */
+	private void upload(String id, int attempt) {
+		synchronized (getLock(id)) {
+			FileChannel lock = null;
+			try {
+				lock = lockFile(id);
+				if (!uploadEntry(id, attempt))
+					return;
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Cannot lock spool entry " + id, e);
+			} finally {
+				unlock(lock);
+			}
+		}
+		long delay = Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(attempt, 10));
+		schedule(id, attempt + 1, delay);
+	}
+
+	/**
+	 * Upload a spooled object, called holding its locks
+	 *
+	 * @return true when it has to be tried again
+	 */
+	private boolean uploadEntry(String id, int attempt) {
+		Path infoFile = directory.resolve(id + INFO_SUFFIX);
+		Properties info = new Properties();
+		try (InputStream in = Files.newInputStream(infoFile)) {
+			info.load(in);
+		} catch (NoSuchFileException e) {
+			// dropped or already uploaded
+			return false;
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Cannot read spool entry " + infoFile, e);
+			return false;
+		}
+		String key = info.getProperty("Key");
+		boolean uploaded = false;
+		try {
+			// a retry reads the provider again, it may have been corrected meanwhile
+			MStorageProvider prov = getProvider(Integer.parseInt(info.getProperty("AD_StorageProvider_ID")), attempt > 0);
+			S3Client s3Client = S3ClientRegistry.getClient(prov);
+			Map<String, String> metadata = new HashMap<>();
+			for (String name : info.stringPropertyNames()) {
+				if (name.startsWith(METADATA_PREFIX))
+					metadata.put(name.substring(METADATA_PREFIX.length()), info.getProperty(name));
+			}
+			uploaded = S3Util.putObject(s3Client, info.getProperty("Bucket"), key,
+					directory.resolve(id + DATA_SUFFIX).toFile(), metadata, prov);
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Cannot upload spooled " + key, e);
+		}
+		if (uploaded) {
+			drop(id);
+			if (log.isLoggable(Level.FINE)) log.fine("Uploaded spooled " + key);
+			return false;
+		}
+		log.warning("Upload of spooled " + key + " failed, attempt " + (attempt + 1));
+		return true;
+	}
+
+	/**
+	 * Schedule an upload, run on the shared S3 thread pool so spooled objects
+	 * are uploaded in parallel
+	 */
+	private void schedule(String id, int attempt, long delaySeconds) {
+		try {
+			getScheduler().schedule(() -> {
+				try {
+					S3Executor.getExecutor().execute(() -> upload(id, attempt));
+				} catch (RejectedExecutionException e) {
+					schedule(id, attempt, MIN_RETRY_DELAY);
+				}
+			}, delaySeconds, TimeUnit.SECONDS);
+		} catch (RejectedExecutionException e) {
+			// shutting down, uploaded on the next start
+		}
+	}
+
+	/**
+	 * Schedule the upload of the objects left by a previous run and clean up
+	 * the temporary files left by crashed writers; newer ones may be written by
+	 * another server sharing the directory
+	 */
+	private void recover() throws IOException {
+		long staleTemp = System.currentTimeMillis() - 3600 * 1000L;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path file : stream) {
+				String name = file.getFileName().toString();
+				if (name.endsWith(TEMP_SUFFIX)) {
+					try {
+						if (Files.getLastModifiedTime(file).toMillis() < staleTemp)
+							Files.deleteIfExists(file);
+					} catch (NoSuchFileException e) {
+						// moved in place meanwhile
+					}
+				} else if (name.endsWith(PENDING_SUFFIX)) {
+					// spooled by a transaction of a server stopped before it ended
+					try {
+						if (Files.getLastModifiedTime(file).toMillis() < System.currentTimeMillis() - STALE_PENDING)
+							Files.deleteIfExists(file);
+					} catch (NoSuchFileException e) {
+						// transaction ended meanwhile
+					}
+				} else if (name.endsWith(INFO_SUFFIX)) {
+					schedule(name.substring(0, name.length() - INFO_SUFFIX.length()), 0, 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param reload read the provider from the database again
+	 * @return latest provider read
+	 */
+	private MStorageProvider getProvider(int AD_StorageProvider_ID, boolean reload) {
+		MStorageProvider prov = providers.get(AD_StorageProvider_ID);
+		if (prov == null || reload) {
+			prov = new MStorageProvider(Env.getCtx(), AD_StorageProvider_ID, null);
+			setProvider(prov);
+			prov = providers.get(AD_StorageProvider_ID);
+		}
+		return prov;
+	}
+
+	/**
+	 * Keep the provider when it was updated after the one kept, so a changed
+	 * provider record is used by the next upload
+	 */
+	private void setProvider(MStorageProvider prov) {
+		providers.merge(prov.getAD_StorageProvider_ID(), prov,
+				(current, latest) -> getUpdated(latest) > getUpdated(current) ? latest : current);
+	}
+
+	private static long getUpdated(MStorageProvider prov) {
+		Timestamp updated = prov.getUpdated();
+		return updated != null ? updated.getTime() : 0;
+	}
+
+	/**
+	 * Lock an object for the servers sharing the directory, the objects
+	 * sharing a lock of this process share the lock file
+	 *
+	 * @return locked lock file, closing it releases the lock
+	 */
+	private FileChannel lockFile(String id) throws IOException {
+		Path file = directory.resolve(LOCK_PREFIX + Math.floorMod(id.hashCode(), locks.length));
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			channel.lock();
+			return channel;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static void unlock(FileChannel lock) {
+		if (lock == null)
+			return;
+		try {
+			lock.close();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Cannot release spool lock", e);
+		}
+	}
+
+	private boolean drop(String id) {
+		boolean found = false;
+		try {
+			found = Files.deleteIfExists(directory.resolve(id + INFO_SUFFIX));
+			Files.deleteIfExists(directory.resolve(id + DATA_SUFFIX));
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Cannot delete spool entry " + id, e);
+		}
+		return found;
+	}
+
+	private static void deleteFile(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Cannot delete " + file, e);
+		}
+	}
+
+	private static Object getLock(String id) {
+		return locks[Math.floorMod(id.hashCode(), locks.length)];
+	}
+
+	private static String getId(MStorageProvider prov, String bucket, String key) {
+		return S3ContentStore.sha256(prov.getAD_StorageProvider_ID() + "/" + bucket + "/" + key);
+	}
+
+	private static void move(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+				Thread thread = new Thread(r, "S3Storage-Spool");
+				thread.setDaemon(true);
+				return thread;
+			});
+			executor.setRemoveOnCancelPolicy(true);
+			scheduler = executor;
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Objects spooled by a transaction, queued for the upload when it commits
+	 * and dropped when it rolls back
+	 */
+	private class TrxObjects implements TrxEventListener {
+
+		private final String trxName;
+		/** Objects by spool entry */
+		private final Map<String, Pending> objects = new LinkedHashMap<>();
+
+		private TrxObjects(String trxName) {
+			this.trxName = trxName;
+		}
+
+		/**
+		 * Keep an object until the transaction ends, replacing the one spooled
+		 * before at the same key
+		 */
+		private synchronized void put(String id, Path file, Properties info) {
+			Pending replaced = objects.put(id, new Pending(file, info));
+			if (replaced != null)
+				deleteFile(replaced.file);
+		}
+
+		/**
+		 * @return data of the object, null when not spooled by the transaction
+		 */
+		private synchronized Path get(String id) {
+			Pending pending = objects.get(id);
+			return pending != null ? pending.file : null;
+		}
+
+		@Override
+		public void afterCommit(Trx trx, boolean success) {
+			if (!success)
+				return;
+			for (Map.Entry<String, Pending> entry : end().entrySet()) {
+				String id = entry.getKey();
+				if (publish(id, entry.getValue().file, entry.getValue().info))
+					schedule(id, 0, 0);
+			}
+		}
+
+		@Override
+		public void afterRollback(Trx trx, boolean success) {
+			for (Pending pending : end().values())
+				deleteFile(pending.file);
+		}
+
+		@Override
+		public void afterClose(Trx trx) {
+			afterRollback(trx, true);
+		}
+
+		/**
+		 * The transaction ended; it may go on spooling other objects, which get
+		 * new objects of the transaction
+		 *
+		 * @return objects by spool entry
+		 */
+		private synchronized Map<String, Pending> end() {
+			trxObjects.remove(trxName, this);
+			Map<String, Pending> ended = new LinkedHashMap<>(objects);
+			objects.clear();
+			return ended;
+		}
+	}
+
+	/**
+	 * Object spooled by a transaction not ended yet
+	 */
+	private static class Pending {
+		private final Path file;
+		private final Properties info;
+
+		private Pending(Path file, Properties info) {
+			this.file = file;
+			this.info = info;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import org.adempiere.exceptions.AdempiereException;
+
+import software.amazon.awssdk.core.exception.ApiCallAttemptTimeoutException;
+import software.amazon.awssdk.core.exception.ApiCallTimeoutException;
+import software.amazon.awssdk.core.exception.RetryableException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+/**
+ * Failed S3 request, classified so callers can tell a missing object from a
+ * failure worth retrying later
+ */
+public class S3StorageException extends AdempiereException {
+
+	private static final long serialVersionUID = 4120907338254722071L;
+
+	public enum Kind {
+		/** No object with that key */
+		NOT_FOUND,
+		/** The endpoint asked to slow down (429, 503 SlowDown) */
+		THROTTLED,
+		/** Server error, timeout or network failure, may succeed later */
+		TRANSIENT,
+		/** Not sent, the circuit breaker of the storage provider is open */
+		CIRCUIT_OPEN,
+		/** Refused request (credentials, permissions, bucket, invalid request) */
+		PERMANENT
+	}
+
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	private final Kind kind;
+
+	public S3StorageException(String message, Kind kind, Throwable cause) {
+		super(message, cause);
+		this.kind = kind;
+	}
+
+	/**
+	 * Classify a failure
+	 * 
+	 * @param message message of the exception
+	 * @param e       failure, may be wrapped by a future; null when unknown
+	 * @return S3StorageException
+	 */
+	public static S3StorageException of(String message, Throwable e) {
+		Throwable cause = unwrap(e);
+		if (cause instanceof S3StorageException) {
+			S3StorageException error = (S3StorageException) cause;
+			return message == null ? error : new S3StorageException(message, error.getKind(), error);
+		}
+		return new S3StorageException(message, classify(cause), cause);
+	}
+
+	/**
+	 * Classify a failure
+	 * 
+	 * @return kind, {@link Kind#PERMANENT} when unknown
+	 */
+	public static Kind classify(Throwable e) {
+		Throwable cause = unwrap(e);
+		if (cause == null)
+			return Kind.PERMANENT;
+		if (cause instanceof S3StorageException)
+			return ((S3StorageException) cause).getKind();
+		if (cause instanceof NoSuchKeyException)
+			return Kind.NOT_FOUND;
+		if (cause instanceof SdkServiceException) {
+			SdkServiceException se = (SdkServiceException) cause;
+			if (se.statusCode() == HttpURLConnection.HTTP_NOT_FOUND)
+				return Kind.NOT_FOUND;
+			if (se.isThrottlingException() || se.statusCode() == HTTP_TOO_MANY_REQUESTS
+					|| se.statusCode() == HttpURLConnection.HTTP_UNAVAILABLE)
+				return Kind.THROTTLED;
+			if (se.statusCode() >= HttpURLConnection.HTTP_INTERNAL_ERROR
+					|| se.statusCode() == HttpURLConnection.HTTP_CLIENT_TIMEOUT)
+				return Kind.TRANSIENT;
+			return Kind.PERMANENT;
+		}
+		if (cause instanceof ApiCallTimeoutException || cause instanceof ApiCallAttemptTimeoutException
+				|| cause instanceof RetryableException)
+			return Kind.TRANSIENT;
+		if (cause instanceof SdkClientException || cause instanceof IOException) {
+			// connection refused, reset, read timeout: the failure is in the cause chain
+			for (Throwable t = cause; t != null; t = t.getCause()) {
+				if (t instanceof S3StorageException)
+					return ((S3StorageException) t).getKind();
+				if (t instanceof IOException)
+					return Kind.TRANSIENT;
+			}
+		}
+		return Kind.PERMANENT;
+	}
+
+	private static Throwable unwrap(Throwable e) {
+		while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null)
+			e = e.getCause();
+		return e;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return true when the object does not exist
+	 */
+	public boolean isNotFound() {
+		return kind == Kind.NOT_FOUND;
+	}
+
+	/**
+	 * @return true when the same request may succeed later (throttled,
+	 *         server or network failure, circuit open)
+	 */
+	public boolean isTransient() {
+		return kind == Kind.THROTTLED || kind == Kind.TRANSIENT || kind == Kind.CIRCUIT_OPEN;
+	}
+}
@@ -0,0 +1,166 @@
+/******************************************************************************
+ * Product: iDempiere ERP & CRM Smart Business Solution                       *
+ * Copyright (C) 2012 devCoffee Soluções em Tecnologia                        *
+ * This program is free software; you can redistribute it and/or modify it    *
+ * under the terms version 2 of the GNU General Public License as published   *
+ * by the Free Software Foundation. This program is distributed in the hope   *
+ * that it will be useful, but WITHOUT ANY WARRANTY; without even the implied *
+ * warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.           *
+ * See the GNU General Public License for more details.                       *
+ * You should have received a copy of the GNU General Public License along    *
+ * with this program; if not, write to the Free Software Foundation, Inc.,    *
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA.                     *
+ *****************************************************************************/
+
+package org.devcoffee.idempiere.s3storage.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+import org.compiere.model.MStorageProvider;
+import org.compiere.util.CLogger;
+import org.compiere.util.Trx;
+import org.compiere.util.TrxEventListener;
+
+/**
+ * Objects deleted once the transaction writing a pointer ends.
+ * <p>
+ * A store writes the objects of a record before its pointer is committed.
+ * The objects the previous pointer refers to are only deleted when the new
+ * pointer is committed, and the objects uploaded for the new pointer are
+ * deleted when it is rolled back, so the committed pointer never refers to
+ * a missing object. The saves of one transaction share one cleanup per
+ * bucket: an object uploaded by a save and replaced by a later one is
+ * deleted on commit as well as on rollback, and the keys pending in the
+ * transaction are never written again before it ends.
+ */
+public class S3TrxCleanup implements TrxEventListener {
+
+	private static final CLogger log = CLogger.getCLogger(S3TrxCleanup.class);
+
+	/** Cleanups of the open transactions, by transaction, provider and bucket */
+	private static final Map<String, S3TrxCleanup> cleanups = new ConcurrentHashMap<>();
+
+	private final String id;
+	private final MStorageProvider prov;
+	private final String bucket;
+	private final Set<String> onCommit = new LinkedHashSet<>();
+	private final Set<String> onRollback = new LinkedHashSet<>();
+
+	private S3TrxCleanup(String id, MStorageProvider prov, String bucket) {
+		this.id = id;
+		this.prov = prov;
+		this.bucket = bucket;
+	}
+
+	/**
+	 * Delete objects when the transaction ends. Without a transaction the
+	 * record is saved at once, the replaced objects are deleted right away.
+	 * 
+	 * @param trxName    transaction writing the pointer, null for none
+	 * @param onCommit   objects no longer referenced once the pointer is
+	 *                   committed
+	 * @param onRollback objects uploaded for the pointer
+	 */
+	public static void register(String trxName, MStorageProvider prov, String bucket, Collection<String> onCommit,
+			Collection<String> onRollback) {
+		if (onCommit.isEmpty() && onRollback.isEmpty())
+			return;
+		Trx trx = trxName != null ? Trx.get(trxName, false) : null;
+		if (trx == null) {
+			delete(prov, bucket, onCommit, "replaced");
+			return;
+		}
+		String id = getId(trxName, prov, bucket);
+		S3TrxCleanup cleanup = cleanups.computeIfAbsent(id, key -> {
+			S3TrxCleanup created = new S3TrxCleanup(key, prov, bucket);
+			trx.addTrxEventListener(created);
+			return created;
+		});
+		synchronized (cleanup) {
+			cleanup.onCommit.addAll(onCommit);
+			cleanup.onRollback.addAll(onRollback);
+		}
+	}
+
+	/**
+	 * Returns the objects written or replaced by the transaction so far, which
+	 * a later save of the same transaction must not write again
+	 * 
+	 * @param trxName transaction, null for none
+	 * @return keys, empty when none
+	 */
+	public static Set<String> getPendingKeys(String trxName, MStorageProvider prov, String bucket) {
+		S3TrxCleanup cleanup = trxName != null ? cleanups.get(getId(trxName, prov, bucket)) : null;
+		if (cleanup == null)
+			return Collections.emptySet();
+		synchronized (cleanup) {
+			Set<String> keys = new HashSet<>(cleanup.onCommit);
+			keys.addAll(cleanup.onRollback);
+			return keys;
+		}
+	}
+
+	@Override
+	public void afterCommit(Trx trx, boolean success) {
+		List<String> keys = end(true);
+		if (success)
+			delete(prov, bucket, keys, "replaced");
+	}
+
+	@Override
+	public void afterRollback(Trx trx, boolean success) {
+		List<String> keys = end(false);
+		if (success)
+			delete(prov, bucket, keys, "rolled back");
+	}
+
+	@Override
+	public void afterClose(Trx trx) {
+		end(false);
+	}
+
+	/**
+	 * The transaction ended; it may go on with other saves, which get a new
+	 * cleanup
+	 * 
+	 * @param commit true for the objects to delete on commit, false for the
+	 *               ones to delete on rollback
+	 * @return objects to delete
+	 */
+	private synchronized List<String> end(boolean commit) {
+		cleanups.remove(id, this);
+		List<String> keys = new ArrayList<>(commit ? onCommit : onRollback);
+		onCommit.clear();
+		onRollback.clear();
+		return keys;
+	}
+
+	private static String getId(String trxName, MStorageProvider prov, String bucket) {
+		return trxName + "/" + prov.getAD_StorageProvider_ID() + "/" + bucket;
+	}
+
+	private static void delete(MStorageProvider prov, String bucket, Collection<String> keys, String reason) {
+		if (keys.isEmpty())
+			return;
+		// an object spooled for a later upload is dropped as well
+		S3Spool spool = S3Spool.getExisting(prov);
+		if (spool != null)
+			for (String key : keys)
+				spool.remove(prov, bucket, key);
+		try {
+			for (String key : S3Util.deleteObjects(S3ClientRegistry.getClient(prov), bucket, keys, prov))
+				log.warning("Could not remove " + reason + " S3 object: " + key);
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Could not remove " + reason + " S3 objects", e);
+		}
+	}
+}
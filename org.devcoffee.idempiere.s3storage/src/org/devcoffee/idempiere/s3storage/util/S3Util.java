@@ -14,34 +14,108 @@
 
 package org.devcoffee.idempiere.s3storage.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
 import java.net.URI;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
 import java.util.logging.Level;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.compiere.model.MStorageProvider;
 import org.compiere.util.CLogger;
 
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.retry.RetryMode;
+import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.core.retry.backoff.EqualJitterBackoffStrategy;
+import software.amazon.awssdk.core.retry.backoff.FullJitterBackoffStrategy;
 import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
 import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.Delete;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
 import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.MetadataDirective;
 import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Error;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
 
 public class S3Util {
 
 	private static final CLogger log = CLogger.getCLogger(S3Util.class);
 	
-	private static final Pattern ENDPOINT_PATTERN = Pattern.compile("^(.+\\.)?s3[.-]([a-z0-9-]+)\\.");
+	/** Smallest part size accepted by S3, except for the last part */
+	private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
 
+	/** Maximum number of parts of a multipart upload */
+	private static final long MAX_PARTS = 10000;
+
+	/** Largest object a single CopyObject request accepts */
+	public static final long MAX_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+
+	/** Maximum number of keys of a DeleteObjects request */
+	private static final int MAX_DELETE_KEYS = 1000;
+
+	/** Streams up to this size are read in memory before the upload */
+	private static final int STREAM_BUFFER_SIZE = 128 * 1024;
+
+	/** Last failed request of the thread */
+	private static final ThreadLocal<S3StorageException> lastError = new ThreadLocal<>();
+
+	/**
+	 * Create a new client for the storage provider. Stores should use
+	 * {@link S3ClientRegistry#getClient(MStorageProvider)} instead, which reuses
+	 * the client between calls.
+	 * 
+	 * @return S3Client
+	 */
 	public static S3Client createS3Client(MStorageProvider prov) {
 		String regionStr = prov.get_ValueAsString("S3Region");
 		String endpointStr = prov.get_ValueAsString("S3EndPoint");
@@ -49,22 +123,130 @@ public class S3Util {
 
 		AwsBasicCredentials awsCreds = AwsBasicCredentials.create(prov.getUserName(), prov.getPassword());
 		StaticCredentialsProvider credentialsProvider = StaticCredentialsProvider.create(awsCreds);
-		UrlConnectionHttpClient urlConnection = (UrlConnectionHttpClient) UrlConnectionHttpClient.builder().build();
+		// let the client own the http client, so it is released on close
+		SdkHttpClient.Builder<?> httpClient = createHttpClientBuilder(prov);
+
+		S3MetricPublisher metrics = new S3MetricPublisher(prov.getAD_StorageProvider_ID());
+		RetryPolicy retryPolicy = createRetryPolicy(prov);
+		S3CircuitBreaker circuitBreaker = S3CircuitBreaker.get(prov);
 
+		S3Client client;
 		if (isAwsS3) {
-			return S3Client.builder()
+			client = S3Client.builder()
 					.region(Region.of(regionStr))
 					.credentialsProvider(credentialsProvider)
-					.httpClient(urlConnection).build();
+					.overrideConfiguration(o -> o.addMetricPublisher(metrics).retryPolicy(retryPolicy)
+							.addExecutionInterceptor(circuitBreaker))
+					.httpClientBuilder(httpClient).build();
 		} else {
-			return S3Client.builder().region(Region.of(regionStr))
+			client = S3Client.builder().region(Region.of(regionStr))
 					.endpointOverride(getEndpoint(endpointStr))
 					.endpointProvider(null)
 					.credentialsProvider(credentialsProvider)
 					.forcePathStyle(true)
-					.httpClient(urlConnection).build();
+					.overrideConfiguration(o -> o.addMetricPublisher(metrics).retryPolicy(retryPolicy)
+							.addExecutionInterceptor(circuitBreaker))
+					.httpClientBuilder(httpClient).build();
 		}
+		S3Metrics.bind(client, prov);
+		return client;
+	}
+
+	/**
+	 * Create a presigner with the endpoint and credentials of the storage
+	 * provider, signing URLs locally without any request
+	 * 
+	 * @return S3Presigner
+	 */
+	public static S3Presigner createS3Presigner(MStorageProvider prov) {
+		String regionStr = prov.get_ValueAsString("S3Region");
+		String endpointStr = prov.get_ValueAsString("S3EndPoint");
+		boolean isAwsS3 = prov.getURL().contains("amazonaws.com");
 
+		AwsBasicCredentials awsCreds = AwsBasicCredentials.create(prov.getUserName(), prov.getPassword());
+		S3Presigner.Builder builder = S3Presigner.builder()
+				.region(Region.of(regionStr))
+				.credentialsProvider(StaticCredentialsProvider.create(awsCreds));
+		if (!isAwsS3) {
+			builder.endpointOverride(getEndpoint(endpointStr))
+					.serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build());
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Create the retry policy of the storage provider clients: retries with
+	 * jittered exponential backoff, a longer one after throttled requests,
+	 * within the retry quota of the client. In adaptive mode the client also
+	 * limits its request rate with a token bucket that shrinks on throttled
+	 * responses and grows back as requests succeed.
+	 * 
+	 * @return RetryPolicy
+	 */
+	public static RetryPolicy createRetryPolicy(MStorageProvider prov) {
+		RetryMode mode = S3Config.RETRY_MODE_STANDARD.equals(S3Config.getRetryMode(prov)) ? RetryMode.STANDARD
+				: RetryMode.ADAPTIVE;
+		Duration maxBackoff = S3Config.getRetryMaxBackoff(prov);
+		return RetryPolicy.builder(mode)
+				.numRetries(S3Config.getMaxRetries(prov))
+				.backoffStrategy(FullJitterBackoffStrategy.builder()
+						.baseDelay(S3Config.getRetryBaseDelay(prov)).maxBackoffTime(maxBackoff).build())
+				.throttlingBackoffStrategy(EqualJitterBackoffStrategy.builder()
+						.baseDelay(S3Config.getRetryThrottledDelay(prov)).maxBackoffTime(maxBackoff).build())
+				.build();
+	}
+
+	/**
+	 * Get the failure of the last request of the current thread that failed,
+	 * to tell a missing object from an error that may go away when a method
+	 * returned false or null
+	 * 
+	 * @return S3StorageException, null when no request failed
+	 */
+	public static S3StorageException getLastError() {
+		return lastError.get();
+	}
+
+	/**
+	 * Log a failed request and keep it as the last error of the thread
+	 * 
+	 * @return the classified failure
+	 */
+	static S3StorageException error(String message, Throwable e) {
+		S3StorageException error = S3StorageException.of(message, e);
+		if (error.getKind() == S3StorageException.Kind.CIRCUIT_OPEN)
+			log.warning(message + ": " + error.getCause().getMessage());
+		else
+			log.log(Level.SEVERE, message + " (" + error.getKind() + ")", error.getCause());
+		lastError.set(error);
+		return error;
+	}
+
+	/**
+	 * Create the builder of the HTTP client selected for the storage provider,
+	 * the pooled Apache client or the JDK URLConnection client
+	 * 
+	 * @return SdkHttpClient.Builder
+	 */
+	public static SdkHttpClient.Builder<?> createHttpClientBuilder(MStorageProvider prov) {
+		if (S3Config.HTTP_CLIENT_APACHE.equals(S3Config.getHttpClient(prov))) {
+			ApacheHttpClient.Builder apache = ApacheHttpClient.builder()
+					.maxConnections(S3Config.getMaxConnections(prov))
+					.connectionTimeout(S3Config.getConnectionTimeout(prov))
+					.socketTimeout(S3Config.getSocketTimeout(prov))
+					.connectionAcquisitionTimeout(S3Config.getConnectionAcquireTimeout(prov))
+					.connectionMaxIdleTime(S3Config.getConnectionMaxIdle(prov))
+					.useIdleConnectionReaper(true)
+					.tcpKeepAlive(S3Config.isTcpKeepAlive(prov));
+			Duration ttl = S3Config.getConnectionTTL(prov);
+			if (ttl != null)
+				apache.connectionTimeToLive(ttl);
+			return apache;
+		}
+		// keep-alive and connection reuse are handled by the JDK, see http.maxConnections
+		return UrlConnectionHttpClient.builder()
+				.connectionTimeout(S3Config.getConnectionTimeout(prov))
+				.socketTimeout(S3Config.getSocketTimeout(prov));
 	}
 
 	/**
@@ -73,61 +255,834 @@ public class S3Util {
 	 * @return Boolean
 	 */
 	public static boolean exists(S3Client s3Client, String bucket, String key) {
+		long start = System.nanoTime();
+		String outcome = S3Metrics.OUTCOME_ERROR;
 		try {
 			HeadObjectRequest headObjectRequest = HeadObjectRequest.builder().bucket(bucket).key(key).build();
 			HeadObjectResponse headObjectResponse = s3Client.headObject(headObjectRequest);
+			outcome = S3Metrics.OUTCOME_SUCCESS;
 			return headObjectResponse.sdkHttpResponse().isSuccessful();
 		} catch (NoSuchKeyException e) {
-			log.log(Level.SEVERE, "Object not found", e);
+			outcome = S3Metrics.OUTCOME_NOT_FOUND;
+			if (log.isLoggable(Level.FINE))
+				log.fine("Object not found: " + key);
+		} finally {
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_HEAD, outcome, 0, start);
+		}
+		return false;
+	}
+
+	/**
+	 * Read the metadata of an object
+	 * 
+	 * @return response with the size, ETag and object metadata, null when the
+	 *         object does not exist
+	 */
+	public static HeadObjectResponse headObject(S3Client s3Client, String bucket, String key) {
+		long start = System.nanoTime();
+		String outcome = S3Metrics.OUTCOME_ERROR;
+		try {
+			HeadObjectResponse response = s3Client.headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build());
+			outcome = S3Metrics.OUTCOME_SUCCESS;
+			return response;
+		} catch (NoSuchKeyException e) {
+			outcome = S3Metrics.OUTCOME_NOT_FOUND;
+			return null;
+		} finally {
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_HEAD, outcome, 0, start);
+		}
+	}
+
+	/**
+	 * Refresh the last modified time of an object by copying it onto itself,
+	 * keeping its metadata. A single copy request is limited to
+	 * {@link #MAX_COPY_SIZE}.
+	 * 
+	 * @param metadata object metadata, as read with
+	 *                 {@link #headObject(S3Client, String, String)}
+	 * @return true when copied
+	 */
+	public static boolean touchObject(S3Client s3Client, String bucket, String key, Map<String, String> metadata) {
+		long start = System.nanoTime();
+		try {
+			s3Client.copyObject(CopyObjectRequest.builder().sourceBucket(bucket).sourceKey(key)
+					.destinationBucket(bucket).destinationKey(key)
+					.metadata(metadata).metadataDirective(MetadataDirective.REPLACE).build());
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_PUT, S3Metrics.OUTCOME_SUCCESS, 0, start);
+			return true;
+		} catch (Exception e) {
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_PUT, S3Metrics.OUTCOME_ERROR, 0, start);
+			error("Error copying " + key, e);
 		}
 		return false;
 	}
 
+	/**
+	 * Copy an object within the bucket, with its metadata, dropping the copy of
+	 * the target from the local disk cache. The copy is done by the server, up
+	 * to the {@link #MAX_COPY_SIZE} limit of a single copy request.
+	 * 
+	 * @return true when copied
+	 */
+	public static boolean copyObject(S3Client s3Client, String bucket, String sourceKey, String targetKey,
+			MStorageProvider prov) {
+		S3DiskCache.invalidateIfEnabled(prov, bucket, targetKey);
+		long start = System.nanoTime();
+		try {
+			s3Client.copyObject(CopyObjectRequest.builder().sourceBucket(bucket).sourceKey(sourceKey)
+					.destinationBucket(bucket).destinationKey(targetKey).build());
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_PUT, S3Metrics.OUTCOME_SUCCESS, 0, start);
+			return true;
+		} catch (Exception e) {
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_PUT, S3Metrics.OUTCOME_ERROR, 0, start);
+			error("Error copying " + sourceKey + " to " + targetKey, e);
+		}
+		return false;
+	}
+
+	/**
+	 * List the objects under a prefix, one page of up to 1000 keys at a time
+	 * 
+	 * @param consumer called for each object
+	 * @return true when all the objects were listed
+	 */
+	public static boolean listObjects(S3Client s3Client, String bucket, String prefix, Consumer<S3Object> consumer) {
+		String continuationToken = null;
+		do {
+			long start = System.nanoTime();
+			try {
+				ListObjectsV2Response response = s3Client.listObjectsV2(ListObjectsV2Request.builder().bucket(bucket)
+						.prefix(prefix).continuationToken(continuationToken).build());
+				S3Metrics.record(s3Client, S3Metrics.OPERATION_LIST, S3Metrics.OUTCOME_SUCCESS, 0, start);
+				response.contents().forEach(consumer);
+				continuationToken = Boolean.TRUE.equals(response.isTruncated()) ? response.nextContinuationToken() : null;
+			} catch (Exception e) {
+				S3Metrics.record(s3Client, S3Metrics.OPERATION_LIST, S3Metrics.OUTCOME_ERROR, 0, start);
+				error("Error listing " + prefix, e);
+				return false;
+			}
+		} while (continuationToken != null);
+		return true;
+	}
+
+	/**
+	 * Create a presigned GET URL, so a client downloads the object straight
+	 * from the bucket
+	 * 
+	 * @param expiry             validity of the URL
+	 * @param contentDisposition Content-Disposition of the response, null to
+	 *                           keep the one of the object
+	 * @param contentType        Content-Type of the response, null to keep the
+	 *                           one of the object
+	 * @param contentEncoding    Content-Encoding of the response, e.g. gzip for
+	 *                           compressed objects, null to keep the one of the
+	 *                           object
+	 * @return URL, null on error
+	 */
+	public static URL presignGetObject(S3Presigner presigner, String bucket, String key, Duration expiry,
+			String contentDisposition, String contentType, String contentEncoding) {
+		try {
+			GetObjectRequest request = GetObjectRequest.builder().bucket(bucket).key(key)
+					.responseContentDisposition(contentDisposition)
+					.responseContentType(contentType)
+					.responseContentEncoding(contentEncoding).build();
+			return presigner.presignGetObject(GetObjectPresignRequest.builder()
+					.signatureDuration(expiry).getObjectRequest(request).build()).url();
+		} catch (Exception e) {
+			log.log(Level.SEVERE, "Error presigning " + key, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Build a Content-Disposition header value, with the file name also
+	 * encoded for names outside US-ASCII (RFC 6266)
+	 * 
+	 * @param inline   true to show the content in the browser, false to save
+	 *                 it as a file
+	 * @param fileName file name, null for none
+	 * @return String
+	 */
+	public static String getContentDisposition(boolean inline, String fileName) {
+		StringBuilder value = new StringBuilder(inline ? "inline" : "attachment");
+		if (fileName != null && !fileName.isEmpty()) {
+			String ascii = fileName.replaceAll("[^\\x20-\\x7e]|[\"\\\\]", "_");
+			value.append("; filename=\"").append(ascii).append('"');
+			value.append("; filename*=UTF-8''").append(URLEncoder.encode(fileName, StandardCharsets.UTF_8).replace("+", "%20"));
+		}
+		return value.toString();
+	}
+
+	/**
+	 * Read an object with a single request, a missing object is not an error
+	 * 
+	 * @return result with the content, or telling the object is missing or the
+	 *         request failed
+	 */
+	public static S3ReadResult readObject(S3Client s3Client, String bucket, String key) {
+		return readObject(s3Client, bucket, key, (String) null);
+	}
+
+	/**
+	 * Read an object with a single request, through the local disk cache when
+	 * it is enabled for the storage provider
+	 * 
+	 * @return result with the content, or telling the object is missing or the
+	 *         request failed
+	 */
+	public static S3ReadResult readObject(S3Client s3Client, String bucket, String key, MStorageProvider prov) {
+		S3DiskCache cache = S3DiskCache.get(prov);
+		if (cache != null)
+			return cache.read(s3Client, prov, bucket, key);
+		return readObject(s3Client, bucket, key);
+	}
+
+	/**
+	 * Read an object with a single request, skipping the transfer when the
+	 * object still has the ETag of the copy the caller has
+	 * 
+	 * @param ifNoneMatch ETag of the copy the caller has, null to always read
+	 * @return result with the content, or telling the object is missing, not
+	 *         modified or the request failed
+	 */
+	public static S3ReadResult readObject(S3Client s3Client, String bucket, String key, String ifNoneMatch) {
+		GetObjectRequest.Builder builder = GetObjectRequest.builder().bucket(bucket).key(key);
+		if (ifNoneMatch != null)
+			builder.ifNoneMatch(ifNoneMatch);
+		long start = System.nanoTime();
+		S3StorageException error;
+		try (ResponseInputStream<GetObjectResponse> in = s3Client.getObject(builder.build())) {
+			byte[] data = readContent(in);
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_GET, S3Metrics.OUTCOME_SUCCESS, data.length, start);
+			return S3ReadResult.found(data, in.response().eTag(), in.response().metadata());
+		} catch (NoSuchKeyException e) {
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_GET, S3Metrics.OUTCOME_NOT_FOUND, 0, start);
+			if (log.isLoggable(Level.FINE))
+				log.fine("Object not found: " + key);
+			return S3ReadResult.notFound();
+		} catch (S3Exception e) {
+			if (e.statusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+				S3Metrics.record(s3Client, S3Metrics.OPERATION_GET, S3Metrics.OUTCOME_NOT_FOUND, 0, start);
+				if (log.isLoggable(Level.FINE))
+					log.fine("Object not found: " + key);
+				return S3ReadResult.notFound();
+			}
+			if (e.statusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				S3Metrics.record(s3Client, S3Metrics.OPERATION_GET, S3Metrics.OUTCOME_NOT_MODIFIED, 0, start);
+				return S3ReadResult.notModified(ifNoneMatch);
+			}
+			error = error("Error reading " + key, e);
+		} catch (Exception e) {
+			error = error("Error reading " + key, e);
+		}
+		S3Metrics.record(s3Client, S3Metrics.OPERATION_GET, S3Metrics.OUTCOME_ERROR, 0, start);
+		return S3ReadResult.error(error);
+	}
+
+	/**
+	 * Download an object. The content is read straight into an array of the
+	 * object size.
+	 * 
+	 * @return content, null on error
+	 */
 	public static byte[] getObject(S3Client s3Client, String bucket, String key) {
+		return getContent(s3Client, GetObjectRequest.builder().bucket(bucket).key(key).build());
+	}
+
+	/**
+	 * Download a byte range of an object
+	 * 
+	 * @param start first byte
+	 * @param end   last byte, inclusive
+	 * @return content of the range, null on error
+	 */
+	public static byte[] getObjectRange(S3Client s3Client, String bucket, String key, long start, long end) {
+		return getContent(s3Client, GetObjectRequest.builder().bucket(bucket).key(key)
+				.range("bytes=" + start + "-" + end).build());
+	}
+
+	private static byte[] getContent(S3Client s3Client, GetObjectRequest request) {
+		long start = System.nanoTime();
+		try (ResponseInputStream<GetObjectResponse> in = s3Client.getObject(request)) {
+			byte[] data = readContent(in);
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_GET, S3Metrics.OUTCOME_SUCCESS, data.length, start);
+			return data;
+		} catch (Exception e) {
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_GET, S3Metrics.OUTCOME_ERROR, 0, start);
+			error("Error reading " + request.key(), e);
+		}
+		return null;
+	}
+
+	/**
+	 * Open a stream on an object, the content is transferred as the stream is
+	 * read
+	 * 
+	 * @return stream to be closed by the caller, null on error
+	 */
+	public static ResponseInputStream<GetObjectResponse> getObjectAsStream(S3Client s3Client, String bucket, String key) {
+		return openStream(s3Client, GetObjectRequest.builder().bucket(bucket).key(key).build());
+	}
+
+	/**
+	 * Open a stream on a byte range of an object
+	 * 
+	 * @param start first byte
+	 * @param end   last byte, inclusive
+	 * @return stream to be closed by the caller, null on error
+	 */
+	public static ResponseInputStream<GetObjectResponse> getObjectRangeAsStream(S3Client s3Client, String bucket,
+			String key, long start, long end) {
+		return openStream(s3Client, GetObjectRequest.builder().bucket(bucket).key(key)
+				.range("bytes=" + start + "-" + end).build());
+	}
+
+	private static ResponseInputStream<GetObjectResponse> openStream(S3Client s3Client, GetObjectRequest request) {
+		long start = System.nanoTime();
 		try {
-			GetObjectRequest getObjectRequest = GetObjectRequest.builder().bucket(bucket).key(key).build();
-			return s3Client.getObjectAsBytes(getObjectRequest).asByteArray();
+			ResponseInputStream<GetObjectResponse> in = s3Client.getObject(request);
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_GET, S3Metrics.OUTCOME_SUCCESS, 0, start);
+			return in;
 		} catch (Exception e) {
-			log.log(Level.SEVERE, "Error", e);
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_GET, S3Metrics.OUTCOME_ERROR, 0, start);
+			error("Error reading " + request.key(), e);
 		}
 		return null;
 	}
 
-	public static boolean putObject(S3Client s3Client, String bucket, String path, File file) {
+	/**
+	 * Download an object straight to a file
+	 * 
+	 * @param target file to write, replaced if it exists
+	 * @return true when downloaded
+	 */
+	public static boolean getObject(S3Client s3Client, String bucket, String key, Path target) {
+		long start = System.nanoTime();
+		try (ResponseInputStream<GetObjectResponse> in = s3Client.getObject(GetObjectRequest.builder().bucket(bucket).key(key).build())) {
+			long size = Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_GET, S3Metrics.OUTCOME_SUCCESS, size, start);
+			return true;
+		} catch (Exception e) {
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_GET, S3Metrics.OUTCOME_ERROR, 0, start);
+			error("Error reading " + key, e);
+		}
+		return false;
+	}
+
+	/**
+	 * Read a response into an array of the content length
+	 * 
+	 * @return byte[]
+	 */
+	private static byte[] readContent(ResponseInputStream<GetObjectResponse> in) throws IOException {
+		Long length = in.response().contentLength();
+		if (length == null || length < 0 || length > Integer.MAX_VALUE - 8)
+			return in.readAllBytes();
+		byte[] data = new byte[length.intValue()];
+		int offset = 0;
+		while (offset < data.length) {
+			int n = in.read(data, offset, data.length - offset);
+			if (n < 0)
+				throw new EOFException("Object ended after " + offset + " of " + data.length + " bytes");
+			offset += n;
+		}
+		return data;
+	}
+
+	/**
+	 * Upload a file, with a multipart upload when the file size reaches the
+	 * multipart threshold of the storage provider
+	 * 
+	 * @return true when uploaded
+	 */
+	public static boolean putObject(S3Client s3Client, String bucket, String path, File file, MStorageProvider prov) {
+		return putObject(s3Client, bucket, path, file, null, prov);
+	}
+
+	/**
+	 * Upload a file with object metadata, with a multipart upload when the file
+	 * size reaches the multipart threshold of the storage provider
+	 * 
+	 * @param metadata object metadata, null for none
+	 * @return true when uploaded
+	 */
+	public static boolean putObject(S3Client s3Client, String bucket, String path, File file,
+			Map<String, String> metadata, MStorageProvider prov) {
+		S3DiskCache.invalidateIfEnabled(prov, bucket, path);
+		final long length = file.length();
+		if (length < S3Config.getMultipartThreshold(prov))
+			return putObject(s3Client, bucket, path, RequestBody.fromFile(file), length, metadata);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return putObjectMultipart(s3Client, bucket, path, length,
+					(offset, size) -> new ChannelPartInputStream(channel, offset, size),
+					S3Config.getMultipartPartSize(prov), S3Config.getMultipartConcurrency(prov), metadata);
+		} catch (IOException e) {
+			error("Error uploading " + path, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Upload bytes, with a multipart upload when the size reaches the multipart
+	 * threshold of the storage provider
+	 * 
+	 * @return true when uploaded
+	 */
+	public static boolean putObjectFomBytes(S3Client s3Client, String bucket, String path, byte[] bytes, MStorageProvider prov) {
+		return putObjectFomBytes(s3Client, bucket, path, bytes, null, prov);
+	}
+
+	/**
+	 * Upload bytes with object metadata, with a multipart upload when the size
+	 * reaches the multipart threshold of the storage provider
+	 * 
+	 * @param metadata object metadata, null for none
+	 * @return true when uploaded
+	 */
+	public static boolean putObjectFomBytes(S3Client s3Client, String bucket, String path, byte[] bytes,
+			Map<String, String> metadata, MStorageProvider prov) {
+		S3DiskCache.invalidateIfEnabled(prov, bucket, path);
+		if (bytes.length < S3Config.getMultipartThreshold(prov))
+			return putObject(s3Client, bucket, path, RequestBody.fromBytes(bytes), bytes.length, metadata);
+		return putObjectMultipart(s3Client, bucket, path, bytes.length,
+				(offset, size) -> new ByteArrayInputStream(bytes, (int) offset, (int) size),
+				S3Config.getMultipartPartSize(prov), S3Config.getMultipartConcurrency(prov), metadata);
+	}
+
+	/**
+	 * Upload a stream without holding all its content in memory. Below the
+	 * multipart threshold of the storage provider a stream of known length is
+	 * sent as it is read, so beyond a small buffer a request failed after
+	 * sending part of it is not retried. From the threshold each part is read
+	 * from the stream in turn into its own buffer, so the parts are uploaded
+	 * concurrently and retried, holding at most the multipart concurrency of
+	 * parts in memory. A stream of unknown length is written to a temporary
+	 * file first. The stream is not closed.
+	 * 
+	 * @param length   content length, -1 when unknown
+	 * @param metadata object metadata, null for none
+	 * @return true when uploaded
+	 */
+	public static boolean putObject(S3Client s3Client, String bucket, String path, InputStream in, long length,
+			Map<String, String> metadata, MStorageProvider prov) {
+		if (length < 0) {
+			Path temp = null;
+			try {
+				temp = Files.createTempFile("idempiere-s3", ".tmp");
+				Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+				return putObject(s3Client, bucket, path, temp.toFile(), metadata, prov);
+			} catch (IOException e) {
+				error("Error uploading " + path, e);
+				return false;
+			} finally {
+				deleteTempFile(temp);
+			}
+		}
+		if (length <= STREAM_BUFFER_SIZE) {
+			// small enough to be read in memory, so the upload can be retried
+			try {
+				byte[] bytes = in.readNBytes((int) length);
+				if (bytes.length < length)
+					throw new EOFException("Stream ended after " + bytes.length + " of " + length + " bytes");
+				return putObjectFomBytes(s3Client, bucket, path, bytes, metadata, prov);
+			} catch (IOException e) {
+				error("Error uploading " + path, e);
+				return false;
+			}
+		}
+		S3DiskCache.invalidateIfEnabled(prov, bucket, path);
+		final StreamPartSource parts = new StreamPartSource(in);
+		if (length < S3Config.getMultipartThreshold(prov)) {
+			RequestBody body = RequestBody.fromContentProvider(() -> {
+				try {
+					return parts.open(0, length);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, length, "application/octet-stream");
+			return putObject(s3Client, bucket, path, body, length, metadata);
+		}
+		return putObjectMultipart(s3Client, bucket, path, length, parts, S3Config.getMultipartPartSize(prov),
+				S3Config.getMultipartConcurrency(prov), metadata);
+	}
+
+	/**
+	 * Delete a temporary file, a failure is only logged
+	 */
+	public static void deleteTempFile(Path temp) {
+		if (temp == null)
+			return;
+		try {
+			Files.deleteIfExists(temp);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Cannot delete " + temp, e);
+		}
+	}
+
+	private static boolean putObject(S3Client s3Client, String bucket, String path, RequestBody body, long length,
+			Map<String, String> metadata) {
+		long start = System.nanoTime();
 		try {
-			PutObjectRequest objectRequest = PutObjectRequest.builder().bucket(bucket).key(path).build();
-			s3Client.putObject(objectRequest, RequestBody.fromFile(file));
+			PutObjectRequest.Builder objectRequest = PutObjectRequest.builder().bucket(bucket).key(path);
+			if (metadata != null && !metadata.isEmpty())
+				objectRequest.metadata(metadata);
+			s3Client.putObject(objectRequest.build(), body);
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_PUT, S3Metrics.OUTCOME_SUCCESS, length, start);
 			return true;
 		} catch (Exception e) {
-			log.log(Level.SEVERE, "Error", e);
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_PUT, S3Metrics.OUTCOME_ERROR, 0, start);
+			error("Error uploading " + path, e);
 		}
 		return false;
 	}
-	
-	public static boolean putObjectFomBytes(S3Client s3Client, String bucket, String path, byte[] bytes) {
+
+	/**
+	 * Upload an object in parts, up to maxInFlight parts at the same time. An
+	 * incomplete upload is aborted so no parts are left behind.
+	 * 
+	 * @param length      object size
+	 * @param parts       opens a stream on a part of the content
+	 * @param partSize    part size, raised when needed to stay within the part
+	 *                    count limit
+	 * @param maxInFlight maximum number of parts uploaded at the same time
+	 * @return true when uploaded
+	 */
+	public static boolean putObjectMultipart(S3Client s3Client, String bucket, String path, long length,
+			PartSource parts, long partSize, int maxInFlight) {
+		return putObjectMultipart(s3Client, bucket, path, length, parts, partSize, maxInFlight, null);
+	}
+
+	/**
+	 * Upload an object with object metadata in parts, see
+	 * {@link #putObjectMultipart(S3Client, String, String, long, PartSource, long, int)}
+	 * 
+	 * @param metadata object metadata, null for none
+	 * @return true when uploaded
+	 */
+	public static boolean putObjectMultipart(S3Client s3Client, String bucket, String path, long length,
+			PartSource parts, long partSize, int maxInFlight, Map<String, String> metadata) {
+		final long effectivePartSize = Math.max(Math.max(partSize, MIN_PART_SIZE), (length + MAX_PARTS - 1) / MAX_PARTS);
+		final int partCount = (int) Math.max(1, (length + effectivePartSize - 1) / effectivePartSize);
+		final long start = System.nanoTime();
+		String uploadId = null;
 		try {
-			PutObjectRequest objectRequest = PutObjectRequest.builder().bucket(bucket).key(path).build();
-			s3Client.putObject(objectRequest, RequestBody.fromBytes(bytes));
+			CreateMultipartUploadRequest.Builder createRequest = CreateMultipartUploadRequest.builder().bucket(bucket).key(path);
+			if (metadata != null && !metadata.isEmpty())
+				createRequest.metadata(metadata);
+			uploadId = s3Client.createMultipartUpload(createRequest.build()).uploadId();
+			final String id = uploadId;
+			final StreamPartSource stream = parts instanceof StreamPartSource ? (StreamPartSource) parts : null;
+
+			List<Callable<CompletedPart>> uploads = new ArrayList<>();
+			for (int i = 0; i < partCount; i++) {
+				final int partNumber = i + 1;
+				final long offset = i * effectivePartSize;
+				final long size = Math.min(effectivePartSize, length - offset);
+				uploads.add(() -> {
+					try {
+						UploadPartRequest partRequest = UploadPartRequest.builder().bucket(bucket).key(path)
+								.uploadId(id).partNumber(partNumber).contentLength(size).build();
+						final RequestBody body;
+						if (stream != null) {
+							// read once, the buffer is sent again when the part is retried
+							final byte[] part = stream.read(offset, size);
+							body = RequestBody.fromContentProvider(() -> new ByteArrayInputStream(part), size,
+									"application/octet-stream");
+						} else {
+							body = RequestBody.fromContentProvider(() -> {
+								try {
+									return parts.open(offset, size);
+								} catch (IOException e) {
+									throw new UncheckedIOException(e);
+								}
+							}, size, "application/octet-stream");
+						}
+						String eTag = s3Client.uploadPart(partRequest, body).eTag();
+						return CompletedPart.builder().partNumber(partNumber).eTag(eTag).build();
+					} catch (Exception e) {
+						if (stream != null)
+							stream.fail();
+						throw e;
+					}
+				});
+			}
+			List<CompletedPart> completedParts = S3Executor.invokeAll(uploads, maxInFlight);
+
+			CompleteMultipartUploadRequest completeRequest = CompleteMultipartUploadRequest.builder().bucket(bucket)
+					.key(path).uploadId(id)
+					.multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build()).build();
+			s3Client.completeMultipartUpload(completeRequest);
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_MULTIPART, S3Metrics.OUTCOME_SUCCESS, length, start);
 			return true;
 		} catch (Exception e) {
-			log.log(Level.SEVERE, "Error", e);
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_MULTIPART, S3Metrics.OUTCOME_ERROR, 0, start);
+			if (e instanceof InterruptedException)
+				Thread.currentThread().interrupt();
+			error("Error on multipart upload | " + path, e);
+			if (uploadId != null)
+				abortMultipartUpload(s3Client, bucket, path, uploadId);
 		}
 		return false;
 	}
 
-	public static boolean deleteObject(S3Client s3Client, String bucket, String path) {
+	private static void abortMultipartUpload(S3Client s3Client, String bucket, String path, String uploadId) {
+		try {
+			AbortMultipartUploadRequest abortRequest = AbortMultipartUploadRequest.builder().bucket(bucket).key(path)
+					.uploadId(uploadId).build();
+			s3Client.abortMultipartUpload(abortRequest);
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Error aborting multipart upload | " + path, e);
+		}
+	}
+
+	/**
+	 * Delete an object, dropping its copy from the local disk cache
+	 * 
+	 * @return true when deleted
+	 */
+	public static boolean deleteObject(S3Client s3Client, String bucket, String path, MStorageProvider prov) {
+		S3DiskCache.invalidateIfEnabled(prov, bucket, path);
+		return deleteObject(s3Client, bucket, path);
+	}
+
+	/**
+	 * Delete objects with DeleteObjects requests of up to 1000 keys, dropping
+	 * their copies from the local disk cache
+	 * 
+	 * @return keys that could not be deleted, empty when all were deleted
+	 */
+	public static Set<String> deleteObjects(S3Client s3Client, String bucket, Collection<String> paths, MStorageProvider prov) {
+		Set<String> failed = new LinkedHashSet<>();
+		List<String> keys = new ArrayList<>(new LinkedHashSet<>(paths));
+		for (int start = 0; start < keys.size(); start += MAX_DELETE_KEYS) {
+			List<String> chunk = keys.subList(start, Math.min(keys.size(), start + MAX_DELETE_KEYS));
+			List<ObjectIdentifier> objects = new ArrayList<>(chunk.size());
+			for (String key : chunk) {
+				S3DiskCache.invalidateIfEnabled(prov, bucket, key);
+				objects.add(ObjectIdentifier.builder().key(key).build());
+			}
+			long requestStart = System.nanoTime();
+			try {
+				DeleteObjectsRequest request = DeleteObjectsRequest.builder().bucket(bucket)
+						.delete(Delete.builder().objects(objects).quiet(true).build()).build();
+				DeleteObjectsResponse response = s3Client.deleteObjects(request);
+				for (S3Error error : response.errors()) {
+					log.log(Level.SEVERE, "Error deleting " + error.key() + ": " + error.code() + " " + error.message());
+					failed.add(error.key());
+				}
+				S3Metrics.record(s3Client, S3Metrics.OPERATION_DELETE,
+						response.errors().isEmpty() ? S3Metrics.OUTCOME_SUCCESS : S3Metrics.OUTCOME_ERROR, 0, requestStart);
+			} catch (Exception e) {
+				S3Metrics.record(s3Client, S3Metrics.OPERATION_DELETE, S3Metrics.OUTCOME_ERROR, 0, requestStart);
+				error("Error deleting " + chunk.size() + " objects", e);
+				failed.addAll(chunk);
+			}
+		}
+		return failed;
+	}
+
+	private static boolean deleteObject(S3Client s3Client, String bucket, String path) {
+		long start = System.nanoTime();
 		try {
 			DeleteObjectRequest objectRequest = DeleteObjectRequest.builder().bucket(bucket).key(path).build();
 			s3Client.deleteObject(objectRequest);
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_DELETE, S3Metrics.OUTCOME_SUCCESS, 0, start);
 			return true;
 		} catch (Exception e) {
-			log.log(Level.SEVERE, "error", e);
+			S3Metrics.record(s3Client, S3Metrics.OPERATION_DELETE, S3Metrics.OUTCOME_ERROR, 0, start);
+			error("Error deleting " + path, e);
 		}
 		return false;
 	}
 	
 	
 	
+	/**
+	 * Source of the content of a multipart upload
+	 */
+	@FunctionalInterface
+	public interface PartSource {
+		/**
+		 * Open a stream on a part of the content, called again when the part
+		 * upload is retried
+		 * 
+		 * @param offset part start
+		 * @param size   part size
+		 * @return InputStream
+		 */
+		InputStream open(long offset, long size) throws IOException;
+	}
+
+	/**
+	 * Parts read one after another from a stream, which cannot be read again:
+	 * a part asked again once read fails instead of sending other content
+	 */
+	private static class StreamPartSource implements PartSource {
+		private final InputStream in;
+		private long position;
+		private boolean failed;
+
+		private StreamPartSource(InputStream source) {
+			this.in = new FilterInputStream(source) {
+				@Override
+				public int read() throws IOException {
+					int b = super.read();
+					if (b >= 0)
+						position++;
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					if (n > 0)
+						position += n;
+					return n;
+				}
+
+				@Override
+				public long skip(long n) throws IOException {
+					long skipped = super.skip(n);
+					position += skipped;
+					return skipped;
+				}
+
+				@Override
+				public boolean markSupported() {
+					return false;
+				}
+
+				@Override
+				public void close() {
+					// closed by the caller of the upload
+				}
+			};
+		}
+
+		@Override
+		public InputStream open(long offset, long size) throws IOException {
+			if (offset != position)
+				throw new IOException("Stream cannot be read again from " + offset + ", it is at " + position);
+			return new BoundedInputStream(in, size);
+		}
+
+		/**
+		 * Read a part in memory, once the parts before it were read by the
+		 * other uploads
+		 * 
+		 * @throws IOException when the stream ended or another part failed
+		 */
+		private synchronized byte[] read(long offset, long size) throws IOException, InterruptedException {
+			while (position < offset && !failed)
+				wait();
+			if (failed)
+				throw new IOException("Upload failed before the part at " + offset + " was read");
+			if (offset != position)
+				throw new IOException("Stream cannot be read again from " + offset + ", it is at " + position);
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("Part too large to be read in memory: " + size);
+			byte[] part = in.readNBytes((int) size);
+			if (part.length < size)
+				throw new EOFException("Stream ended after " + position + " bytes");
+			notifyAll();
+			return part;
+		}
+
+		/**
+		 * Stop the uploads waiting for their part, called when a part failed
+		 */
+		private synchronized void fail() {
+			failed = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Part of a file read with positional reads, so the parts of a file can
+	 * be read at the same time from one channel. The channel is not closed.
+	 */
+	private static class ChannelPartInputStream extends InputStream {
+		private final FileChannel channel;
+		private long position;
+		private final long end;
+
+		private ChannelPartInputStream(FileChannel channel, long offset, long size) {
+			this.channel = channel;
+			this.position = offset;
+			this.end = offset + size;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= end)
+				return -1;
+			int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+			if (n > 0)
+				position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, end - position);
+		}
+	}
+
+	/**
+	 * Stream reading at most a given number of bytes of another stream
+	 */
+	private static class BoundedInputStream extends FilterInputStream {
+		private long remaining;
+
+		private BoundedInputStream(InputStream in, long size) {
+			super(in);
+			this.remaining = size;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int b = super.read();
+			if (b >= 0)
+				remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int n = super.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0)
+				remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
 	/**
 	 * Returns the endpoint from URL provided
 	 * 